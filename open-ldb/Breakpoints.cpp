@@ -0,0 +1,122 @@
+// Implementation of the BreakpointLines and BreakpointIndex classes
+
+#include "Breakpoints.h"
+
+
+bool BreakpointLines::add ( int line )
+{
+  if ( line <= 0 || line > MAX_LINE )
+    {
+      return false;
+    }
+  if ( ( std::vector<bool>::size_type ) line >= m_bits.size() )
+    {
+      m_bits.resize ( line + 1, false );
+    }
+  if ( !m_bits[line] )
+    {
+      m_bits[line] = true;
+      m_count++;
+      forgetRanges();
+    }
+  return true;
+}
+
+bool BreakpointLines::remove ( int line )
+{
+  if ( !contains ( line ) )
+    {
+      return false;
+    }
+  m_bits[line] = false;
+  m_count--;
+  forgetRanges();
+  return true;
+}
+
+bool BreakpointLines::assign ( const std::vector<int>& lines )
+{
+  int last = 0;
+  for ( std::vector<int>::size_type i = 0; i < lines.size(); i++ )
+    {
+      if ( lines[i] <= 0 || lines[i] > MAX_LINE )
+	{
+	  return false;
+	}
+      if ( lines[i] > last )
+	{
+	  last = lines[i];
+	}
+    }
+  m_bits.assign ( last + 1, false );
+  m_count = 0;
+  for ( std::vector<int>::size_type i = 0; i < lines.size(); i++ )
+    {
+      if ( !m_bits[lines[i]] )
+	{
+	  m_bits[lines[i]] = true;
+	  m_count++;
+	}
+    }
+  forgetRanges();
+  return true;
+}
+
+bool BreakpointLines::containsRange ( int first, int last ) const
+{
+  if ( m_count == 0 )
+    {
+      return false;
+    }
+  if ( m_ranges.empty() )
+    {
+      // no function ends before it begins, so none is cached yet
+      Range none = { 1, 0, false };
+      m_ranges.assign ( RANGES, none );
+    }
+  Range& range = m_ranges[( unsigned int ) ( first * 31 + last ) % RANGES];
+  if ( range.first == first && range.last == last )
+    {
+      return range.found;
+    }
+  bool found = false;
+  for ( int line = first < 1 ? 1 : first; line <= last && ( std::vector<bool>::size_type ) line < m_bits.size(); line++ )
+    {
+      if ( m_bits[line] )
+	{
+	  found = true;
+	  break;
+	}
+    }
+  range.first = first;
+  range.last = last;
+  range.found = found;
+  return found;
+}
+
+void BreakpointLines::forgetRanges()
+{
+  m_ranges.clear();
+}
+
+std::vector<int> BreakpointLines::lines() const
+{
+  std::vector<int> result;
+  for ( std::vector<bool>::size_type i = 0; i < m_bits.size(); i++ )
+    {
+      if ( m_bits[i] )
+	{
+	  result.push_back ( ( int ) i );
+	}
+    }
+  return result;
+}
+
+const BreakpointLines* BreakpointIndex::remember ( const char* source, const std::string& file )
+{
+  BreakpointLines* lines = &m_byFile[file];
+  m_byAddress[source] = lines;
+  m_lastSource = source;
+  m_lastLines = lines;
+  return lines;
+}
@@ -0,0 +1,120 @@
+// Definition of the BreakpointLines and BreakpointIndex classes
+
+#ifndef Breakpoints_class
+#define Breakpoints_class
+
+#include <map>
+#include <string>
+#include <vector>
+
+/*
+ * The breakpoints of one script, as a bitset indexed by line number, so
+ * the line hook can check a line with a single lookup and no allocation.
+ * Whether a function, by its range of lines, holds a breakpoint is
+ * remembered until the breakpoints change, as it is asked on every call.
+ * The answers are only kept once the script has a breakpoint, so the many
+ * scripts without one cost no more than an empty bitset.
+ */
+class BreakpointLines
+{
+ public:
+
+  // lines above this are refused, no script is that long
+  static const int MAX_LINE = 1 << 24;
+
+  BreakpointLines() : m_count ( 0 ) {}
+
+  bool contains ( int line ) const
+    {
+      return line > 0 && ( std::vector<bool>::size_type ) line < m_bits.size() && m_bits[line];
+    }
+
+  // whether there is a breakpoint from line first to line last
+  bool containsRange ( int first, int last ) const;
+
+  // false if the line is out of range
+  bool add ( int line );
+  // false if there was no breakpoint on the line
+  bool remove ( int line );
+  // replaces every breakpoint with the given lines, or false and no
+  // change if one is out of range
+  bool assign ( const std::vector<int>& lines );
+  // the lines with a breakpoint, in order
+  std::vector<int> lines() const;
+  int size() const { return m_count; }
+
+ private:
+
+  // containsRange answers, direct mapped by first and last line, RANGES
+  // of them once asked for the first time with a breakpoint set
+  struct Range
+  {
+    int first;
+    int last;
+    bool found;
+  };
+  static const int RANGES = 256;
+
+  void forgetRanges();
+
+  std::vector<bool> m_bits;
+  int m_count;
+  mutable std::vector<Range> m_ranges;
+
+};
+
+
+/*
+ * The breakpoints of every script, keyed by its file. A script is known to
+ * the hook by the source name Lua gives it in ar->source, "@./mod.lua" for
+ * a module found on package.path, while the IDE sets breakpoints by the
+ * file's full path, so the caller maps both to the same file name.
+ *
+ * Lua interns its strings, so every function of a script hands the hook
+ * the same source pointer. The hook looks the script up by that address
+ * with find, and only on the first line of a script by file with remember.
+ * The caller of remember must keep the source string alive, otherwise Lua
+ * could reuse its address for another script.
+ */
+class BreakpointIndex
+{
+ public:
+
+  BreakpointIndex() : m_lastSource ( 0 ), m_lastLines ( 0 ) {}
+
+  // the breakpoints of the script file, created if there are none
+  BreakpointLines& lines ( const std::string& file ) { return m_byFile[file]; }
+
+  // the breakpoints of the script whose source string is at the given
+  // address, or NULL if remember has not been called for it
+  const BreakpointLines* find ( const char* source )
+    {
+      if ( source == m_lastSource )
+	{
+	  return m_lastLines;
+	}
+      std::map<const char*, BreakpointLines*>::const_iterator it = m_byAddress.find ( source );
+      if ( it == m_byAddress.end() )
+	{
+	  return 0;
+	}
+      m_lastSource = source;
+      m_lastLines = it->second;
+      return m_lastLines;
+    }
+
+  // looks the script up by file and remembers the address of its source
+  const BreakpointLines* remember ( const char* source, const std::string& file );
+
+ private:
+
+  // map nodes never move, so pointers to the lines stay valid
+  std::map<std::string, BreakpointLines> m_byFile;
+  std::map<const char*, BreakpointLines*> m_byAddress;
+  const char* m_lastSource;
+  BreakpointLines* m_lastLines;
+
+};
+
+
+#endif
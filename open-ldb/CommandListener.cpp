@@ -0,0 +1,100 @@
+// Implementation of the CommandListener class
+
+#include "CommandListener.h"
+#include "ServerSocket.h"
+#include "SocketException.h"
+
+
+CommandListener::CommandListener() :
+  m_socket ( 0 ),
+  m_closed ( false ),
+  m_pending ( 0 )
+{
+  pthread_mutex_init ( &m_lock, NULL );
+  pthread_cond_init ( &m_queued, NULL );
+}
+
+bool CommandListener::start ( const ServerSocket& socket )
+{
+  m_socket = &socket;
+  if ( pthread_create ( &m_thread, NULL, run, this ) != 0 )
+    {
+      return false;
+    }
+  // never joined, the thread ends with the process
+  pthread_detach ( m_thread );
+  return true;
+}
+
+void* CommandListener::run ( void* listener )
+{
+  ( ( CommandListener* ) listener )->read();
+  return NULL;
+}
+
+void CommandListener::read()
+{
+  // one recv can hold several pipelined commands, or only part of one
+  std::string data;
+  try
+    {
+      while ( true )
+	{
+	  std::string received;
+	  *m_socket >> received;
+	  data += received;
+	  std::string::size_type found;
+	  while ( ( found = data.find ( '\n' ) ) != std::string::npos )
+	    {
+	      queue ( data.substr ( 0, found ) );
+	      data.erase ( 0, found + 1 );
+	    }
+	}
+    }
+  catch ( SocketException& )
+    {
+    }
+
+  pthread_mutex_lock ( &m_lock );
+  m_closed = true;
+  pthread_cond_broadcast ( &m_queued );
+  pthread_mutex_unlock ( &m_lock );
+}
+
+void CommandListener::queue ( const std::string& command )
+{
+  pthread_mutex_lock ( &m_lock );
+  m_commands.push_back ( command );
+  __sync_lock_test_and_set ( &m_pending, 1 );
+  pthread_cond_signal ( &m_queued );
+  pthread_mutex_unlock ( &m_lock );
+}
+
+bool CommandListener::next ( std::string& command, bool wait )
+{
+  pthread_mutex_lock ( &m_lock );
+  while ( wait && m_commands.empty() && ! m_closed )
+    {
+      pthread_cond_wait ( &m_queued, &m_lock );
+    }
+  bool found = ! m_commands.empty();
+  if ( found )
+    {
+      command = m_commands.front();
+      m_commands.pop_front();
+    }
+  if ( m_commands.empty() )
+    {
+      __sync_lock_release ( &m_pending );
+    }
+  pthread_mutex_unlock ( &m_lock );
+  return found;
+}
+
+bool CommandListener::closed()
+{
+  pthread_mutex_lock ( &m_lock );
+  bool closed = m_closed;
+  pthread_mutex_unlock ( &m_lock );
+  return closed;
+}
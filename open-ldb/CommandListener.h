@@ -0,0 +1,64 @@
+// Definition of the CommandListener class
+
+#ifndef CommandListener_class
+#define CommandListener_class
+
+#include <pthread.h>
+#include <deque>
+#include <string>
+
+class ServerSocket;
+
+/*
+ * Reads the commands of the IDE on a thread of its own, so a command
+ * arrives while the script runs and not only while it is stopped in the
+ * command parser. Each newline terminated command is queued whole for the
+ * thread that runs the script, which takes them with next.
+ *
+ * A command queued while the script runs, e.g. "suspend", is noticed by
+ * the hook through pending, a flag set atomically by the listener thread
+ * and read without taking the lock, so checking it costs no more than a
+ * load.
+ */
+class CommandListener
+{
+ public:
+
+  CommandListener();
+
+  // starts reading the socket on a new thread, false if it could not
+  bool start ( const ServerSocket& socket );
+
+  // takes the next command, waiting for one if wait is true; false if
+  // there is none without waiting or the IDE has closed the socket
+  bool next ( std::string& command, bool wait );
+
+  // whether a command is queued, cheap enough for the hook to ask
+  // every few instructions
+  bool pending() const { return m_pending != 0; }
+
+  // whether the IDE has closed the socket
+  bool closed();
+
+ private:
+
+  static void* run ( void* listener );
+  void read();
+  void queue ( const std::string& command );
+
+  const ServerSocket* m_socket;
+  pthread_t m_thread;
+  pthread_mutex_t m_lock;
+  pthread_cond_t m_queued;
+
+  // guarded by m_lock
+  std::deque<std::string> m_commands;
+  bool m_closed;
+
+  // set while m_commands is not empty
+  volatile int m_pending;
+
+};
+
+
+#endif
@@ -4,4 +4,4 @@
 
 USER_OBJS :=
 
-LIBS :=
\ No newline at end of file
+LIBS := -lz -lpthread
\ No newline at end of file
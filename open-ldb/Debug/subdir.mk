@@ -4,7 +4,10 @@
 
 # Add inputs and outputs from these tool invocations to the build variables 
 CPP_SRCS += \
+../Breakpoints.cpp \
+../CommandListener.cpp \
 ../LuaDebugger.cpp \
+../ReplyWriter.cpp \
 ../ServerSocket.cpp \
 ../Socket.cpp 
 
@@ -40,7 +43,10 @@ C_SRCS += \
 ../lzio.c 
 
 OBJS += \
+./Breakpoints.o \
+./CommandListener.o \
 ./LuaDebugger.o \
+./ReplyWriter.o \
 ./ServerSocket.o \
 ./Socket.o \
 ./lapi.o \
@@ -105,7 +111,10 @@ C_DEPS += \
 ./lzio.d 
 
 CPP_DEPS += \
+./Breakpoints.d \
+./CommandListener.d \
 ./LuaDebugger.d \
+./ReplyWriter.d \
 ./ServerSocket.d \
 ./Socket.d 
 
@@ -46,7 +46,10 @@
    break line
    clear line
    display [varname]
-   step
+   step|stepover|stepreturn
+   stepn count
+   stepuntil expression
+   steptoline line depth
    continue
    print stack|trace|breakpoints
    quit
@@ -62,6 +65,13 @@ const char clrbreakCmd[] = "cl";       // clear
 const char displayCmd[] = "d";         // display
 const char assignCmd[] = "a";          // assign
 const char stepCmd[] = "ste";          // step
+const char stepOverCmd[] = "stepover"; // step over the calls of this line
+const char stepReturnCmd[] = "stepreturn"; // step out of this function
+const char stepLinesCmd[] = "stepn";   // step a number of lines, "stepn count"
+const char stepUntilCmd[] = "stepuntil"; // run until a condition is true,
+                                       // "stepuntil expression"
+const char stepToLineCmd[] = "steptoline"; // run to a line in a frame,
+                                       // "steptoline line depth"
 const char continueCmd[] = "co";       // continue
 const char resumeCmd[] = "resume";     // same as continue, for IDE
 const char printCmd[] = "p";           // print
@@ -69,11 +79,19 @@ const char quitCmd[] = "q";            // quit
 const char helpCmd[] = "help";
 const char suspendCmd[] = "su";        // suspend, an IDE command
 const char stackForIdeCmd[] = "sta";   // stackforide, an IDE command
-const char varForIdeCmd[] = "var";     // get a local var, an IDE command
+const char varForIdeCmd[] = "var";     // get a local var, an IDE command,
+                                       // "var frame name [offset count]"
 const char dataForIdeCmd[] = "data";   // get the lua stack values, an IDE command
 const char getGlobalsCmd[] = "getglobals"; // get the lua globals, an IDE command
+const char protocolCmd[] = "protocol"; // choose text or binary replies, an IDE command
+const char changesCmd[] = "changes";   // get the values changed since the last changes, an IDE command
+const char expandCmd[] = "expand";     // get the contents of a handle, an IDE command,
+                                       // "expand handle offset count"
+const char batchCmd[] = "batch";       // run the next n commands with one reply, an IDE command
+const char setBreakpointsCmd[] = "setbreakpoints"; // replace the breakpoints of a file, an IDE command,
+                                       // "setbreakpoints file line,line,...|none"
 
-const char allCmds[] = "list firstline [lastline]\nbreak line\nclear line\ndisplay [varname]\nstep\ncontinue\nprint stack|trace|breakpoints\nquit\nhelp\n";
+const char allCmds[] = "list firstline [lastline]\nbreak line [file]\nclear line [file]\ndisplay [varname]\nstep|stepover|stepreturn\nstepn count\nstepuntil expression\nsteptoline line depth\ncontinue\nprint stack|trace|breakpoints\nquit\nhelp\n";
 
 const char invalidCommand[] = "invalid command\n";
 
@@ -86,6 +104,208 @@ const char invalidCommand[] = "invalid command\n";
 #define CONTINUING 2
 int debuggerStates = STEPPING;
 
+/*
+ * While STEPPING, the step ends at the first line run with the stack at
+ * most this many frames deep, or at any line if ANY_DEPTH. "step" stops
+ * anywhere, "stepover" at the depth it started at and "stepreturn" one
+ * frame up, so the calls stepped over run without the line hook; see
+ * stepEndsIn.
+ */
+#define ANY_DEPTH -1
+int stepDepth = ANY_DEPTH;
+
+/*
+ * A step can run many lines before it ends, all within the hook, so the
+ * IDE sees a single stop: "stepn" ends once stepCount lines have run,
+ * "stepuntil" at the first line where the condition, a chunk compiled once
+ * and kept in the registry, is true, and "steptoline" at line stepLine of
+ * the frame exactly stepDepth deep. See stepEnds.
+ */
+long stepCount = 0;
+int stepCondition = LUA_NOREF;
+int stepLine = 0;
+
+/*
+ * The error the condition of "stepuntil" raised, which ends the step
+ * there, or empty
+ */
+string stepError;
+
+/**
+ * The number of frames on the stack
+ */
+int stackDepth(lua_State *L) {
+	lua_Debug ar;
+	int depth = 0;
+	while (lua_getstack(L, depth, &ar)) {
+		depth++;
+	}
+	return depth;
+}
+
+/**
+ * Whether the step being taken ends in the function level frames up the
+ * stack, 0 for the one running and 1 for the one it returns to. The depth
+ * is measured, not counted in the call and return hooks, as no return hook
+ * runs for the frames an error unwinds; only stepDepth frames are looked
+ * at, however deep the calls being stepped over go.
+ */
+bool stepEndsIn(lua_State *L, int level) {
+	if (debuggerStates != STEPPING) {
+		return false;
+	}
+	if (stepDepth == ANY_DEPTH) {
+		return true;
+	}
+	// at most stepDepth deep if there is no frame stepDepth below it
+	lua_Debug ar;
+	if (lua_getstack(L, stepDepth + level, &ar)) {
+		return false;
+	}
+	// "steptoline" ends only in the frame exactly stepDepth deep
+	return stepLine == 0 || lua_getstack(L, stepDepth - 1 + level, &ar) != 0;
+}
+
+/**
+ * The __index of the environment of a "stepuntil" condition: a name is
+ * looked up as a local of the function being stepped, then as one of its
+ * upvalues, then as a global, as the function itself would see it
+ */
+int conditionIndex(lua_State *L) {
+	const char* name = lua_tostring(L, 2);
+	lua_Debug ar;
+	// level 0 is this function, 1 the condition
+	if (name != NULL && lua_getstack(L, 2, &ar)) {
+		bool found = false;
+		const char* local;
+		for (int i = 1; (local = lua_getlocal(L, &ar, i)) != NULL; i++) {
+			if (strcmp(local, name) != 0) {
+				lua_pop(L, 1);
+			} else if (found) {
+				// a later local of the same name hides the earlier one
+				lua_remove(L, -2);
+			} else {
+				found = true;
+			}
+		}
+		if (found) {
+			return 1;
+		}
+		lua_getinfo(L, "f", &ar);
+		const char* upvalue;
+		for (int i = 1; (upvalue = lua_getupvalue(L, -1, i)) != NULL; i++) {
+			if (strcmp(upvalue, name) == 0) {
+				return 1;
+			}
+			lua_pop(L, 1);
+		}
+		lua_pop(L, 1);
+	}
+	lua_pushvalue(L, 2);
+	lua_gettable(L, LUA_GLOBALSINDEX);
+	return 1;
+}
+
+/**
+ * Compile the condition of "stepuntil" once, for the hook to run on every
+ * line. Returns the compile error, or an empty string.
+ */
+string setStepCondition(lua_State *L, const char* expression) {
+	string chunk = string("return ") + expression;
+	if (luaL_loadbuffer(L, chunk.c_str(), chunk.size(), "=stepuntil") != 0) {
+		string error = lua_tostring(L, -1);
+		lua_pop(L, 1);
+		return error;
+	}
+	// an empty environment that finds names through conditionIndex
+	lua_newtable(L);
+	lua_newtable(L);
+	lua_pushcfunction(L, conditionIndex);
+	lua_setfield(L, -2, "__index");
+	lua_setmetatable(L, -2);
+	lua_setfenv(L, -2);
+	stepCondition = luaL_ref(L, LUA_REGISTRYINDEX);
+	return "";
+}
+
+/**
+ * Forget the step being taken, if any
+ */
+void resetStep(lua_State *L) {
+	stepDepth = ANY_DEPTH;
+	stepCount = 0;
+	luaL_unref(L, LUA_REGISTRYINDEX, stepCondition);
+	stepCondition = LUA_NOREF;
+	stepLine = 0;
+	stepError.clear();
+}
+
+/**
+ * Set up the step asked for by a step command, see stepDepth and
+ * stepCount; its arguments are read with strtok. Returns why the step can
+ * not be taken, or an empty string.
+ */
+string setStep(lua_State *L, const char* pCmd) {
+	resetStep(L);
+	if (strcmp(pCmd, stepOverCmd) == 0) {
+		stepDepth = stackDepth(L);
+	} else if (strcmp(pCmd, stepReturnCmd) == 0) {
+		stepDepth = stackDepth(L) - 1;
+	} else if (strcmp(pCmd, stepLinesCmd) == 0) {
+		const char* pCount = strtok(NULL, " ");
+		stepCount = pCount == NULL ? 0 : strtol(pCount, NULL, 10);
+		if (stepCount <= 0) {
+			return "invalid or no line count";
+		}
+	} else if (strcmp(pCmd, stepUntilCmd) == 0) {
+		const char* expression = strtok(NULL, "");
+		if (expression == NULL) {
+			return "no expression";
+		}
+		return setStepCondition(L, expression);
+	} else if (strcmp(pCmd, stepToLineCmd) == 0) {
+		const char* pLine = strtok(NULL, " ");
+		const char* pDepth = strtok(NULL, " ");
+		stepLine = pLine == NULL ? 0 : atoi(pLine);
+		stepDepth = pDepth == NULL ? 0 : atoi(pDepth);
+		if (stepLine <= 0 || stepDepth <= 0) {
+			resetStep(L);
+			return "invalid or no line or depth";
+		}
+	}
+	return "";
+}
+
+/**
+ * Whether the step being taken ends at the line the hook is at, in a
+ * function where stepEndsIn says it can end. Runs the condition of
+ * "stepuntil"; a condition that raises an error ends the step too, with
+ * the error in stepError, as it would on every line after.
+ */
+bool stepEnds(lua_State *L, lua_Debug *ar) {
+	if (stepLine > 0) {
+		return ar->currentline == stepLine;
+	}
+	if (stepCondition != LUA_NOREF) {
+		lua_rawgeti(L, LUA_REGISTRYINDEX, stepCondition);
+		if (lua_pcall(L, 0, 1, 0) != 0) {
+			const char* message = lua_tostring(L, -1);
+			stepError = message == NULL ? "error in condition" : message;
+			// the error is sent as an event line
+			for (size_t i = stepError.find('\n'); i != string::npos; i = stepError.find('\n', i)) {
+				stepError[i] = ' ';
+			}
+			lua_pop(L, 1);
+			return true;
+		}
+		bool holds = lua_toboolean(L, -1) != 0;
+		lua_pop(L, 1);
+		return holds;
+	}
+	// stepCount lines, counting this one
+	return --stepCount <= 0;
+}
+
 /*
  * In order to be thread safe, each script has it's own list of source lines
  * The map uses ar->source as the key (name of the script)
@@ -94,21 +314,88 @@ int debuggerStates = STEPPING;
 map<string, vector <string> > allScriptsLines;
 
 /*
- * In order to be thread safe, each script has it's own list of breakpoints.
- * The map uases ar->source as the key (name of the script)
- * The list is a vector of the line to break at. In other words,
- * the key/vector combination gives a series of scriptName:lineNumber
- * combinations. Each Lua interpreter has it's own list which makes this
- * thread safe even though there is 1 ldb class.
+ * Each script has it's own set of breakpoints, keyed by its file, see
+ * sourceFile. The line hook runs on every line while continuing, so
+ * it looks the script up by the address of ar->source and checks the
+ * line in a bitset; see BreakpointIndex.
+ */
+BreakpointIndex breakpoints;
+
+/*
+ * The name the script was loaded under when it was loaded from a buffer,
+ * see main. Lua names a chunk loaded from a file "@" and the file name,
+ * but a buffer by the name it was loaded under.
  */
-map<string, vector <int> > allScriptsBreakpoints;
+string bufferedScriptName;
 
 /**
- * Get the breakpoint list for this file (or string containing the script)
- * Each file (or string) has it's own list of breakpoints
+ * The full path of a script file, without symbolic links, or the name as
+ * given if there is no such file. The breakpoints of a file are keyed by
+ * it, so a module required as "./mod.lua" has the breakpoints the IDE set
+ * on "/home/me/project/mod.lua".
  */
-vector <int> getBreakPointList(const char* scriptName) {
-	return allScriptsBreakpoints[scriptName];
+string canonicalFile(const string& file) {
+	char* path = realpath(file.c_str(), NULL);
+	if (path == NULL) {
+		return file;
+	}
+	string canonical = path;
+	free(path);
+	return canonical;
+}
+
+/**
+ * The file of the script Lua gives the hook in ar->source, see
+ * canonicalFile, or the source itself for a chunk that is not from a file
+ */
+string sourceFile(const char* source) {
+	if (source[0] == '@') {
+		return canonicalFile(source + 1);
+	}
+	if (bufferedScriptName == source) {
+		return canonicalFile(source);
+	}
+	return source;
+}
+
+/*
+ * Registry table whose keys are the source names the line hook has looked
+ * up, so Lua never collects them and reuses their address for another
+ * script while the breakpoints are cached by address.
+ */
+static const char* sourcesKey = "ldb.sources";
+
+/*
+ * The breakpoints of a chunk that is not a script file, none
+ */
+const BreakpointLines noBreakpoints;
+
+/**
+ * Get the breakpoints of the script running at ar, for the line hook.
+ * Only script files can have breakpoints, so only their sources are kept
+ * alive and indexed; a chunk from loadstring, whose source is its text,
+ * gets noBreakpoints, or a script that loads many would keep them all.
+ */
+const BreakpointLines* findBreakpoints(lua_State *L, lua_Debug *ar) {
+	const BreakpointLines* lines = breakpoints.find(ar->source);
+	if (lines == NULL) {
+		if (ar->source[0] != '@' && bufferedScriptName != ar->source) {
+			return &noBreakpoints;
+		}
+		lua_getfield(L, LUA_REGISTRYINDEX, sourcesKey);
+		if (lua_isnil(L, -1)) {
+			lua_pop(L, 1);
+			lua_newtable(L);
+			lua_pushvalue(L, -1);
+			lua_setfield(L, LUA_REGISTRYINDEX, sourcesKey);
+		}
+		lua_pushstring(L, ar->source);
+		lua_pushboolean(L, 1);
+		lua_rawset(L, -3);
+		lua_pop(L, 1);
+		lines = breakpoints.remember(ar->source, sourceFile(ar->source));
+	}
+	return lines;
 }
 
 debuggerType debugger;
@@ -116,17 +403,219 @@ debuggerType debugger;
 ServerSocket newSocket;
 ServerSocket eventSocket;
 
+/*
+ * Every command the IDE sends is prefixed with a correlation id and every
+ * reply carries the same id back, e.g.
+ *   IDE sends  "17 var 2 x"
+ *   ldb sends  "17 abc"
+ * This lets the IDE keep many requests in flight at once and match the
+ * replies as they arrive instead of waiting a round trip for each one.
+ * requestId is the id of the command currently being executed.
+ */
+string requestId;
+
+/*
+ * Reads the commands of the IDE on a thread of its own, so they arrive
+ * while the script runs, see runningCheckCount.
+ */
+CommandListener listener;
+
+/*
+ * While the IDE debugs, the count hook runs every this many instructions
+ * to see whether the IDE sent a command while the script runs, such as
+ * "suspend" or new breakpoints. It only tests a flag, so the script hardly
+ * slows down, and a busy loop still stops well within a millisecond.
+ */
+const int runningCheckCount = 1000;
+
+/*
+ * Whether replies are sent as binary frames instead of text lines.
+ * The IDE asks for binary frames with "protocol binary"; see ReplyWriter.h
+ * for the frame layout.
+ */
+bool binaryReplies = false;
+
+/*
+ * Whether events are sent over the command connection instead of a socket
+ * of their own, see sendEvent. Set with "-e none".
+ */
+bool sharedEvents = false;
+
+/*
+ * Tables, functions, userdata and threads are sent to the IDE as handles,
+ * "@12 table", which the IDE expands with "expand 12 0 100" when the user
+ * opens them. Handles are kept in two weak tables in the Lua registry,
+ * one from handle to object and one from object to handle, so the same
+ * object keeps the same handle for as long as it lives, cycles end at a
+ * handle that was already sent, and a handle does not keep its object
+ * alive. Handles are never reused, so the handle of an object that has
+ * been collected is just not found.
+ */
+const char handlesKey[] = "ldb.handles";
+const char handleObjectsKey[] = "ldb.handleObjects";
+long nextHandle = 1;
+
+/*
+ * Where the last page of each table paged through ended, so the next page
+ * goes on with lua_next from there instead of walking the table from its
+ * first entry, and the size of the table, so it is counted once. A
+ * registry table from the paged table to {last key sent, offset after it,
+ * size}. The script does not run while the commands of one suspend run,
+ * so the tables do not change; it is dropped whenever the script may run
+ * in between, see commandParser.
+ */
+const char tablePagesKey[] = "ldb.tablePages";
+
+/*
+ * The value last reported by "changes" for each local, keyed by the depth
+ * of its frame from the bottom of the stack and its name, "2:x", and for
+ * each global, "G:x". reportedFunctions holds the function of each frame
+ * by depth, as source:linedefined, so the locals of a different function
+ * at the same depth are reported as changed, and reportedUpvalues whether
+ * it has upvalues.
+ */
+map<string, string> reportedValues;
+vector<string> reportedFunctions;
+vector<bool> reportedUpvalues;
+
+/*
+ * Which frames have run since the last "changes", kept up by the call and
+ * return hooks so getChanges only reads the locals of those: hookDepth is
+ * the number of frames on the stack of depthState and lowestRunDepth the
+ * fewest there have been. A frame further down has not run, so its locals
+ * still have the values reported, unless a function with upvalues ran,
+ * which may have set them through one, see upvaluesRan. A hook call for
+ * another state, a coroutine, makes the count unusable until the next
+ * "changes", and so does an error, as the frames it unwinds never return;
+ * getChanges then finds hookDepth wrong and reads every frame. Locals set
+ * with debug.setlocal, or from C, are not noticed.
+ */
+lua_State* depthState = NULL;
+int hookDepth = 0;
+int lowestRunDepth = 0;
+bool upvaluesRan = true;
+
+/*
+ * The replies of the batch being run, see the batch command, or NULL.
+ * While a batch runs, sendReply collects the payload of each reply here
+ * instead of sending it.
+ */
+vector<string>* batchReplies = NULL;
+
+/*
+ * Binary payloads of at least this many bytes are compressed, 0 for none.
+ * The IDE sets it with "protocol compress 8192"; see ReplyWriter.h for the
+ * compressed frame.
+ */
+size_t compressThreshold = 0;
+
+/**
+ * Build the binary frame for a payload, compressed if it is large enough
+ * and compressing makes it smaller
+ */
+string binaryFrame(unsigned long id, const string& payload) {
+	string frame;
+	if (compressThreshold > 0 && payload.size() >= compressThreshold &&
+			BinaryReplyWriter::compressedFrame(id, payload, frame)) {
+		return frame;
+	}
+	return BinaryReplyWriter::frame(id, payload);
+}
+
+/**
+ * Send a structured reply to the command currently being executed back
+ * to the IDE
+ */
+void sendReply(const ReplyWriter& reply) {
+	if (batchReplies != NULL) {
+		batchReplies->push_back(reply.str());
+		return;
+	}
+	if (binaryReplies) {
+		newSocket << binaryFrame(strtoul(requestId.c_str(), NULL, 10), reply.str());
+	} else {
+		newSocket << requestId + " " + reply.str() + "\n";
+	}
+}
+
+/**
+ * Send the reply to the command currently being executed back to the IDE
+ */
+void sendReply(const string& reply) {
+	if (binaryReplies) {
+		BinaryReplyWriter binary;
+		binary.text(reply);
+		sendReply(binary);
+	} else {
+		newSocket << requestId + " " + reply + "\n";
+	}
+}
+
+/**
+ * Send one or more newline terminated events to the IDE. On a socket of
+ * their own the events go as they are. Over the command connection each
+ * event is sent as a reply to the reserved request id 0, "0 suspended step",
+ * or as a binary frame for id 0 once the IDE asked for binary replies, so
+ * the IDE reads events and replies in the order they were sent.
+ */
+void sendEvent(const string& events) {
+	if (!sharedEvents) {
+		eventSocket << events;
+		return;
+	}
+	size_t start = 0;
+	while (start < events.size()) {
+		size_t end = events.find('\n', start);
+		if (end == string::npos) {
+			end = events.size();
+		}
+		string event = events.substr(start, end - start);
+		if (binaryReplies) {
+			BinaryReplyWriter payload;
+			payload.text(event);
+			newSocket << binaryFrame(0, payload.str());
+		} else {
+			newSocket << "0 " + event + "\n";
+		}
+		start = end + 1;
+	}
+}
+
+/**
+ * Pick the writer for the reply to the command currently being executed,
+ * binary if the IDE has asked for binary frames and text otherwise
+ */
+ReplyWriter& replyWriter(TextReplyWriter& text, BinaryReplyWriter& binary) {
+	if (binaryReplies) {
+		return binary;
+	}
+	return text;
+}
+
+/**
+ * Take the next command the IDE sent, waiting for one if wait is true.
+ * Returns false if there is none without waiting. Throws a SocketException
+ * if the IDE has closed the socket.
+ */
+bool readCommand(string& command, bool wait) {
+	if (listener.next(command, wait)) {
+		return true;
+	}
+	if (listener.closed()) {
+		throw SocketException("Could not read from socket.");
+	}
+	return false;
+}
+
 LuaDebugger::LuaDebugger(){
 }
 
 /**
- * Find the list in the map by scriptName and added the breakInfo to the list
- * This allows each thread to have it's own breakpoints.
+ * Add a breakpoint at the line to the breakpoints of the script.
+ * Returns false if the line number is out of range.
  */
-void LuaDebugger::setBreakPointList(const char* scriptName, int lineNumber) {
-	vector <int> list = allScriptsBreakpoints[scriptName];
-	list.push_back(lineNumber);
-	allScriptsBreakpoints[scriptName] = list;
+bool LuaDebugger::setBreakPointList(const char* scriptName, int lineNumber) {
+	return breakpoints.lines(scriptName).add(lineNumber);
 }
 
 /**
@@ -544,13 +1033,14 @@ void LuaDebugger::drawStackTrace(lua_State *L)
  * 
  * Then this is parsed by the IDE to fill in stack frame and variable data
  * 
- * The variable str is allocated by the callee and can hold long strings, e.g. 2048
+ * In a binary reply the file, line number and function name are values,
+ * each variable name is a name and every frame is ended by a frame end.
  */
-void LuaDebugger::ideStackTrace(lua_State *L, char* str)
+void LuaDebugger::ideStackTrace(lua_State *L, ReplyWriter& reply)
 {
 	int nLevel = 0;
 	lua_Debug ar;
-	char number[4];
+	char number[16];
 	
 	// the stack must be displayed from caller to callee (growing up)
 	// so find out how many levels there are first
@@ -562,33 +1052,27 @@ void LuaDebugger::ideStackTrace(lua_State *L, char* str)
 		// file|lineNumber|functionname|varName|varname|etc|
 		lua_getinfo(L, "lnuS", &ar);
 		// first get the file name
-		strcat(str,ar.source);
-		
-		strcat(str, "|");
+		reply.value(ar.source);
 
-		number[0] = '\0';
 		sprintf(number, "%i", ar.currentline);
-		strcat(str, number);
-		strcat(str, "|");
+		reply.value(number);
 		
 		// now the function name
 		if ( ar.name ) {
-			strcat(str, ar.name);
+			reply.value(ar.name);
 		} else if ( ar.namewhat ) {
 			if (strlen(ar.namewhat) == 0) {
-				strcat(str, "main"); // toplevel of lua has no function name
+				reply.value("main"); // toplevel of lua has no function name
 			} else {
-			    strcat(str, ar.namewhat);
+			    reply.value(ar.namewhat);
 			}
 		} else if ( ar.what ) {
-			strcat(str, ar.what);
+			reply.value(ar.what);
 		} else if ( ar.source ) {
-			strcat(str, ar.source);
+			reply.value(ar.source);
 		} else {
-			strcat(str, "unknown?");
+			reply.value("unknown?");
 		}
-		strcat(str, "|");
-
 
 		// now the varNames
 		if ( lua_getstack (L, nLevel, &ar) )
@@ -598,106 +1082,341 @@ void LuaDebugger::ideStackTrace(lua_State *L, char* str)
 	        while ((name = lua_getlocal(L, &ar, i++)) != NULL) {
 	        	// don't bother adding temporaries
 	        	if (strcmp(name, "(*temporary)") != 0) {
-				   strcat(str, name);
-				   strcat(str, "|");
+	        		reply.name(name);
 	        	}
 	        	lua_pop(L, 1);
 	        }
 		}
 		
-		strcat(str, "#");
+		reply.frameEnd();
 		
 		nLevel--;
 	}
 }
 
+/*
+ * Return a name or value at the index stack location as a string,
+ * without changing the value on the stack. Strings are returned whole,
+ * including any embedded zeros.
+ */
+string LuaDebugger::toDisplayString(lua_State *L, int index)
+{
+	char value[64];
+	size_t length;
+	const char *s;
+	
+	switch(lua_type(L, index))
+	{
+	case LUA_TNUMBER:
+		lua_number2str(value, lua_tonumber(L, index));
+		return value;
+	case LUA_TSTRING:
+		s = lua_tolstring(L, index, &length);
+		return string(s, length);
+	case LUA_TBOOLEAN:
+		return lua_toboolean(L, index) ? "true" : "false";
+	default:
+		return lua_typename(L, lua_type(L, index));
+	}
+}
+
+/*
+ * Returns the text the IDE shows for the value at the given index. A
+ * table, function, userdata or thread is sent as a handle, "@12 table",
+ * see handlesKey. A string that starts with "@" is sent with another
+ * "@" in front so it is not mistaken for a handle.
+ */
+string LuaDebugger::toIdeValue(lua_State *L, int index)
+{
+	int ntype = lua_type(L, index);
+	switch(ntype)
+	{
+	case LUA_TNUMBER:
+	case LUA_TBOOLEAN:
+	case LUA_TNIL:
+		return toDisplayString(L, index);
+	case LUA_TSTRING:
+	{
+		string s = toDisplayString(L, index);
+		return s.length() > 0 && s[0] == '@' ? "@" + s : s;
+	}
+	default:
+		break;
+	}
+	
+	if (index < 0) {
+		index = lua_gettop(L) + index + 1;
+	}
+	lua_getfield(L, LUA_REGISTRYINDEX, handleObjectsKey);
+	if (lua_isnil(L, -1)) {
+		lua_pop(L, 1);
+		// object to handle, with weak keys
+		lua_newtable(L);
+		lua_newtable(L);
+		lua_pushstring(L, "k");
+		lua_setfield(L, -2, "__mode");
+		lua_setmetatable(L, -2);
+		lua_pushvalue(L, -1);
+		lua_setfield(L, LUA_REGISTRYINDEX, handleObjectsKey);
+		// handle to object, with weak values
+		lua_newtable(L);
+		lua_newtable(L);
+		lua_pushstring(L, "v");
+		lua_setfield(L, -2, "__mode");
+		lua_setmetatable(L, -2);
+		lua_setfield(L, LUA_REGISTRYINDEX, handlesKey);
+	}
+	lua_pushvalue(L, index);
+	lua_rawget(L, -2);
+	long handle = (long) lua_tointeger(L, -1);
+	lua_pop(L, 1);
+	if (handle == 0) {
+		handle = nextHandle++;
+		lua_pushvalue(L, index);
+		lua_pushinteger(L, handle);
+		lua_rawset(L, -3);
+		lua_getfield(L, LUA_REGISTRYINDEX, handlesKey);
+		lua_pushinteger(L, handle);
+		lua_pushvalue(L, index);
+		lua_rawset(L, -3);
+		lua_pop(L, 1);
+	}
+	lua_pop(L, 1); // pop table of handles
+	
+	ostringstream ostr;
+	ostr << "@" << handle << " " << lua_typename(L, ntype);
+	return ostr.str();
+}
+
+/*
+ * Pushes the page entry of the table at the given index, see
+ * tablePagesKey, or nil if it has not been paged through this suspend
+ */
+void getTablePage(lua_State *L, int index) {
+	lua_getfield(L, LUA_REGISTRYINDEX, tablePagesKey);
+	if (lua_isnil(L, -1)) {
+		return;
+	}
+	lua_pushvalue(L, index);
+	lua_rawget(L, -2);
+	lua_remove(L, -2); // remove table of pages
+}
+
+/*
+ * Remembers that a page of the table at the given index ended with the
+ * key on top of the stack, at offset end, see tablePagesKey
+ */
+void setTablePage(lua_State *L, int index, long end, long size) {
+	lua_getfield(L, LUA_REGISTRYINDEX, tablePagesKey);
+	if (lua_isnil(L, -1)) {
+		lua_pop(L, 1);
+		lua_newtable(L);
+		lua_pushvalue(L, -1);
+		lua_setfield(L, LUA_REGISTRYINDEX, tablePagesKey);
+	}
+	lua_pushvalue(L, index);
+	lua_createtable(L, 3, 0);
+	lua_pushvalue(L, -4); // the key
+	lua_rawseti(L, -2, 1);
+	lua_pushinteger(L, end);
+	lua_rawseti(L, -2, 2);
+	lua_pushinteger(L, size);
+	lua_rawseti(L, -2, 3);
+	lua_rawset(L, -3);
+	lua_pop(L, 1); // pop table of pages
+}
+
+/*
+ * Writes the entries of the table at the given index, named
+ * name[key]. With an offset of 0 or more only count entries are
+ * written, starting at that offset in lua_next order, preceded by the
+ * number of entries in the whole table. A page that starts at or after
+ * the end of the last page of the same table goes on from there, so
+ * paging through a table in order takes time in the size of the page,
+ * not of the table.
+ */
+void LuaDebugger::writeTable(lua_State *L, int index, const string& name, ReplyWriter& reply, long offset, long count)
+{
+	if (index < 0) {
+		index = lua_gettop(L) + index + 1;
+	}
+	reply.tableBegin(name);
+	long size = 0;
+	long i = 0;
+	if (offset >= 0) {
+		getTablePage(L, index);
+		if (lua_istable(L, -1)) {
+			lua_rawgeti(L, -1, 3);
+			size = (long) lua_tointeger(L, -1);
+			lua_rawgeti(L, -2, 2);
+			long end = (long) lua_tointeger(L, -1);
+			lua_pop(L, 2);
+			if (offset >= end) {
+				// go on after the last key sent
+				i = end;
+				lua_rawgeti(L, -1, 1);
+				lua_remove(L, -2); // remove page entry
+			} else {
+				lua_pop(L, 1);
+				lua_pushnil(L);
+			}
+		} else {
+			lua_pop(L, 1);
+		    lua_pushnil(L);  /* first key */
+		    while (lua_next(L, index) != 0) {
+		    	size++;
+		        lua_pop(L, 1);
+		    }
+		    lua_pushnil(L);
+		}
+	    ostringstream ostr;
+	    ostr << size;
+	    reply.value(ostr.str());
+	} else {
+	    lua_pushnil(L);  /* first key */
+	}
+    while (lua_next(L, index) != 0) {
+    	if (offset >= 0 && i >= offset + count) {
+    		lua_pop(L, 2); // pop value and key, the page is full
+    		break;
+    	}
+    	if (offset < 0 || i >= offset) {
+    		reply.entry(name + "[" + toDisplayString(L, -2) + "]",
+    				toIdeValue(L, -1));
+    	}
+    	i++;
+        /* removes 'value'; keeps 'key' for next iteration */
+        lua_pop(L, 1);
+    	if (offset >= 0 && i == offset + count) {
+    		setTablePage(L, index, i, size);
+    	}
+    }
+    reply.tableEnd();
+}
+
+/*
+ * Replies with what is inside the object with the given handle, a page
+ * at a time like a ranged "var": the entries of a table, the upvalues of
+ * a function, or the metatable of a userdata. Replies "notFound" if the
+ * handle is not known, e.g. its object has been collected.
+ */
+void LuaDebugger::expandHandle(lua_State *L, long handle, ReplyWriter& reply, long offset, long count)
+{
+	lua_getfield(L, LUA_REGISTRYINDEX, handlesKey);
+	if (lua_isnil(L, -1)) {
+		lua_pop(L, 1);
+		reply.text("notFound");
+		return;
+	}
+	lua_pushinteger(L, handle);
+	lua_rawget(L, -2);
+	lua_remove(L, -2); // remove table of handles
+	
+	switch (lua_type(L, -1))
+	{
+	  case LUA_TTABLE:
+		writeTable(L, -1, "", reply, offset, count);
+		break;
+	  case LUA_TFUNCTION:
+	  {
+		long size = 0;
+		while (lua_getupvalue(L, -1, size + 1) != NULL) {
+			size++;
+			lua_pop(L, 1);
+		}
+		reply.tableBegin("");
+		ostringstream ostr;
+		ostr << size;
+		reply.value(ostr.str());
+		for (long i = offset; i < size && i < offset + count; i++) {
+			const char *name = lua_getupvalue(L, -1, i + 1);
+			reply.entry(name, toIdeValue(L, -1));
+			lua_pop(L, 1);
+		}
+		reply.tableEnd();
+		break;
+	  }
+	  case LUA_TUSERDATA:
+		reply.tableBegin("");
+		if (lua_getmetatable(L, -1)) {
+			reply.value("1");
+			if (offset == 0 && count > 0) {
+				reply.entry("metatable", toIdeValue(L, -1));
+			}
+			lua_pop(L, 1);
+		} else {
+			reply.value("0");
+		}
+		reply.tableEnd();
+		break;
+	  case LUA_TNIL:
+		reply.text("notFound");
+		break;
+	  default:
+		reply.tableBegin("");
+		reply.value("0");
+		reply.tableEnd();
+		break;
+	}
+	lua_pop(L, 1); // pop the object
+}
+
 /*
  * Pass in a stack level and a local variable name to get the value
  * 
- * The callee has allocated the return value string "val"
+ * A number, string or boolean is replied as its text. A table is replied
+ * as a list of its elements, x[1]=abc|x[2]=def| etc. A function,
+ * userdata or thread is replied as a handle, see toIdeValue.
+ * 
+ * With an offset of 0 or more only count entries of a table are sent,
+ * starting at that offset in lua_next order, preceded by the number of
+ * entries in the whole table: "100000|x[1]=abc|x[2]=def|" in text. This
+ * lets the IDE page through a large table without the whole table ever
+ * being held in a reply. Entries that are tables are sent as handles.
  * 
  * This is called from the IDE
  */
-void LuaDebugger::getLocalVarValue(lua_State *L, int nLevel, char* var, char *val)
+void LuaDebugger::getLocalVarValue(lua_State *L, int nLevel, const char* var, ReplyWriter& reply, long offset, long count)
 {
 	lua_Debug ar;
 	
-	strcat(val, "notFound");
-
-	if ( lua_getstack (L, nLevel, &ar) )
+	if ( var != NULL && lua_getstack (L, nLevel, &ar) )
 	{
 		int i = 1;
-        const char *name, *type;
+        const char *name;
         while ((name = lua_getlocal(L, &ar, i++)) != NULL) {
         	if (strcmp(var, name) == 0) {
 				int ntype = lua_type(L, -1);
-				type = lua_typename(L, ntype);
-				char value[64];
 				
 				switch(ntype)
 				{
 				  case LUA_TNUMBER:
-	                lua_number2str(value, lua_tonumber(L, -1));
-					val[0] = '\0';
-				    strcat(val, value);
-					break;
 				  case LUA_TSTRING:
-					sprintf(value, "%.63s", lua_tostring(L, -1));
-					val[0] = '\0';
-				    strcat(val, value);
-					break;
 		          case LUA_TBOOLEAN: 
-		            sprintf(value, "%s", lua_toboolean(L, i) ? "true" : "false"); 
-					val[0] = '\0';
-				    strcat(val, value);
+				    reply.text(toDisplayString(L, -1));
 		            break; 
+				  case LUA_TTABLE:
+					// the index and value is sent because it
+					// could be an associative array, x["a"]="abc"
+					writeTable(L, -1, name, reply, offset, count);
+					break;
 				  default:
-					if (strcmp(type, "table") == 0) {
-						// make a "|" delimted list of the table values
-					    // Print table contents.
-						//printf("%s %s {\n",
-						//	lua_typename(L, lua_type(L, -1)), name);
-				
-					    lua_pushnil(L);  /* first key */
-					    char buf[80];
-					    val[0] = '\0';
-						char *printitValue = new char[80];
-					    while (lua_next(L, -2) != 0) {
-					    	// the index and value is printed because it
-					    	// could be an associative array, x["a"]="abc"
-					        sprintf(buf, "%s[", name);
-					        strcat(val, buf);
-					        sprintf(buf, "%s", LuaDebugger::printIt(L, -2, printitValue));
-					        strcat(val, buf);
-					        sprintf(buf, "]=");
-					        strcat(val, buf);
-					        sprintf(buf, "%s", LuaDebugger::printIt(L, -1, printitValue));
-					        strcat(val, buf);
-					        strcat(val, "|");
-					        
-					        /* removes 'value'; keeps 'key' for next iteration */
-					        lua_pop(L, 1);
-					    }
-					    //printf("}\n");
-					} else {
-						sprintf(value,"type %s not yet displayable", type);
-						val[0] = '\0';
-					    strcat(val, value);
-					}
+					reply.text(toIdeValue(L, -1));
 					break;
 			    } // end switch
 
         		lua_pop(L, 1);
-        		break; // out of while
+        		return;
         	}
 
 			lua_pop(L, 1);  /* remove variable value */
         }
 	}
+	
+	reply.text("notFound");
 }
 
 /* This method finds globals and returns them in a "|" delimited list
- * The "val" buffer is allocated by the callee
  * 
  * In order to handle table in the global section, the sections of
  * information look like:
@@ -711,105 +1430,49 @@ void LuaDebugger::getLocalVarValue(lua_State *L, int nLevel, char* var, char *va
  * var=val|
  * etc|
  * 
- * This is the easiest way to serialize structure data.
- * Note that table of tables is not handled.
+ * This is the easiest way to serialize structure data. The markers come
+ * from TextReplyWriter; a binary reply marks tables with typed fields.
+ * Tables inside a global table are sent as handles, see toIdeValue.
  */
-void LuaDebugger::getGlobals(lua_State *L, char *val)
+void LuaDebugger::getGlobals(lua_State *L, ReplyWriter& reply)
 {
-	const char *name, *type;
-	
-	val[0] = '\0';
-	
 	lua_pushvalue(L, LUA_GLOBALSINDEX);
 
 	lua_pushnil(L);  /* first key */
 	while (lua_next(L, -2))
 	{
-		int i = 1;
-        
 		if (lua_isfunction(L,-1)) {
 			// functions are globals but do not have much info to print
 			lua_pop(L, 1); // pop value, keep key for next iteration;
 			continue;
 		}
 		
-		name = lua_tostring(L, -2);
+		string name = toDisplayString(L, -2);
 
 		int ntype = lua_type(L, -1);
-		type = lua_typename(L, ntype);
-		char value[64];
 		
 		switch(ntype)
 		{
 		  case LUA_TNUMBER:
-            lua_number2str(value, lua_tonumber(L, -1));
-			strcat(val,name);
-			strcat(val,"=");
-		    strcat(val, value);
-		    strcat(val, "|");
-			break;
 		  case LUA_TSTRING:
-			sprintf(value, "%.63s", lua_tostring(L, -1));
-			strcat(val,name);
-			strcat(val,"=");
-		    strcat(val, value);
-		    strcat(val, "|");
-			break;
           case LUA_TBOOLEAN: 
-            sprintf(value, "%s", lua_toboolean(L, i) ? "true" : "false"); 
-			strcat(val,name);
-			strcat(val,"=");
-		    strcat(val, value);
-		    strcat(val, "|");
+			reply.entry(name, toDisplayString(L, -1));
             break; 
+		  case LUA_TTABLE:
+			// the index and value is sent because it
+			// could be an associative array, x["a"]="abc"
+			reply.tableBegin(name);
+		    lua_pushnil(L);  /* first key */
+		    while (lua_next(L, -2) != 0) {
+		        reply.entry(name + "[" + toDisplayString(L, -2) + "]",
+		        		toIdeValue(L, -1));
+		        /* removes 'value'; keeps 'key' for next iteration */
+		        lua_pop(L, 1);
+		    }
+		    reply.tableEnd();
+			break;
 		  default:
-			if (strcmp(type, "table") == 0) {
-				// careful "package[config]" has funny chars in it
-				
-				// make a "|" delimted list of the table values
-			    // Print table contents.
-				//printf("%s %s {\n",
-				//	lua_typename(L, lua_type(L, -1)), name);
-		
-			    lua_pushnil(L);  /* first key */
-			    char buf[80];
-			    char tmpbuf[200];
-			    strcat(val, "startglobaltable=startglobaltable|");
-				char value[80];
-			    while (lua_next(L, -2) != 0) {
-				    tmpbuf[0] = '\0';
-				    
-			    	// the index and value is printed because it
-			    	// could be an associative array, x["a"]="abc"
-			        sprintf(buf, "%s[", name);
-			        strcat(tmpbuf, buf);
-			        sprintf(buf, "%s", LuaDebugger::printIt(L, -2, value));
-			        strcat(tmpbuf, buf);
-			        sprintf(buf, "]=");
-			        strcat(tmpbuf, buf);
-			        sprintf(buf, "%s", LuaDebugger::printIt(L, -1, value));
-			        strcat(tmpbuf, buf);
-			        strcat(tmpbuf, "|");
-			        
-			    	// don't waste time for chars with newlines, these blow things
-			    	// up in the IDE
-				    if (strchr(tmpbuf, '\n') != NULL ||
-				    	strchr(tmpbuf, 13) != NULL) {
-				    	lua_pop(L, 1);
-				    	continue;
-				    } 
-				    
-				    strcat(val, tmpbuf);
-			        /* removes 'value'; keeps 'key' for next iteration */
-			        lua_pop(L, 1);
-			    }
-			    strcat(val, "endglobaltable=endglobaltable|");
-			    //printf("}\n");
-			} else {
-				sprintf(value,"type %s = not yet displayable", type);
-				val[0] = '\0';
-			    strcat(val, value);
-			}
+			reply.entry(name, toIdeValue(L, -1));
 			break;
 	    } // end switch
 
@@ -820,6 +1483,166 @@ void LuaDebugger::getGlobals(lua_State *L, char *val)
 }
 
 
+/*
+ * Sends the stack and the values that changed ahead of a suspended event,
+ * so the IDE can show where the script stopped without asking for them:
+ * 
+ * snapshot stack file|line|function|x|#file|line|function|#
+ * snapshot changes 2:x=5|G:count=12|
+ * 
+ * The lines are the replies to "stackforide" and "changes", always in the
+ * text format since they go out on the event socket.
+ */
+void LuaDebugger::sendSnapshot(lua_State *L)
+{
+	TextReplyWriter stack;
+	ideStackTrace(L, stack);
+	TextReplyWriter changes;
+	getChanges(L, changes);
+	
+	ostringstream ostr;
+	ostr << "snapshot stack " << stack.str() << endl;
+	ostr << "snapshot changes " << changes.str() << endl;
+	sendEvent(ostr.str());
+}
+
+/*
+ * Tells the IDE the script stopped, sending the snapshot and then the
+ * suspended event, e.g. "suspended step". Sent once per stop; the matching
+ * resumed event was sent by the command that let the script run.
+ */
+void sendSuspended(lua_State *L, const string& event) {
+	LuaDebugger::sendSnapshot(L);
+	sendEvent(event + "\n");
+}
+
+/*
+ * Replaces the values in reportedValues whose keys start with prefix,
+ * "2:" or "G:", with the given ones, replying with those that changed.
+ * With removed set, a value no longer there is replied as "@", which no
+ * value sent by toIdeValue can be. With changed set every value is
+ * replied.
+ */
+void replaceReported(const string& prefix, map<string, string>& values, ReplyWriter& reply, bool removed, bool changed)
+{
+	// the keys with the prefix sort from prefix to the prefix with its
+	// ':' replaced by the next character
+	string end = prefix.substr(0, prefix.length() - 1) + (char) (':' + 1);
+	map<string, string>::iterator first = reportedValues.lower_bound(prefix);
+	map<string, string>::iterator last = reportedValues.lower_bound(end);
+	map<string, string>::iterator it;
+	for (it = values.begin(); it != values.end(); it++) {
+		map<string, string>::iterator reported = changed ? last : reportedValues.find(it->first);
+		if (reported == last || reported->second != it->second) {
+			reply.entry(it->first, it->second);
+		}
+	}
+	if (removed) {
+		for (it = first; it != last; it++) {
+			if (values.find(it->first) == values.end()) {
+				reply.entry(it->first, "@");
+			}
+		}
+	}
+	reportedValues.erase(first, last);
+	reportedValues.insert(values.begin(), values.end());
+}
+
+/*
+ * Replies with the locals and globals whose values changed since the last
+ * time this was called, see reportedValues, as name=value entries:
+ * 
+ * 2:x=5|2:s=abc|G:count=12|G:old=@|
+ * 
+ * A local is named by the depth of its frame from the bottom of the stack
+ * and its name, a global by "G:" and its name. A global that no longer
+ * exists has the value "@". Functions are not globals here, as in
+ * getGlobals. The first call, and "changes all", reply with everything.
+ * 
+ * Only the frames that may have run since the last call are read, see
+ * hookDepth, so a step within one function reads one frame however deep
+ * the stack. The globals are all read and compared each time. A table,
+ * function or userdata is compared by its handle, so a change inside a
+ * table is not replied.
+ */
+void LuaDebugger::getChanges(lua_State *L, ReplyWriter& reply)
+{
+	lua_Debug ar;
+	
+	int levels = 0;
+	while ( lua_getstack (L, levels, &ar) ) { levels++; }
+	
+	// the frames below ranFrom have not run since the last call
+	int ranFrom = 0;
+	if (depthState == L && hookDepth == levels && !upvaluesRan) {
+		ranFrom = lowestRunDepth - 1;
+		for (int depth = ranFrom < 0 ? 0 : ranFrom; depth < (int) reportedUpvalues.size(); depth++) {
+			if (reportedUpvalues[depth]) {
+				// it ran and may have set a local further down
+				ranFrom = 0;
+				break;
+			}
+		}
+	}
+	
+	vector<string> functions(levels);
+	vector<bool> upvalues(levels);
+	for (int level = 0; level < levels && lua_getstack (L, level, &ar); level++)
+	{
+		lua_getinfo(L, "Su", &ar);
+		int depth = levels - 1 - level;
+		ostringstream function;
+		function << ar.source << ":" << ar.linedefined;
+		functions[depth] = function.str();
+		upvalues[depth] = ar.nups > 0 && strcmp(ar.what, "C") != 0;
+		bool sameFunction = depth < (int) reportedFunctions.size() &&
+				reportedFunctions[depth] == functions[depth];
+		if (depth < ranFrom && sameFunction) {
+			continue;
+		}
+		
+		ostringstream prefix;
+		prefix << depth << ":";
+		map<string, string> locals;
+		int i = 1;
+        const char *name;
+        while ((name = lua_getlocal(L, &ar, i++)) != NULL) {
+        	string key = prefix.str() + name;
+        	// the first local with a name is the one "var" shows
+        	if (strcmp(name, "(*temporary)") != 0 && locals.find(key) == locals.end()) {
+        		locals[key] = toIdeValue(L, -1);
+        	}
+        	lua_pop(L, 1);
+        }
+        replaceReported(prefix.str(), locals, reply, false, !sameFunction);
+	}
+	// forget the locals of the frames that have returned
+	for (int depth = levels; depth < (int) reportedFunctions.size(); depth++) {
+		ostringstream prefix;
+		prefix << depth << ":";
+		map<string, string> none;
+		replaceReported(prefix.str(), none, reply, false, false);
+	}
+	
+	map<string, string> globals;
+	lua_pushnil(L);  /* first key */
+	while (lua_next(L, LUA_GLOBALSINDEX))
+	{
+		if (!lua_isfunction(L, -1)) {
+			globals["G:" + toDisplayString(L, -2)] = toIdeValue(L, -1);
+		}
+		lua_pop(L, 1); // pop value, keep key for next iteration
+	}
+	replaceReported("G:", globals, reply, true, false);
+	
+	reportedFunctions.swap(functions);
+	reportedUpvalues.swap(upvalues);
+	depthState = L;
+	hookDepth = levels;
+	lowestRunDepth = levels;
+	upvaluesRan = false;
+}
+
 void LuaDebugger::stackDump (lua_State *L) { 
       char value[64];
       int i=lua_gettop(L);  
@@ -843,30 +1666,15 @@ void LuaDebugger::stackDump (lua_State *L) {
 } 
 
 /*
- * This collects the Lua stack information in a "|" separated list
- * and returns it in the var "results" that is allocated by the callee
+ * This collects the Lua stack information in a "|" separated list,
+ * from the bottom of the stack to the top
  */
-void LuaDebugger::stackDumpForIde (lua_State *L, char *results) { 
-      char value[64];
+void LuaDebugger::stackDumpForIde (lua_State *L, ReplyWriter& reply) { 
       int top = lua_gettop(L); 
       int i;
       
       for (i=1; i<=top; i++) {
-        int t = lua_type(L, i); 
-        switch (t) { 
-          case LUA_TSTRING: 
-        	  strcat(results, lua_tostring(L, i)); 
-              break; 
-          case LUA_TBOOLEAN: 
-        	  strcat(results, lua_toboolean(L, i) ? "true" : "false");
-              break; 
-          case LUA_TNUMBER: 
-            lua_number2str(value, lua_tonumber(L, -1));
-            strcat(results, value); 
-            break; 
-         default: strcat(results, lua_typename(L, t)); break; 
-        }
-        strcat(results, "|");
+        reply.value(toDisplayString(L, i));
       }  
 } 
 
@@ -926,79 +1734,86 @@ int LuaDebugger::listvars (lua_State *L, int level) {
   return 1;
 }
 
-void LuaDebugger::commandParser(lua_State *L, lua_Debug *ar) {
+/**
+ * Read and run commands until one resumes the script. With running set the
+ * script has not stopped: the commands the IDE sent meanwhile run, and
+ * unless one of them is "suspend" the script goes on once they are done.
+ * Returns whether the script stopped.
+ */
+bool LuaDebugger::commandParser(lua_State *L, lua_Debug *ar, bool running) {
 	
-	const int lineLen = 160;
-	char line[lineLen];
+    std::string command;
+    vector<char> lineBuffer;
+    char *line;
     char *pCmd;
     char *pLine;
     char *p;
     int lineNumber;
     bool keepGoing = true;
     bool commandError = false;
+    // the commands of a batch still to run, and the replies of those run
+    deque<string> batchCommands;
+    vector<string> replies;
+
+    // the script may have run since the tables were last paged through
+    lua_pushnil(L);
+    lua_setfield(L, LUA_REGISTRYINDEX, tablePagesKey);
 
-    if (debugger == ide) {
-    	// printf("event commands\n");
-    	ostringstream ostr;
-        //ostr << "started" << endl;
-        //eventSocket << ostr.str();
-        ostr << "resumed client" << endl;
-        eventSocket << ostr.str();
-        ostr << "suspended step" << endl;
-        eventSocket << ostr.str();
-        // printf("sent event commands\n");
-    }
-    
     // some commands like "step" and "continue" resume execution while all
     // the others do not. The ones that do not will just keep looping here
     while (keepGoing) {
     	keepGoing = true;
-    	if (debugger == ldb) {
+    	if (batchReplies != NULL && batchCommands.empty()) {
+    		// every command of the batch has replied, send the replies
+    		// in one frame, in the order of the commands
+    		batchReplies = NULL;
+    		BinaryReplyWriter batch;
+    		for (size_t i = 0; i < replies.size(); i++) {
+    			batch.reply(replies[i]);
+    		}
+    		replies.clear();
+    		sendReply(batch);
+    	}
+    	if (!batchCommands.empty()) {
+    		// the commands of a batch have no correlation id of their own,
+    		// the batch replies for them
+    		command = batchCommands.front();
+    		batchCommands.pop_front();
+    	} else if (debugger == ldb) {
 	        printf("ldb> ");
-	        cin.getline(line, sizeof(line));
+	        if (!getline(cin, command)) {
+	        	// no more commands, e.g. they were piped in, so run
+	        	// the script to the end instead of prompting forever
+	        	printf("\n");
+	        	debuggerStates = CONTINUING;
+	        	return !running;
+	        }
     	} else {
-    		std::string data;
     		try {
                 // printf("trying to get socket data\n");
-    		    newSocket >> data;
-
-    		    if (data.empty()) {
-    		    	printf("No command given\n");
-    		    	continue;
+    		    if (!readCommand(command, !running)) {
+    		    	// all that was sent while running has run
+    		    	return false;
     		    }
-
-    		    // did we get all the command input
-    		    size_t found = data.find("\n");
-    		    int max = 5;
-    		    int count = 0;
-    		    while (found == string::npos) {
-    		    	std::string tmpstr = data;
-    		    	newSocket >> data;
-    		    	data = tmpstr + data;
-    		    	found = data.find("\n");
-    		    	if (count++ >= max) {
-    		    		keepGoing = false;
-    		    		printf("could not get full command string after %d times", count);
-    		    		break; // something wrong, don't loop forever
-    		    	}
-    		    }
-    		    // printf("got socket data %s\n", data.c_str());
     		} catch ( SocketException& ) { 
     			printf("received socket exception\n");
-    			return;
+    			return !running;
     		}
     		
-            strncpy(line, const_cast<char*>(data.c_str()), lineLen-1);
-            if ((int)data.length() > lineLen) {
-                // never happens with the small strings of commands, safety
-                line[lineLen-1] = '\0';
-            }
-    		
+    		// split off the correlation id, "17 var 2 x" is command
+    		// "var 2 x" with id 17
+    		size_t idEnd = command.find(' ');
+    		requestId = command.substr(0, idEnd);
+    		if (idEnd == string::npos) {
+    			command = "";
+    		} else {
+    			command.erase(0, idEnd + 1);
+    		}
     	}
-	    
-	    if (strlen(line) == 0) {
-	    	continue; // they just hit a carriage return with no command
-	    }
+    	
+    	lineBuffer.assign(command.begin(), command.end());
+    	lineBuffer.push_back('\0');
+    	line = &lineBuffer[0];
 	    
 	    //  Now test for, and remove that newline character
 	    if ((p = strchr(line, '\n')) != NULL) {
@@ -1009,75 +1824,191 @@ void LuaDebugger::commandParser(lua_State *L, lua_Debug *ar) {
 	    }
 	    
 	    pCmd = strtok(line, " ");
+	    if (pCmd == NULL) {
+	    	if (debugger == ide) {
+	    		sendReply("ERROR, no command given");
+	    	}
+	    	continue; // they just hit a carriage return with no command
+	    }
 	    commandError = false;
 	    
+	    // the text and binary writers for structured replies
+	    TextReplyWriter text;
+	    BinaryReplyWriter binary;
+	    
 	    // Only a few letters of a command are needed, e.g. l for list
-	    if (strstr(pCmd, getGlobalsCmd) == pCmd) {
-	    	char val[8096];
+	    if (batchReplies != NULL &&
+	    		(strcmp(pCmd, batchCmd) == 0 || strcmp(pCmd, protocolCmd) == 0 ||
+	    		 strstr(pCmd, stepCmd) == pCmd || strstr(pCmd, continueCmd) == pCmd ||
+	    		 strstr(pCmd, resumeCmd) == pCmd || strstr(pCmd, quitCmd) == pCmd)) {
+	    	// the batch has to finish before the script runs on or the
+	    	// replies change format
+	    	sendReply("ERROR, not allowed in a batch");
+	    } else if (strcmp(pCmd, batchCmd) == 0) {
+	    	// syntax is:
+	    	//   batch n
+	    	// followed by n lines with a command each, without correlation
+	    	// ids. The commands run in order as if sent one by one, and
+	    	// their replies are sent back in one frame for the batch, a
+	    	// BATCH_REPLY field holding each reply's payload, so a client
+	    	// on a slow link waits one round trip for all of them
+	    	const char* pCount = strtok(NULL, " ");
+	    	int count = pCount == NULL ? 0 : atoi(pCount);
+	    	if (debugger == ldb) {
+	    		printf("batch is only used by the IDE\n");
+	    	} else {
+		    	try {
+		    		for (int i = 0; i < count; i++) {
+		    			string subCommand;
+		    			readCommand(subCommand, true);
+		    			batchCommands.push_back(subCommand);
+		    		}
+		    	} catch ( SocketException& ) {
+		    		printf("received socket exception\n");
+		    		return !running;
+		    	}
+		    	if (count <= 0) {
+		    		sendReply("ERROR, invalid or no command count");
+		    	} else if (!binaryReplies) {
+		    		// a text line can not hold several replies
+		    		batchCommands.clear();
+		    		sendReply("ERROR, batch needs binary replies");
+		    	} else {
+		    		batchReplies = &replies;
+		    	}
+	    	}
+	    } else if (strcmp(pCmd, protocolCmd) == 0) {
+	    	// syntax is:
+	    	//   protocol binary|text
+	    	//   protocol compress threshold
+	    	// the reply is sent in the old format, everything after it in
+	    	// the new one
+	    	const char* which = strtok(NULL, " ");
+	    	if (debugger == ldb) {
+	    		printf("protocol is only used by the IDE\n");
+	    	} else if (which != NULL && strcmp(which, "binary") == 0) {
+	    		sendReply("ok binary");
+	    		binaryReplies = true;
+	    	} else if (which != NULL && strcmp(which, "text") == 0) {
+	    		sendReply("ok text");
+	    		binaryReplies = false;
+	    	} else if (which != NULL && strcmp(which, "compress") == 0) {
+	    		// only binary frames are compressed, a threshold of 0
+	    		// turns it off
+	    		const char* pThreshold = strtok(NULL, " ");
+	    		int threshold = pThreshold == NULL ? -1 : atoi(pThreshold);
+	    		if (threshold < 0) {
+	    			sendReply("ERROR, invalid or no threshold");
+	    		} else if (!binaryReplies) {
+	    			sendReply("ERROR, compress needs binary replies");
+	    		} else {
+	    			sendReply("ok compress");
+	    			compressThreshold = threshold;
+	    		}
+	    	} else {
+	    		sendReply("ERROR, unknown protocol");
+	    	}
+	    } else if (strstr(pCmd, getGlobalsCmd) == pCmd) {
+	    	TextReplyWriter markedText(true);
+	    	ReplyWriter& reply = replyWriter(markedText, binary);
 	    	
-	    	getGlobals(L, val);
+	    	getGlobals(L, reply);
 	    
 	    	if (debugger == ldb) {
-	    		cout << val;
+	    		cout << reply.str();
 	    	} else {
-	    		ostringstream ostr;
-	    	    ostr << val << endl;
-	    		newSocket << ostr.str();
+	    		sendReply(reply);
 	    	}
 
 	    } else if (strstr(pCmd, dataForIdeCmd) == pCmd) {
-	    	char val[1024];
-	    	val[0] = '\0';
-	    	stackDumpForIde(L, val);
+	    	ReplyWriter& reply = replyWriter(text, binary);
+	    	stackDumpForIde(L, reply);
 	    	if (debugger == ldb) {
-	    		cout << val;
+	    		cout << reply.str();
 	    	} else {
-	    		ostringstream ostr;
-	    	    ostr << val << endl;
-	    		newSocket << ostr.str();
+	    		sendReply(reply);
+	    	}
+	    } else if (strstr(pCmd, changesCmd) == pCmd) {
+	    	// syntax is:
+	    	//   changes [all]
+	    	// "all" forgets what was reported so everything is sent again
+	    	const char* which = strtok(NULL, " ");
+	    	if (which != NULL && strcmp(which, "all") == 0) {
+	    		reportedValues.clear();
+	    		reportedFunctions.clear();
+	    	}
+	    	ReplyWriter& reply = replyWriter(text, binary);
+	    	getChanges(L, reply);
+	    	if (debugger == ldb) {
+	    		cout << reply.str();
+	    	} else {
+	    		sendReply(reply);
+	    	}
+	    } else if (strstr(pCmd, expandCmd) == pCmd) {
+	    	// syntax is:
+	    	//   expand handle offset count
+	    	char *pHandle = strtok(NULL, " ");
+	    	char *pOffset = strtok(NULL, " ");
+	    	char *pCount = strtok(NULL, " ");
+	    	ReplyWriter& reply = replyWriter(text, binary);
+	    	if (pHandle == NULL) {
+	    		reply.text("notFound");
+	    	} else {
+	    		LuaDebugger::expandHandle(L, atol(pHandle), reply,
+	    				pOffset == NULL ? 0 : atol(pOffset),
+	    				pCount == NULL ? 0 : atol(pCount));
+	    	}
+	    	if (debugger == ldb) {
+	    		cout << reply.str();
+	    	} else {
+	    		sendReply(reply);
 	    	}
 	    } else if (strstr(pCmd, varForIdeCmd) == pCmd) {
 	    	char *pFrameNumber = strtok(NULL, " ");
-	        // atoi returns 0 for null or non-digit input
-	        int frameNumber = atoi(pFrameNumber);
+	        // atoi returns 0 for non-digit input
+	        int frameNumber = pFrameNumber == NULL ? 0 : atoi(pFrameNumber);
 	        
 	        char *var = strtok(NULL, " ");
 	        
-	        // large because it could be table values returned
-	    	char val[8096];
-	    	val[0] = '\0';
+	        // an offset and count ask for a page of a table's entries
+	        char *pOffset = strtok(NULL, " ");
+	        char *pCount = strtok(NULL, " ");
+	        long offset = -1;
+	        long count = 0;
+	        if (pOffset != NULL && pCount != NULL) {
+	        	offset = atol(pOffset);
+	        	count = atol(pCount);
+	        }
 	        
-	    	LuaDebugger::getLocalVarValue(L, frameNumber, var, val);
+	    	ReplyWriter& reply = replyWriter(text, binary);
+	    	LuaDebugger::getLocalVarValue(L, frameNumber, var, reply, offset, count);
 	    	if (debugger == ldb) {
-	    		cout << val;
+	    		cout << reply.str();
 	    	} else {
-	    		ostringstream ostr;
-	    	    ostr << val << endl;
-	    		newSocket << ostr.str();
+	    		sendReply(reply);
 	    	}
 	    } else if (strstr(pCmd, stackForIdeCmd) == pCmd) {
-    		char str[2048];
-    		str[0] = '\0';
-    		LuaDebugger::ideStackTrace(L, str);
+	    	ReplyWriter& reply = replyWriter(text, binary);
+    		LuaDebugger::ideStackTrace(L, reply);
 	    	if (debugger == ldb) {
-	    		cout << str;
+	    		cout << reply.str();
 	    	} else {
-	    		//printf("idestack: %s", str);
-	    		//newSocket << str;
-	    		ostringstream ostr;
-	    	    ostr << str << endl;
-	    		newSocket << ostr.str();
+	    		sendReply(reply);
 	    	}
 	    } else if (strstr(pCmd, suspendCmd) == pCmd) {
 	    	// the "suspend" button of the IDE has been clicked
 	    	if (debugger == ldb) {
 	    		cout << "ok";
 	    	} else {
-	    		newSocket << "ok\n";
+	    		sendReply("ok");
 	    		
-	    		ostringstream ostr;
-	            ostr << "suspended client" << endl;
-	            eventSocket << ostr.str();
+	    		if (running) {
+	    			// stop here and wait for commands
+	    			running = false;
+	    			sendSuspended(L, "suspended client");
+	    		} else {
+	    			sendEvent("suspended client\n");
+	    		}
 	    	}
 	    } else if (strstr(pCmd, listCmd) == pCmd) {
 	    	int firstLine, lastLine;
@@ -1121,7 +2052,11 @@ void LuaDebugger::commandParser(lua_State *L, lua_Debug *ar) {
 	    	}
 	    	
 	    	if (commandError) {
-	    		printf(invalidCommand);
+	    		if (debugger == ldb) {
+	    			printf(invalidCommand);
+	    		} else {
+	    			sendReply("ERROR, invalid command");
+	    		}
 	    	} else {
 	            lua_getinfo(L, "Sl", ar);
 	            	  
@@ -1136,59 +2071,106 @@ void LuaDebugger::commandParser(lua_State *L, lua_Debug *ar) {
 		    	    	// already has the lines
 		    	    }
 	            }
+	            if (debugger == ide) {
+	            	sendReply("ok");
+	            }
 	    	}
 
+	    } else if (strcmp(pCmd, setBreakpointsCmd) == 0) {
+	    	// replace all the breakpoints of a file at once, so the IDE
+	    	// sends one command per file instead of one per breakpoint
+	    	// syntax is:
+	    	//   setbreakpoints file line,line,...
+	    	//   setbreakpoints file none
+	    	// the file name runs to the last space, so it may hold spaces
+	    	size_t fileStart = command.find(' ');
+	    	size_t linesStart = command.rfind(' ');
+	    	vector<int> lines;
+	    	bool valid = fileStart != string::npos && linesStart > fileStart;
+	    	if (valid && command.compare(linesStart + 1, string::npos, "none") != 0) {
+	    		const char* pLines = command.c_str() + linesStart + 1;
+	    		while (valid) {
+	    			char* end;
+	    			long number = strtol(pLines, &end, 10);
+	    			valid = end != pLines && number > 0 && (*end == ',' || *end == '\0');
+	    			lines.push_back((int) number);
+	    			if (*end != ',') {
+	    				break;
+	    			}
+	    			pLines = end + 1;
+	    		}
+	    	}
+	    	string file;
+	    	if (valid) {
+	    		file = command.substr(fileStart + 1, linesStart - fileStart - 1);
+	    		valid = breakpoints.lines(canonicalFile(file)).assign(lines);
+	    	}
+	    	if (!valid) {
+	    		if (debugger == ldb) {
+	    			printf("Syntax error, invalid or no file or line numbers\n");
+	    		} else {
+	    			sendReply("ERROR, invalid or no file or line numbers");
+	    		}
+	    	} else if (debugger == ldb) {
+	    		printf("%d breakpoints in %s\n", (int) lines.size(), file.c_str());
+	    	} else {
+	    		sendReply("ok setbreakpoints");
+	    	}
 	    } else if (strstr(pCmd, setbreakCmd) == pCmd) {
 	    	// set a breakpoint
 	    	// syntax is:
-	    	//   break line
+	    	//   break line [file]
+	    	// in the current script if no file is given
 	    	pLine = strtok(NULL, " ");
 	    	// atoi returns 0 for null or non-digit input
-	    	lineNumber = atoi(pLine); 
-	    	if (pLine == NULL || lineNumber == 0) {
-	    		printf("Syntax error, invalid or no line number\n");
+	    	lineNumber = pLine == NULL ? 0 : atoi(pLine); 
+	    	const char* pFile = strtok(NULL, "");
+	    	string file = pFile == NULL ? sourceFile(ar->source) : canonicalFile(pFile);
+	    	if (!LuaDebugger::setBreakPointList(file.c_str(), lineNumber)) {
+	    		if (debugger == ldb) {
+	    			printf("Syntax error, invalid or no line number\n");
+	    		} else {
+	    			sendReply("ERROR, invalid or no line number");
+	    		}
 	    	} else {
-		    	LuaDebugger::setBreakPointList(ar->source, lineNumber);
 		    	ostringstream ostr;
-	    		ostr << "setting breakpoint at " << ar->source << " line " << lineNumber << endl;
+	    		ostr << "setting breakpoint at " << file << " line " << lineNumber;
 	    		// ostr << LuaDebugger::getFileLine(ar->source, lineNumber) << endl;
 		    	// printf("setting breakpoint at %s line %i \n", ar->source, lineNumber);
 		    	// string l = ostr.str() + 
 		    	//  LuaDebugger::getFileLine(ar->source, lineNumber);
 		    	if (debugger == ldb) {
-				    cout << ostr.str();
+				    cout << ostr.str() << endl;
 		    	} else {
-		    		newSocket << ostr.str();
+		    		sendReply(ostr.str());
 		    	}
 	    	}
 	    } else if (strstr(pCmd, clrbreakCmd) == pCmd) {
 	    	// remove the breakpoint
 	    	// syntax is:
-	    	//    clear line
+	    	//    clear line [file]
+	    	// in the current script if no file is given
 	    	pLine = strtok(NULL, " ");
 	    	// atoi returns 0 for null or non-digit input
-	    	lineNumber = atoi(pLine);
-	    	if (pLine == NULL || lineNumber == 0) {
-	    		printf("Syntax error, invalid or no line number\n");
+	    	lineNumber = pLine == NULL ? 0 : atoi(pLine);
+	    	const char* pFile = strtok(NULL, "");
+	    	string file = pFile == NULL ? sourceFile(ar->source) : canonicalFile(pFile);
+	    	if (lineNumber == 0) {
+	    		if (debugger == ldb) {
+	    			printf("Syntax error, invalid or no line number\n");
+	    		} else {
+	    			sendReply("ERROR, invalid or no line number");
+	    		}
 	    	} else {
-	    		vector<int> list = getBreakPointList(ar->source);
-	    		
-	    		// remove from the breakPoint vector
-	    		std::vector<int>::iterator itVectorData;
-	    		for(itVectorData = list.begin(); itVectorData != list.end(); itVectorData++)
-	    		{
-	    			int breakPoint = *(itVectorData);
-	    			if (breakPoint == lineNumber) {
-	    				list.erase(itVectorData);
-	    				allScriptsBreakpoints[ar->source] = list;
-		    			
-				    	if (debugger == ldb) {
-				    		printf("removing breakpoint at %s line %i \n", ar->source, lineNumber);
-				    	} else {
-				    		newSocket << "ok clear\n";
-				    	}
-		    			break;
-	    			}
+	    		if (breakpoints.lines(file).remove(lineNumber)) {
+			    	if (debugger == ldb) {
+			    		printf("removing breakpoint at %s line %i \n", file.c_str(), lineNumber);
+			    	} else {
+			    		sendReply("ok clear");
+			    	}
+	    		} else if (debugger == ide) {
+	    			// the IDE waits for a reply even when there was nothing to clear
+	    			sendReply("ok clear");
 	    		}
 	    	}
 	    } else if (strstr(pCmd, displayCmd) == pCmd) {
@@ -1207,16 +2189,44 @@ void LuaDebugger::commandParser(lua_State *L, lua_Debug *ar) {
 	    		LuaDebugger::listLocalVariable (L, 0, varName);
 		    	LuaDebugger::listGlobalVariable(L, varName);
 	    	}
+	    	if (debugger == ide) {
+	    		sendReply("ok");
+	    	}
 	    } else if (strstr(pCmd, assignCmd) == pCmd) {
-	        printf("assign command not implemented\n");
+	    	if (debugger == ldb) {
+	    		printf("assign command not implemented\n");
+	    	} else {
+	    		sendReply("ERROR, assign command not implemented");
+	    	}
 	    } else if (strstr(pCmd, stepCmd) == pCmd) {
 	        // syntax is:
-	        //   step
+	        //   step|stepover|stepreturn
+	        //   stepn count
+	        //   stepuntil expression
+	        //   steptoline line depth
 	        //
 	    	// just set the state to step so that the next time the callback
 	    	// function is called by Lua, the parser will be called again,
-	    	// effectively imitating a "step"
-	
+	    	// effectively imitating a "step". "step" stops at the next line
+	    	// run, in a function called or not; "stepover" at the next line
+	    	// of this function, or the one it returns to; "stepreturn" at
+	    	// the next line once this function has returned. "stepn" stops
+	    	// after count lines, as many "step"s; "stepuntil" at the first
+	    	// line where the Lua expression is true; "steptoline" at the
+	    	// line in the frame depth frames deep, 1 for the main chunk
+	    	string error = setStep(L, pCmd);
+	    	if (!error.empty()) {
+	    		if (debugger == ldb) {
+	    			printf("ERROR, %s\n", error.c_str());
+	    		} else {
+	    			sendReply("ERROR, " + error);
+	    		}
+	    		continue;
+	    	}
+	    	const char* reason = "step";
+	    	if (strcmp(pCmd, stepOverCmd) == 0 || strcmp(pCmd, stepReturnCmd) == 0) {
+	    		reason = pCmd;
+	    	}
 	    	debuggerStates = STEPPING;
 	    	
 	    	keepGoing = false;
@@ -1224,13 +2234,11 @@ void LuaDebugger::commandParser(lua_State *L, lua_Debug *ar) {
 	    	if (debugger == ldb) {
 	    		cout << "ok";
 	    	} else {
-	    		newSocket << "ok\n";
+	    		sendReply("ok");
 	    		
-	    		ostringstream ostr;
-	    		ostr << "resumed step" << endl;
-	    	    eventSocket << ostr.str();
-	    	    ostr << "suspended step" << endl;
-	    	    eventSocket << ostr.str();
+	    		// the suspended event, and the snapshot ahead of it, are sent
+	    		// by the hook once the step has been taken
+	    		sendEvent(string("resumed ") + reason + "\n");
 	    	}
 	    } else if (strstr(pCmd, continueCmd) == pCmd ||
 	    		   strstr(pCmd, resumeCmd) == pCmd) {
@@ -1241,6 +2249,7 @@ void LuaDebugger::commandParser(lua_State *L, lua_Debug *ar) {
 	    	// function is called by Lua (line by line), we will only stop if
 	    	// a breakpoint (func/line) matches the current func/line
 	    	debuggerStates = CONTINUING;
+	    	resetStep(L);
 	    	
 	    	keepGoing = false;
 	    	
@@ -1248,26 +2257,31 @@ void LuaDebugger::commandParser(lua_State *L, lua_Debug *ar) {
 	    		cout << "ok";
 	    	} else {
 	    		// printf("sending ok from continue\n");
-	    		newSocket << "ok resume\n";
+	    		sendReply("ok resume");
 	    		
 	    		ostringstream ostr;
 	    		ostr << "resumed client" << endl;
-	    		eventSocket << ostr.str();
+	    		sendEvent(ostr.str());
 	    	}
 	    } else if (strstr(pCmd, printCmd) == pCmd) {
 	        // syntax is:
 	        //   print [stack|trace|breakpoints file|stackforide]
 	    	const char* which = strtok(NULL, " ");
-	    	if (strcmp(which, "stack") == 0) {
+	    	if (which == NULL) {
+	    		printf("Syntax error for print command. Nothing to print\n");
+	    	} else if (strcmp(which, "stack") == 0) {
 	    	    stackDump(L);
 	    	} else if (strcmp(which, "trace") ==  0) {
 	    		drawStackTrace(L);
 	    	} else if (strcmp(which, "breakpoints") == 0) {
-	    		vector<int> list = getBreakPointList(ar->source);
-	    		LuaDebugger::printBreakpoints(ar->source, list);
+	    		string file = sourceFile(ar->source);
+	    		LuaDebugger::printBreakpoints(file.c_str(), breakpoints.lines(file).lines());
 	    	} else {
 	    		printf("Syntax error for print command. Don't know how to print %s\n", which);
 	    	}
+	    	if (debugger == ide) {
+	    		sendReply("ok");
+	    	}
 	    } else if (strstr(pCmd, quitCmd) == pCmd) {
 	        // syntax is:
 	        //   quit
@@ -1280,27 +2294,114 @@ void LuaDebugger::commandParser(lua_State *L, lua_Debug *ar) {
 
                 keepGoing = false;
 
+	    	if (debugger == ide) {
+	    		sendReply("ok");
+	    	}
+
 	    } else if (strstr(pCmd, helpCmd) == pCmd) {
 	        // syntax is:
 	    	//   help
 	    	printf("commands can be shortened to 1 or 2 letters, e.g. l for list\n");
 	    	printf("%s", allCmds);
+	    	if (debugger == ide) {
+	    		sendReply("ok");
+	    	}
 	    } else {
 	    	if (debugger == ldb) {
 	    	    printf("ERROR, command not found: %s\n",pCmd);
 	    	} else {
 	    		ostringstream ostr;
-	    		ostr << "ERROR, command not found: " <<  pCmd << endl;
-	    		newSocket << ostr.str();
+	    		ostr << "ERROR, command not found: " <<  pCmd;
+	    		sendReply(ostr.str());
 	    	}
 	    }
 	    
     } // end while
     
+    return !running;
+}
+
+/*
+ * Whether the line hook is needed while the function described by ar,
+ * filled in with "S", runs: while the step being taken can end in it,
+ * otherwise only if a breakpoint lies within the lines of the function. The main chunk spans
+ * the whole script. A tail call does not say where it came from, so it
+ * keeps the line hook on. The function is level frames up the stack, see
+ * stepEndsIn.
+ */
+bool needsLineHook(lua_State *L, lua_Debug *ar, int level) {
+	if (stepEndsIn(L, level) || strcmp(ar->what, "tail") == 0) {
+		return true;
+	}
+	if (strcmp(ar->what, "C") == 0) {
+		return false;
+	}
+	const BreakpointLines* lines = findBreakpoints(L, ar);
+	if (strcmp(ar->what, "main") == 0) {
+		return lines->size() > 0;
+	}
+	return lines->containsRange(ar->linedefined, ar->lastlinedefined);
+}
+
+/*
+ * The call and return hooks are always on. They turn the line hook on
+ * only for the functions that need it, see needsLineHook, so code away
+ * from any breakpoint runs without a hook call per line. For the IDE the
+ * count hook is on too, see runningCheckCount.
+ */
+void setLineHook(lua_State *L, bool on) {
+	int mask = LUA_MASKCALL | LUA_MASKRET | (on ? LUA_MASKLINE : 0);
+	if (debugger == ide) {
+		mask |= LUA_MASKCOUNT;
+	}
+	if (lua_gethookmask(L) != mask) {
+		lua_sethook(L, HookRoutine, mask, runningCheckCount);
+	}
 }
 
 void HookRoutine(lua_State *L, lua_Debug *ar)
 { 
+  if (ar->event == LUA_HOOKCOUNT) {
+	  // the IDE sent commands while the script runs, run them here; they
+	  // may suspend the script or change the breakpoints
+	  if (listener.pending()) {
+		  lua_getinfo(L, "Sl", ar);
+		  LuaDebugger::commandParser(L, ar, true);
+		  setLineHook(L, needsLineHook(L, ar, 0));
+	  }
+	  return;
+  }
+
+  if (ar->event != LUA_HOOKLINE) {
+	  // a call, return or tail return: set the line hook for the function
+	  // that runs next, the caller when returning
+	  // count the frames that run, see hookDepth; a tail call is counted
+	  // as a call and returns with a tail return, as lua_getstack counts it
+	  if (L != depthState) {
+		  depthState = NULL;
+	  } else if (ar->event == LUA_HOOKCALL) {
+		  hookDepth++;
+	  } else if (--hookDepth < lowestRunDepth) {
+		  lowestRunDepth = hookDepth;
+	  }
+	  lua_Debug next;
+	  int level = 0;
+	  if (ar->event == LUA_HOOKCALL) {
+		  next = *ar;
+	  } else if (lua_getstack(L, level = 1, &next) == 0) {
+		  return; // returning from the script
+	  }
+	  lua_getinfo(L, "Su", &next);
+	  if (ar->event == LUA_HOOKCALL && next.nups > 0 && strcmp(next.what, "C") != 0) {
+		  upvaluesRan = true;
+	  }
+	  // setting the hook restarts the count, so a loop that calls in and
+	  // out of a function with a breakpoint may never reach it; the next
+	  // line runs the commands instead
+	  setLineHook(L, listener.pending() || needsLineHook(L, &next, level));
+	  return;
+  }
+
   // Only listen to "Hook Lines" events
   if(ar->event == LUA_HOOKLINE)
   {
@@ -1310,42 +2411,13 @@ void HookRoutine(lua_State *L, lua_Debug *ar)
           // printf("short_src: %s\n", ar->short_src);
 
 	  lua_getinfo(L, "Sl", ar);
-  	  if (debuggerStates == CONTINUING) {
-		  std::vector<int>::iterator itVectorData;
-		  vector <int> list = allScriptsBreakpoints[ar->source];
-		  for(itVectorData = list.begin(); itVectorData != list.end(); itVectorData++)
-		  {
-			int breakPoint = *(itVectorData);
-			
-			// check for linenumber matches
-			if (breakPoint == ar->currentline) { 
-				// We simulate CONTINUING by only calling the parser, which
-				// prompts, when we have hit a breakpoint
-				// debug for now
-				// whereAmI(L, ar);
-			    // print the line that was just executed
-				
-				string l = LuaDebugger::getFileLine(ar->source, ar->currentline);
-				if (debugger == ldb) {
-					printf("\nstopping at breakpoint in %s line %i \n", ar->source, breakPoint);
-				    cout << l << "\n";
-				} else {
-					// don't write to the command soocket
-					// newSocket << l << "\n";
-					// notify the debugger IDE of hitting breakpoint
-					ostringstream ostr;
-					ostr << "resumed client" << endl;
-					eventSocket << ostr.str();
-				    ostr << "suspended breakpoint " << breakPoint << endl;
-				    eventSocket << ostr.str();
-				}
-				
-				//printf("  %i %s\n", ar->currentline, ar->source);
-		        LuaDebugger::commandParser(L, ar);
-		        break;
-			}
-		  } // end for
-  	  } else if (debuggerStates == STEPPING) {
+	  if (listener.pending() && LuaDebugger::commandParser(L, ar, true)) {
+		  // suspended by the IDE at this line and resumed since, do not
+		  // stop at it again
+		  setLineHook(L, needsLineHook(L, ar, 0));
+		  return;
+	  }
+	  if (stepEndsIn(L, 0) && stepEnds(L, ar)) {
 		  // some debug stuff for now
 		  // whereAmI(L, ar);
 		  
@@ -1357,23 +2429,58 @@ void HookRoutine(lua_State *L, lua_Debug *ar)
 		  // print the line that was just executed
 		  string l = LuaDebugger::getFileLine(ar->source, ar->currentline);
 		  if (debugger == ldb) {
+			  if (!stepError.empty()) {
+				  printf("ERROR, stepuntil condition failed: %s\n", stepError.c_str());
+			  }
 		      cout << l << "\n";
+		  } else if (!stepError.empty()) {
+			  // stopped by a condition that failed, the IDE shows the
+			  // error on the thread like any other error event
+			  sendEvent("stepuntilerror " + stepError + "\n");
+			  sendSuspended(L, "suspended event");
 		  } else {
 			  // don't write to the command socket
 			  // newSocket << l << "\n";
 			  // just notify the debugger ide that step has finished
-			  //ostringstream ostr;
-			  //ostr << "resumed step" << endl;
-			  //eventSocket << ostr.str();
-			  //ostr << "suspended step" << endl;
-			  //eventSocket << ostr.str();
+			  sendSuspended(L, "suspended step");
 		  }
 		  				
-		  // The command parser, which prompts, is called on every step
+		  // The command parser, which prompts, is called at the end of
+		  // every step
 	      LuaDebugger::commandParser(L, ar);
 	  } else {
-		  printf("Error: unknown state %d", debuggerStates);
+		  int breakPoint = ar->currentline;
+
+		  // check for linenumber matches, without copying or scanning a
+		  // list; a breakpoint in a call being stepped over stops too
+		  if (findBreakpoints(L, ar)->contains(breakPoint)) {
+			// We simulate CONTINUING by only calling the parser, which
+			// prompts, when we have hit a breakpoint
+			// debug for now
+			// whereAmI(L, ar);
+		    // print the line that was just executed
+			
+			string l = LuaDebugger::getFileLine(ar->source, ar->currentline);
+			if (debugger == ldb) {
+				printf("\nstopping at breakpoint in %s line %i \n", ar->source, breakPoint);
+			    cout << l << "\n";
+			} else {
+				// don't write to the command soocket
+				// newSocket << l << "\n";
+				// notify the debugger IDE of hitting breakpoint, with the
+				// file, so the IDE knows which script stopped
+				ostringstream ostr;
+			    ostr << "suspended breakpoint " << breakPoint << " " << sourceFile(ar->source);
+			    sendSuspended(L, ostr.str());
+			}
+			
+			//printf("  %i %s\n", ar->currentline, ar->source);
+			LuaDebugger::commandParser(L, ar);
+		  }
 	  }
+
+	  // the commands may have continued or changed the breakpoints
+	  setLineHook(L, needsLineHook(L, ar, 0));
   }
 }
 
@@ -1456,6 +2563,10 @@ int LuaDebugger::errormessage(lua_State *L)
 // ldb -n scriptName -b true/false -t ide/ldb -c commandPort -e eventPort
 //        argv[2]       argv[4]       argv[6]    argv[8]        argv[10]
 //
+// "-u socketFile" may take the place of "-c commandPort" to listen on an
+// AF_UNIX socket file instead of a TCP port. The events then always share
+// the command connection.
+//
 // The argv[2] tru/false is whether to buffer the script or not
 int main(int argc, char * argv[])
 {	
@@ -1465,10 +2576,12 @@ int main(int argc, char * argv[])
 	bool bufferScript = true;
 	int commandPort = 0;
 	int eventPort = 0;
+	const char* socketFile = NULL;
 	
-	if (argc != 11) {
+	if (argc != 11 && argc != 5) {
 		printf("argc=%i\n", argc);
-		printf("All params must be given:\n  -n scriptName -b true/false -t ide/ldb -c commandPort -e eventPort\n");
+		printf("All params must be given:\n  -n scriptName -b true/false -t ide/ldb -c commandPort|-u socketFile -e eventPort|none\n");
+		printf("or to run without debugging:\n  -n scriptName -t run\n");
 		printf("%s", argv[0]);
 		int i;
 		for (i = 1; i < argc; i++) {
@@ -1507,6 +2620,8 @@ int main(int argc, char * argv[])
 			case 't':	debuggerType = argv[++i];
 			    if (strcmp(debuggerType, "ide") == 0) {
 			      	debugger = ide;
+			    } else if (strcmp(debuggerType, "run") == 0) {
+			    	debugger = run;
 			    } else {
 			       	debugger = ldb;
 			    }			
@@ -1516,14 +2631,47 @@ int main(int argc, char * argv[])
 			case 'c':	commandPort = atoi(argv[++i]);
 				break;
 
-			// -e for eventPort number
-			case 'e':	eventPort = atoi(argv[++i]);
+			// -u for the AF_UNIX socket file to listen on instead
+			case 'u':	socketFile = argv[++i];
+						sharedEvents = true;
+				break;
+
+			// -e for eventPort number, or none to send the events over
+			// the command connection
+			case 'e':	if (strcmp(argv[++i], "none") == 0) {
+							sharedEvents = true;
+						} else {
+							eventPort = atoi(argv[i]);
+						}
 				break;
 
 		    }
 		}
 	}
 
+	if (debugger == run) {
+		// no hook, sockets or copy of the source lines, and nothing but the
+		// script's own output on stdout, so it runs as in the lua interpreter
+		lua_State *L = lua_open();
+		// stdout is a pipe to the console, fully buffered by default: hand
+		// each line over as it is printed, as on a terminal
+		setvbuf(stdout, NULL, _IOLBF, 0);
+		luaL_openlibs(L);
+		
+		/* stack the debug.traceback function */
+		lua_getglobal(L, "debug");
+		lua_getfield(L, -1, "traceback");
+		lua_remove(L, -2);
+		
+		int error = luaL_loadfile(L, luaScriptName) || lua_pcall(L, 0, 0, -2);
+		if (error) {
+			fflush(stdout); // keep the script's output ahead of the error
+			fprintf(stderr, "%s\n", lua_tostring(L, -1));
+		}
+		lua_close(L);
+		return error ? 1 : 0;
+	}
+
     printf("Script name: %s", luaScriptName);
     printf(" Buffer: %i", bufferScript);
     printf(" Debugger type: %i", debugger);
@@ -1534,29 +2682,54 @@ int main(int argc, char * argv[])
 	
 	if (debugger == ide) {
 		try {
-		      // Create the socket
-		      ServerSocket server ( commandPort );
-	
-			  server.accept (newSocket);
-			  printf("accepted socket %i\n", commandPort);
+		      // Create both sockets before waiting for the IDE. Port 0 lets
+		      // the system pick a free port, so announce the ports with
+		      //   ready commandPort eventPort
+		      // or with "-e none", when events share the command connection,
+		      //   ready commandPort
+		      // or with "-u socketFile"
+		      //   ready socketFile
+		      // the IDE connects as soon as it reads this line.
+		      if (socketFile != NULL) {
+			      ServerSocket server ( socketFile );
+			      printf("ready %s\n", socketFile);
+			      fflush(stdout);
+			      // the file is removed when the listening socket goes
+			      // out of scope, the connection stays open
+				  server.accept (newSocket);
+				  printf("accepted socket %s\n", socketFile);
+		      } else if (sharedEvents) {
+			      ServerSocket server ( commandPort );
+			      printf("ready %i\n", server.port());
+			      fflush(stdout);
+				  server.accept (newSocket);
+				  printf("accepted socket %i\n", server.port());
+		      } else {
+			      ServerSocket server ( commandPort );
+			      ServerSocket eventServer ( eventPort );
+			      printf("ready %i %i\n", server.port(), eventServer.port());
+			      fflush(stdout);
+				  server.accept (newSocket);
+				  printf("accepted socket %i\n", server.port());
+			      eventServer.accept (eventSocket);
+			      printf("accepted socket %i\n", eventServer.port());
+		      }
 		} catch ( SocketException& e ) {
 		      cout << "Exception was caught:" << e.description() << "\nExiting.\n";
+		      return (1);
 		}
-		 
-		try {
-		      // Create the socket
-		      ServerSocket eventServer ( eventPort );
-	
-		      eventServer.accept (eventSocket);
-		      printf("accepted socket %i\n", eventPort);
-		} catch ( SocketException& e ) {
-		      cout << "Exception was caught starting event socket server:" << e.description() << "\nExiting.\n";
+		
+		// read the commands on a thread of their own from now on, so the
+		// IDE can suspend the script while it runs
+		if (!listener.start(newSocket)) {
+		      cout << "Could not start the command listener.\nExiting.\n";
+		      return (1);
 		}
 		
 		try {
 			ostringstream ostr;
 			ostr << "started" << endl;
-			eventSocket << ostr.str();
+			sendEvent(ostr.str());
 		} catch ( SocketException& e ) {
 		      cout << "Exception was caught sending started event:" << e.description() << "\nExiting.\n";
 		}
@@ -1575,8 +2748,9 @@ int main(int argc, char * argv[])
 	    /* Open the standard Lua libraries... such as table, string, math, and the base functions. You don't really need this... but you most definitely will want to call this */
 	    luaL_openlibs(L);
 	
-	    // register the hook that is called on each lua script line
-	    lua_sethook(L, HookRoutine, LUA_MASKLINE, 0);
+	    // register the hook, called on each call and return and on each
+	    // line of the functions that hold a breakpoint, see setLineHook
+	    setLineHook(L, true);
 	    
 	    LuaDebugger::readFile(luaScriptName);
 	    
@@ -1609,9 +2783,11 @@ int main(int argc, char * argv[])
 		  lua_getfield(L, -1, "traceback");
 		  lua_remove(L, -2);
 		  
-          // register the hook that is called on each lua script line
-		  lua_sethook(L, HookRoutine, LUA_MASKLINE, 0);
+          // register the hook, called on each call and return and on each
+          // line of the functions that hold a breakpoint, see setLineHook
+		  setLineHook(L, true);
 
+		  bufferedScriptName = luaScriptName;
 		  error = 
 		     luaL_loadbuffer (L, scriptInBuffer, strlen (scriptInBuffer), luaScriptName) ||
 		     lua_pcall (L, 0, 0, -3);
@@ -1623,7 +2799,7 @@ int main(int argc, char * argv[])
 		    try {
 		        ostringstream ostr;
 		        ostr << "syntaxerror | " << luaScriptName << " | " << lua_tostring (L, -1);
-		        eventSocket << ostr.str();
+		        sendEvent(ostr.str());
 			} catch ( SocketException& e ) {
 			      cout << "Exception was caught sending syntaxerror event:" << e.description() << "\nExiting.\n";
 			}
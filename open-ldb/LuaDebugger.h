@@ -45,11 +45,15 @@ using std::endl;
 #include <fstream>
 using std::ifstream;
 #include <vector>
+#include <deque>
 #include <map>
 #include <string>
 #include <sstream>
 #include "ServerSocket.h"
 #include "SocketException.h"
+#include "CommandListener.h"
+#include "ReplyWriter.h"
+#include "Breakpoints.h"
 
 using namespace std;
 
@@ -79,6 +83,8 @@ using std::ifstream;
 #include <vector>
 #include <map>
 #include <string>
+#include "ReplyWriter.h"
+#include "Breakpoints.h"
 using namespace std;
 
 extern void HookRoutine(lua_State *L, lua_Debug *ar);
@@ -88,8 +94,9 @@ extern void HookRoutine(lua_State *L, lua_Debug *ar);
 /*
  * ldb - a cmdline debugger with input/output via stdin/stdout
  * ide - an eclipse plugin with input/output over sockets
+ * run - no debugger, the script just runs as in the lua interpreter
  */
-enum debuggerType {ldb, ide};
+enum debuggerType {ldb, ide, run};
 
 class LuaDebugger {
 public:
@@ -100,8 +107,8 @@ public:
 static void readSourcefromStringBuffer(const char* source, const char* name);
 static char* readFileIntoString(const char *pFileName);
 static string getFileLine(const char *pFileName, int index);
-static void commandParser(lua_State *L, lua_Debug *ar);
-static void setBreakPointList(const char* scriptName, int lineNumber);
+static bool commandParser(lua_State *L, lua_Debug *ar, bool running = false);
+static bool setBreakPointList(const char* scriptName, int lineNumber);
 static void listLocalVariables (lua_State *L, int level);
 static void listLocalVariable (lua_State *L, int level, const char* localVarName);
 static void listGlobalVariables(lua_State *L);
@@ -114,10 +121,16 @@ static void readFile(const char *pFileName);
 static int errormessage(lua_State *L);
 static void setLineSourceList(const char* scriptName, char* text);
 static int OutputTop(lua_State* L);
-static void ideStackTrace(lua_State *L, char* str);
-static void getLocalVarValue(lua_State *L, int nLevel, char* var, char *val);
-static void stackDumpForIde (lua_State *L, char *results);
-static void getGlobals(lua_State *L, char *val);
+static string toDisplayString(lua_State *L, int index);
+static void ideStackTrace(lua_State *L, ReplyWriter& reply);
+static void getLocalVarValue(lua_State *L, int nLevel, const char* var, ReplyWriter& reply, long offset = -1, long count = 0);
+static string toIdeValue(lua_State *L, int index);
+static void writeTable(lua_State *L, int index, const string& name, ReplyWriter& reply, long offset, long count);
+static void expandHandle(lua_State *L, long handle, ReplyWriter& reply, long offset, long count);
+static void getChanges(lua_State *L, ReplyWriter& reply);
+static void sendSnapshot(lua_State *L);
+static void stackDumpForIde (lua_State *L, ReplyWriter& reply);
+static void getGlobals(lua_State *L, ReplyWriter& reply);
 
 private:
 
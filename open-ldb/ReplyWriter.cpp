@@ -0,0 +1,157 @@
+// Implementation of the ReplyWriter classes
+
+#include "ReplyWriter.h"
+
+#include <zlib.h>
+
+
+/*
+ * Append a big endian u32 to the string
+ */
+static void appendU32 ( std::string& s, unsigned long n )
+{
+  s += ( char ) ( ( n >> 24 ) & 0xff );
+  s += ( char ) ( ( n >> 16 ) & 0xff );
+  s += ( char ) ( ( n >> 8 ) & 0xff );
+  s += ( char ) ( n & 0xff );
+}
+
+
+void TextReplyWriter::append ( const std::string& s )
+{
+  // a newline would end the reply early, so it can not be sent in text
+  std::string::size_type start = m_reply.size();
+  m_reply += s;
+  for ( std::string::size_type i = start; i < m_reply.size(); i++ )
+    {
+      if ( m_reply[i] == '\n' || m_reply[i] == '\r' )
+	{
+	  m_reply[i] = ' ';
+	}
+    }
+}
+
+void TextReplyWriter::text ( const std::string& s )
+{
+  append ( s );
+}
+
+void TextReplyWriter::value ( const std::string& s )
+{
+  append ( s );
+  m_reply += "|";
+}
+
+void TextReplyWriter::name ( const std::string& s )
+{
+  append ( s );
+  m_reply += "|";
+}
+
+void TextReplyWriter::entry ( const std::string& name, const std::string& value )
+{
+  append ( name );
+  m_reply += "=";
+  append ( value );
+  m_reply += "|";
+}
+
+void TextReplyWriter::tableBegin ( const std::string& )
+{
+  if ( m_tableMarkers )
+    {
+      m_reply += "startglobaltable=startglobaltable|";
+    }
+}
+
+void TextReplyWriter::tableEnd()
+{
+  if ( m_tableMarkers )
+    {
+      m_reply += "endglobaltable=endglobaltable|";
+    }
+}
+
+void TextReplyWriter::frameEnd()
+{
+  m_reply += "#";
+}
+
+
+void BinaryReplyWriter::field ( char type, const std::string& s )
+{
+  m_reply += type;
+  appendU32 ( m_reply, s.size() );
+  m_reply += s;
+}
+
+void BinaryReplyWriter::text ( const std::string& s )
+{
+  field ( TEXT, s );
+}
+
+void BinaryReplyWriter::value ( const std::string& s )
+{
+  field ( VALUE, s );
+}
+
+void BinaryReplyWriter::name ( const std::string& s )
+{
+  field ( NAME, s );
+}
+
+void BinaryReplyWriter::entry ( const std::string& name, const std::string& value )
+{
+  field ( NAME, name );
+  field ( VALUE, value );
+}
+
+void BinaryReplyWriter::tableBegin ( const std::string& name )
+{
+  field ( TABLE_BEGIN, name );
+}
+
+void BinaryReplyWriter::tableEnd()
+{
+  field ( TABLE_END, "" );
+}
+
+void BinaryReplyWriter::frameEnd()
+{
+  field ( FRAME_END, "" );
+}
+
+void BinaryReplyWriter::reply ( const std::string& payload )
+{
+  field ( BATCH_REPLY, payload );
+}
+
+std::string BinaryReplyWriter::frame ( unsigned long requestId, const std::string& payload )
+{
+  std::string s;
+  s.reserve ( payload.size() + 8 );
+  appendU32 ( s, requestId );
+  appendU32 ( s, payload.size() );
+  s += payload;
+  return s;
+}
+
+bool BinaryReplyWriter::compressedFrame ( unsigned long requestId, const std::string& payload, std::string& frame )
+{
+  // no point in a frame that grows, give up once the data reaches the
+  // size of the payload
+  uLongf size = payload.size();
+  std::string data ( size, '\0' );
+  // the fastest level, most of a reply is repeated names and types
+  if ( compress2 ( ( Bytef* ) &data[0], &size, ( const Bytef* ) payload.data(), payload.size(), Z_BEST_SPEED ) != Z_OK )
+    {
+      return false;
+    }
+  frame.clear();
+  frame.reserve ( size + 12 );
+  appendU32 ( frame, requestId );
+  appendU32 ( frame, COMPRESSED | ( size + 4 ) );
+  appendU32 ( frame, payload.size() );
+  frame.append ( data, 0, size );
+  return true;
+}
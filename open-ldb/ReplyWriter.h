@@ -0,0 +1,125 @@
+// Definition of the ReplyWriter classes
+
+#ifndef ReplyWriter_class
+#define ReplyWriter_class
+
+#include <string>
+
+/*
+ * Builds the reply to an IDE command out of typed fields, so the code that
+ * walks the Lua state does not care how the reply is put on the wire.
+ *
+ * TextReplyWriter builds the original newline terminated text replies, e.g.
+ *   x=1|y=abc|
+ * BinaryReplyWriter builds the payload of a binary frame, used once the IDE
+ * has asked for it with the "protocol binary" command. A frame is
+ *   u32 request id | u32 payload length | payload
+ * and the payload is a sequence of fields
+ *   u8 field type | u32 field length | field bytes
+ * with all numbers in network (big endian) byte order. Field bytes are sent
+ * as they are, so values may hold newlines, '|', '=' or any other byte.
+ *
+ * Once the IDE has asked for it with "protocol compress threshold", a
+ * payload of at least threshold bytes is deflated with zlib, and the frame is
+ *   u32 request id | u32 COMPRESSED | length | u32 payload length | zlib data
+ * where length counts the bytes after it, and payload length is the size
+ * of the payload once inflated.
+ */
+class ReplyWriter
+{
+ public:
+
+  // field types of the binary protocol
+  static const char TEXT = 'T';         // a plain reply, e.g. "ok"
+  static const char VALUE = 'V';        // a value
+  static const char NAME = 'N';         // the name of the value that follows,
+                                        // or of a local variable
+  static const char TABLE_BEGIN = '{';  // start of a table, holds its name
+  static const char TABLE_END = '}';    // end of a table
+  static const char FRAME_END = '#';    // end of a stack frame
+  static const char BATCH_REPLY = 'R';  // the payload of one reply of a batch
+
+  // set in the length of a frame whose payload is compressed
+  static const unsigned long COMPRESSED = 0x80000000UL;
+
+  virtual ~ReplyWriter() {}
+
+  // a plain reply, e.g. "ok"
+  virtual void text ( const std::string& s ) = 0;
+  // one value of a list, e.g. the data stack
+  virtual void value ( const std::string& s ) = 0;
+  // a name on its own, e.g. a local variable of a stack frame
+  virtual void name ( const std::string& s ) = 0;
+  // a named value, e.g. a global or a table element
+  virtual void entry ( const std::string& name, const std::string& value ) = 0;
+  // the entries between tableBegin and tableEnd belong to the table
+  virtual void tableBegin ( const std::string& name ) = 0;
+  virtual void tableEnd() = 0;
+  // the fields since the previous frameEnd describe one stack frame
+  virtual void frameEnd() = 0;
+
+  // the reply built so far
+  const std::string& str() const { return m_reply; }
+
+ protected:
+
+  std::string m_reply;
+
+};
+
+
+class TextReplyWriter : public ReplyWriter
+{
+ public:
+
+  // tableMarkers - whether tables are wrapped in startglobaltable and
+  // endglobaltable entries, as the getglobals reply does
+  TextReplyWriter ( bool tableMarkers = false ) : m_tableMarkers ( tableMarkers ) {}
+
+  void text ( const std::string& s );
+  void value ( const std::string& s );
+  void name ( const std::string& s );
+  void entry ( const std::string& name, const std::string& value );
+  void tableBegin ( const std::string& name );
+  void tableEnd();
+  void frameEnd();
+
+ private:
+
+  void append ( const std::string& s );
+
+  bool m_tableMarkers;
+
+};
+
+
+class BinaryReplyWriter : public ReplyWriter
+{
+ public:
+
+  void text ( const std::string& s );
+  void value ( const std::string& s );
+  void name ( const std::string& s );
+  void entry ( const std::string& name, const std::string& value );
+  void tableBegin ( const std::string& name );
+  void tableEnd();
+  void frameEnd();
+
+  // the payload of the reply to one command of a batch, so a batch of
+  // replies travels in one frame
+  void reply ( const std::string& payload );
+
+  // the whole frame for the reply to the given request
+  static std::string frame ( unsigned long requestId, const std::string& payload );
+  // the whole frame with the payload compressed, false if compressing
+  // would not make the frame smaller
+  static bool compressedFrame ( unsigned long requestId, const std::string& payload, std::string& frame );
+
+ private:
+
+  void field ( char type, const std::string& s );
+
+};
+
+
+#endif
@@ -23,8 +23,32 @@ ServerSocket::ServerSocket ( int port )
 
 }
 
+ServerSocket::ServerSocket ( const std::string& path )
+{
+  if ( ! Socket::create ( AF_UNIX ) )
+    {
+      throw SocketException ( "Could not create server socket." );
+    }
+
+  if ( ! Socket::bind ( path ) )
+    {
+      throw SocketException ( "Could not bind to socket file." );
+    }
+  m_path = path;
+
+  if ( ! Socket::listen() )
+    {
+      throw SocketException ( "Could not listen to socket." );
+    }
+
+}
+
 ServerSocket::~ServerSocket()
 {
+  if ( ! m_path.empty() )
+    {
+      ::unlink ( m_path.c_str() );
+    }
 }
 
 
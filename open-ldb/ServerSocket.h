@@ -11,6 +11,8 @@ class ServerSocket : private Socket
  public:
 
   ServerSocket ( int port );
+  // listens on an AF_UNIX socket file, removed again when destroyed
+  ServerSocket ( const std::string& path );
   ServerSocket (){};
   virtual ~ServerSocket();
 
@@ -19,6 +21,12 @@ class ServerSocket : private Socket
 
   void accept ( ServerSocket& );
 
+  int port() const { return Socket::port(); }
+
+ private:
+
+  std::string m_path;
+
 };
 
 
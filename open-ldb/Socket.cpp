@@ -6,6 +6,7 @@
 #include <string.h>
 #include <errno.h>
 #include <fcntl.h>
+#include <netinet/tcp.h>
 #include <iostream>
 using namespace std;
 
@@ -27,9 +28,9 @@ Socket::~Socket()
     ::close ( m_sock );
 }
 
-bool Socket::create()
+bool Socket::create ( int domain )
 {
-  m_sock = socket ( AF_INET,
+  m_sock = socket ( domain,
 		    SOCK_STREAM,
 		    0 );
 
@@ -77,6 +78,50 @@ bool Socket::bind ( const int port )
 }
 
 
+bool Socket::bind ( const std::string& path )
+{
+
+  if ( ! is_valid() )
+    {
+      return false;
+    }
+
+  sockaddr_un addr;
+  memset ( &addr, 0, sizeof ( addr ) );
+  if ( path.size() >= sizeof ( addr.sun_path ) )
+    {
+      return false;
+    }
+  addr.sun_family = AF_UNIX;
+  strcpy ( addr.sun_path, path.c_str() );
+
+  int bind_return = ::bind ( m_sock,
+			     ( struct sockaddr * ) &addr,
+			     sizeof ( addr ) );
+
+  if ( bind_return == -1 )
+    {
+      return false;
+    }
+
+  return true;
+}
+
+
+int Socket::port() const
+{
+  sockaddr_in addr;
+  socklen_t addr_length = sizeof ( addr );
+
+  if ( ::getsockname ( m_sock, ( sockaddr * ) &addr, &addr_length ) == -1 )
+    {
+      return -1;
+    }
+
+  return ntohs ( addr.sin_port );
+}
+
+
 bool Socket::listen() const
 {
   if ( ! is_valid() )
@@ -103,8 +148,14 @@ bool Socket::accept ( Socket& new_socket ) const
 
   if ( new_socket.m_sock <= 0 )
     return false;
-  else
-    return true;
+
+  // replies and events are small writes the other end waits for, so send
+  // them at once rather than holding them back for an ACK; fails harmlessly
+  // on AF_UNIX sockets
+  int on = 1;
+  setsockopt ( new_socket.m_sock, IPPROTO_TCP, TCP_NODELAY, ( const char* ) &on, sizeof ( on ) );
+
+  return true;
 }
 
 
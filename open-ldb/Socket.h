@@ -6,6 +6,7 @@
 
 #include <sys/types.h>
 #include <sys/socket.h>
+#include <sys/un.h>
 #include <netinet/in.h>
 #include <netdb.h>
 #include <unistd.h>
@@ -23,11 +24,15 @@ class Socket
   Socket();
   virtual ~Socket();
 
-  // Server initialization
-  bool create();
+  // Server initialization, domain AF_INET or AF_UNIX
+  bool create ( int domain = AF_INET );
   bool bind ( const int port );
+  // binds an AF_UNIX socket to a socket file, which must not exist yet
+  bool bind ( const std::string& path );
   bool listen() const;
   bool accept ( Socket& ) const;
+  // the port bound to, the one picked by the system if bound to port 0
+  int port() const;
 
   // Client initialization
   bool connect ( const std::string host, const int port );
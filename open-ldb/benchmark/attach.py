@@ -0,0 +1,79 @@
+#!/usr/bin/env python3
+#
+# Times installing breakpoints when the IDE attaches, the way it did before
+# "setbreakpoints", a "break" request per breakpoint each waiting for its
+# reply, and with one "setbreakpoints" request for the file. ldb runs
+# sortloop.lua in ide mode with the events on the request connection
+# ("-e none") and is stopped at the first line, where the IDE installs its
+# breakpoints.
+#
+#   python3 attach.py [ldb executable] [breakpoints]
+#
+# The default executable is the one built in ../Debug.
+
+import os
+import socket
+import subprocess
+import sys
+import threading
+import time
+
+DIR = os.path.dirname(os.path.abspath(__file__))
+LDB = sys.argv[1] if len(sys.argv) > 1 else os.path.join(DIR, '..', 'Debug', 'ldb')
+COUNT = int(sys.argv[2]) if len(sys.argv) > 2 else 5000
+SCRIPT = os.path.join(DIR, 'sortloop.lua')
+
+
+def start():
+    ldb = subprocess.Popen([LDB, '-n', SCRIPT, '-b', 'false', '-t', 'ide', '-c', '0', '-e', 'none'],
+                           stdout=subprocess.PIPE, stderr=subprocess.STDOUT)
+    for line in ldb.stdout:
+        if line.startswith(b'ready '):
+            break
+    else:
+        raise Exception('ldb did not print its ready line')
+    # ldb keeps printing, keep its stdout from filling up and blocking it
+    threading.Thread(target=ldb.stdout.read, daemon=True).start()
+    sock = socket.create_connection(('localhost', int(line.split()[1])))
+    sock.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+    replies = sock.makefile('rb')
+    # ldb stops on the first line
+    while not replies.readline().startswith(b'0 suspended'):
+        pass
+    return ldb, sock, replies
+
+
+def request(sock, replies, id, command):
+    sock.sendall(b'%d %s\n' % (id, command))
+    prefix = b'%d ' % id
+    while True:
+        line = replies.readline()
+        if not line:
+            raise Exception('ldb closed the connection')
+        if line.startswith(prefix):
+            return line[len(prefix):].strip()
+
+
+def measure(bulk):
+    ldb, sock, replies = start()
+    # past the end of the script, as in breakpoints.sh
+    lines = range(100000, 100000 + COUNT)
+    try:
+        start_time = time.perf_counter()
+        if bulk:
+            reply = request(sock, replies, 1, b'setbreakpoints %s %s' % (
+                SCRIPT.encode(), ','.join(map(str, lines)).encode()))
+            if reply != b'ok setbreakpoints':
+                raise Exception('setbreakpoints failed: %r' % reply)
+        else:
+            for i, line in enumerate(lines, 1):
+                request(sock, replies, i, b'break %d' % line)
+        return time.perf_counter() - start_time
+    finally:
+        sock.close()
+        ldb.kill()
+        ldb.wait()
+
+
+for label, bulk in (('break per breakpoint', False), ('one setbreakpoints', True)):
+    print('%s, %d breakpoints: %.1f ms' % (label, COUNT, measure(bulk) * 1e3))
@@ -0,0 +1,20 @@
+-- data-heavy script for timing large replies: many globals and a long
+-- table of records, the sort of state a game or a config loader keeps
+
+records = {}
+for i = 1, 5000 do
+ records[i] = string.format("record %d: name=item%d, owner=user%d, status=%s",
+  i, i, i % 97, i % 3 == 0 and "archived" or "active")
+end
+
+for i = 1, 2000 do
+ _G["setting_" .. i] = "value of setting " .. i .. ", default " .. (i * 7 % 13)
+end
+
+local list = records
+local total = 0
+while true do
+ for i = 1, #list do
+  total = total + #list[i]
+ end
+end
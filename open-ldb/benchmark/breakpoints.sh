@@ -0,0 +1,33 @@
+#!/bin/sh
+#
+# Times ldb running sortloop.lua to the end with 0, 10 and 10000
+# breakpoints. The breakpoints are set past the end of the script, so every
+# line the script runs pays for the breakpoint check but none stops it.
+#
+#   sh breakpoints.sh [ldb executable] [runs]
+#
+# The default executable is the one built in ../Debug.
+
+DIR=`dirname "$0"`
+LDB=${1:-$DIR/../Debug/ldb}
+RUNS=${2:-3}
+SCRIPT=$DIR/sortloop.lua
+COMMANDS=`mktemp`
+trap 'rm -f "$COMMANDS"' 0
+
+for count in 0 10 10000; do
+	# stopped at the first line: set the breakpoints, then continue
+	awk -v count=$count 'BEGIN {
+		for (i = 0; i < count; i++) print "break " 100000 + i
+		print "continue"
+	}' > "$COMMANDS"
+
+	run=1
+	while [ $run -le $RUNS ]; do
+		start=`date +%s%N`
+		"$LDB" -n "$SCRIPT" -b false -t ldb -c 0 -e 0 < "$COMMANDS" > /dev/null
+		end=`date +%s%N`
+		echo "$count breakpoints, run $run: `expr \( $end - $start \) / 1000000` ms"
+		run=`expr $run + 1`
+	done
+done
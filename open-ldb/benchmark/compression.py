@@ -0,0 +1,160 @@
+#!/usr/bin/env python3
+#
+# Measures replies with and without "protocol compress": the bytes on
+# the wire and the round trip on localhost for "getglobals" and for "var"
+# of a local holding a table of 5000 records, then estimates the round
+# trip over slower links, the localhost time plus the link's round trip
+# and the time to transfer the bytes. ldb runs bigdata.lua in ide mode
+# with the events on the request connection ("-e none") and binary
+# replies.
+#
+#   python3 compression.py [ldb executable] [rounds]
+#
+# The default executable is the one built in ../Debug.
+
+import os
+import socket
+import struct
+import subprocess
+import sys
+import threading
+import time
+import zlib
+
+DIR = os.path.dirname(os.path.abspath(__file__))
+LDB = sys.argv[1] if len(sys.argv) > 1 else os.path.join(DIR, '..', 'Debug', 'ldb')
+ROUNDS = int(sys.argv[2]) if len(sys.argv) > 2 else 200
+SCRIPT = os.path.join(DIR, 'bigdata.lua')
+# a line in the endless loop, where the globals are all set
+BREAK_LINE = 18
+# the threshold the IDE asks for
+THRESHOLD = 8192
+COMPRESSED = 0x80000000
+# bytes per second and round trip time, in seconds
+LINKS = (('1 Gbit/s LAN', 125e6, 0.0002), ('100 Mbit/s LAN', 12.5e6, 0.0005),
+         ('10 Mbit/s VPN', 1.25e6, 0.02), ('1 Mbit/s', 125e3, 0.05))
+
+
+class Client:
+
+    def __init__(self, sock):
+        self.sock = sock
+        self.buf = b''
+        self.next_id = 1
+
+    def fill(self, n):
+        while len(self.buf) < n:
+            data = self.sock.recv(1 << 20)
+            if not data:
+                raise Exception('ldb closed the connection')
+            self.buf += data
+
+    def line(self):
+        while b'\n' not in self.buf:
+            self.fill(len(self.buf) + 1)
+        end = self.buf.index(b'\n')
+        line, self.buf = self.buf[:end], self.buf[end + 1:]
+        return line
+
+    def frame(self):
+        """Returns id, payload and the bytes the frame took on the wire"""
+        self.fill(8)
+        id, length = struct.unpack('>II', self.buf[:8])
+        compressed = length & COMPRESSED
+        length &= ~COMPRESSED
+        self.fill(8 + length)
+        payload, self.buf = self.buf[8:8 + length], self.buf[8 + length:]
+        if compressed:
+            payload = zlib.decompress(payload[4:])
+        return id, payload, 8 + length
+
+    def send(self, command):
+        id = self.next_id
+        self.next_id += 1
+        self.sock.sendall(b'%d %s\n' % (id, command))
+        return id
+
+    def text_request(self, command):
+        id = self.send(command)
+        prefix = b'%d ' % id
+        while True:
+            line = self.line()
+            if line.startswith(prefix):
+                return line[len(prefix):]
+
+    def request(self, command):
+        id = self.send(command)
+        while True:
+            frame_id, payload, size = self.frame()
+            if frame_id == id:
+                return payload, size
+
+    def wait_suspended(self):
+        while True:
+            frame_id, payload, size = self.frame()
+            if frame_id == 0 and b'suspended' in payload:
+                return
+
+
+def start():
+    ldb = subprocess.Popen([LDB, '-n', SCRIPT, '-b', 'false', '-t', 'ide', '-c', '0', '-e', 'none'],
+                           stdout=subprocess.PIPE, stderr=subprocess.STDOUT)
+    for line in ldb.stdout:
+        if line.startswith(b'ready '):
+            break
+    else:
+        raise Exception('ldb did not print its ready line')
+    # ldb keeps printing, keep its stdout from filling up and blocking it
+    threading.Thread(target=ldb.stdout.read, daemon=True).start()
+    sock = socket.create_connection(('localhost', int(line.split()[1])))
+    sock.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+    client = Client(sock)
+    # ldb stops on the first line, with text events until binary replies
+    while not client.line().startswith(b'0 suspended'):
+        pass
+    if client.text_request(b'protocol binary') != b'ok binary':
+        raise Exception('ldb has no binary replies')
+    return ldb, client
+
+
+def measure(threshold):
+    ldb, client = start()
+    try:
+        if threshold:
+            reply, size = client.request(b'protocol compress %d' % threshold)
+            if b'ok compress' not in reply:
+                raise Exception('ldb can not compress: %r' % reply)
+        client.request(b'break %d' % BREAK_LINE)
+        client.request(b'resume')
+        client.wait_suspended()
+        results = {}
+        for label, command in (('getglobals', b'getglobals'), ('var list', b'var 0 list')):
+            times = []
+            for i in range(ROUNDS):
+                start_time = time.perf_counter()
+                payload, size = client.request(command)
+                times.append(time.perf_counter() - start_time)
+            times.sort()
+            results[label] = (len(payload), size, times[len(times) // 2])
+        return results
+    finally:
+        client.sock.close()
+        ldb.kill()
+        ldb.wait()
+
+
+plain = measure(0)
+compressed = measure(THRESHOLD)
+for label in plain:
+    payload, plain_size, plain_time = plain[label]
+    payload, compressed_size, compressed_time = compressed[label]
+    print('%s: payload %d bytes, on the wire %d plain, %d compressed (%.1fx)' % (
+        label, payload, plain_size, compressed_size, float(plain_size) / compressed_size))
+    print('  localhost median: %.0f us plain, %.0f us compressed' % (
+        plain_time * 1e6, compressed_time * 1e6))
+    # the localhost time holds building, compressing and inflating the
+    # reply, the link adds its round trip and the transfer
+    for link, rate, rtt in LINKS:
+        print('  %-15s estimated %7.1f ms plain, %7.1f ms compressed' % (
+            link, (plain_time + rtt + plain_size / rate) * 1e3,
+            (compressed_time + rtt + compressed_size / rate) * 1e3))
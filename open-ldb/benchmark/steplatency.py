@@ -0,0 +1,90 @@
+#!/usr/bin/env python3
+#
+# Times step round trips between a client and ldb in ide mode, once over
+# TCP on localhost ("-c 0") and once over an AF_UNIX socket file ("-u"),
+# both with the events on the request connection ("-e none"). A round
+# trip is sending "step" and reading up to the "suspended" event, with
+# the reply and the snapshot events in between, as the IDE does.
+#
+#   python3 steplatency.py [ldb executable] [steps]
+#
+# The default executable is the one built in ../Debug.
+
+import os
+import socket
+import subprocess
+import sys
+import tempfile
+import threading
+import time
+
+DIR = os.path.dirname(os.path.abspath(__file__))
+LDB = sys.argv[1] if len(sys.argv) > 1 else os.path.join(DIR, '..', 'Debug', 'ldb')
+STEPS = int(sys.argv[2]) if len(sys.argv) > 2 else 2000
+SCRIPT = os.path.join(DIR, 'sortloop.lua')
+
+
+def start(transport):
+    args = [LDB, '-n', SCRIPT, '-b', 'false', '-t', 'ide']
+    if transport == 'unix':
+        path = os.path.join(tempfile.mkdtemp(), 'ldb.sock')
+        args += ['-u', path]
+    else:
+        args += ['-c', '0']
+    args += ['-e', 'none']
+    ldb = subprocess.Popen(args, stdout=subprocess.PIPE, stderr=subprocess.STDOUT)
+    for line in ldb.stdout:
+        if line.startswith(b'ready '):
+            break
+    else:
+        raise Exception('ldb did not print its ready line')
+    # ldb keeps printing, keep its stdout from filling up and blocking it
+    threading.Thread(target=ldb.stdout.read, daemon=True).start()
+    if transport == 'unix':
+        sock = socket.socket(socket.AF_UNIX, socket.SOCK_STREAM)
+        sock.connect(path)
+    else:
+        sock = socket.create_connection(('localhost', int(line.split()[1])))
+        sock.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+    return ldb, sock
+
+
+def until_suspended(sock, buf):
+    while True:
+        end = buf.find(b'\n')
+        if end < 0:
+            data = sock.recv(65536)
+            if not data:
+                raise Exception('ldb closed the connection')
+            buf += data
+            continue
+        line, buf = buf[:end], buf[end + 1:]
+        if line.startswith(b'0 suspended'):
+            return buf
+
+
+def measure(transport):
+    ldb, sock = start(transport)
+    try:
+        # ldb stops on the first line
+        buf = until_suspended(sock, b'')
+        times = []
+        for i in range(1, STEPS + 1):
+            start_time = time.perf_counter()
+            sock.sendall(b'%d step\n' % i)
+            buf = until_suspended(sock, buf)
+            times.append(time.perf_counter() - start_time)
+    finally:
+        sock.close()
+        ldb.kill()
+        ldb.wait()
+    times.sort()
+    return times
+
+
+for transport in ('tcp', 'unix'):
+    times = measure(transport)
+    mean = sum(times) / len(times)
+    print('%-4s %d steps: mean %.1f us, median %.1f us, 99th %.1f us' % (
+        transport, len(times), mean * 1e6, times[len(times) // 2] * 1e6,
+        times[len(times) * 99 // 100] * 1e6))
@@ -0,0 +1,14 @@
+-- a line that calls a long running helper, for timing "stepover" and
+-- "stepreturn" in stepover.py
+
+local function helper(n)
+  local sum = 0
+  for i = 1, n do
+    sum = sum + i % 7
+  end
+  return sum
+end
+
+local total = helper(1000000)
+total = total + helper(1000000)
+print(total)
@@ -0,0 +1,76 @@
+#!/usr/bin/env python3
+#
+# Times stepping over a line of stepover.lua that calls a helper looping a
+# million times, and stepping into the helper and back out of it with
+# "stepreturn". The helper runs without the line hook, so each step is one
+# stop, however many lines the helper runs. ldb runs in ide mode with the
+# events on the request connection ("-e none").
+#
+#   python3 stepover.py [ldb executable]
+#
+# The default executable is the one built in ../Debug.
+
+import os
+import socket
+import subprocess
+import sys
+import threading
+import time
+
+DIR = os.path.dirname(os.path.abspath(__file__))
+LDB = sys.argv[1] if len(sys.argv) > 1 else os.path.join(DIR, '..', 'Debug', 'ldb')
+SCRIPT = os.path.join(DIR, 'stepover.lua')
+
+
+def start():
+    ldb = subprocess.Popen([LDB, '-n', SCRIPT, '-b', 'false', '-t', 'ide', '-c', '0', '-e', 'none'],
+                           stdout=subprocess.PIPE, stderr=subprocess.STDOUT)
+    for line in ldb.stdout:
+        if line.startswith(b'ready '):
+            break
+    else:
+        raise Exception('ldb did not print its ready line')
+    # ldb keeps printing, keep its stdout from filling up and blocking it
+    threading.Thread(target=ldb.stdout.read, daemon=True).start()
+    sock = socket.create_connection(('localhost', int(line.split()[1])))
+    sock.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+    replies = sock.makefile('rb')
+    # ldb stops on the first line
+    step_end(replies)
+    return ldb, sock, replies
+
+
+def step_end(replies):
+    # the stops read until the step ended, one if only its line stopped
+    stops = 0
+    while True:
+        line = replies.readline()
+        if not line:
+            raise Exception('ldb closed the connection')
+        if line.startswith(b'0 snapshot stack '):
+            stops += 1
+        if line.startswith(b'0 suspended'):
+            return stops, line[len(b'0 suspended '):].split(b' ')[0]
+
+
+def step(sock, replies, id, command):
+    start_time = time.perf_counter()
+    sock.sendall(b'%d %s\n' % (id, command))
+    stops, reason = step_end(replies)
+    return time.perf_counter() - start_time, stops
+
+
+ldb, sock, replies = start()
+try:
+    # to the line that calls the helper the first time
+    step(sock, replies, 1, b'stepover')
+    elapsed, stops = step(sock, replies, 2, b'stepover')
+    print('stepover the helper: %.1f ms, %d stop' % (elapsed * 1e3, stops))
+    step(sock, replies, 3, b'step')
+    step(sock, replies, 4, b'step')
+    elapsed, stops = step(sock, replies, 5, b'stepreturn')
+    print('stepreturn out of the helper: %.1f ms, %d stop' % (elapsed * 1e3, stops))
+finally:
+    sock.close()
+    ldb.kill()
+    ldb.wait()
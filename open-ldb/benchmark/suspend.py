@@ -0,0 +1,101 @@
+#!/usr/bin/env python3
+#
+# Times "suspend" while the script runs, from sending it to reading the
+# "suspended client" event, and how long sortloop.lua takes to run to the
+# end once resumed, which shows what the count hook that notices the
+# suspend costs. ldb runs in ide mode with the events on the request
+# connection ("-e none"). When the script ends before the suspends are
+# all taken, ldb is started again, so any number can be asked for.
+#
+#   python3 suspend.py [ldb executable] [suspends]
+#
+# The default executable is the one built in ../Debug.
+
+import os
+import random
+import socket
+import subprocess
+import sys
+import threading
+import time
+
+DIR = os.path.dirname(os.path.abspath(__file__))
+LDB = sys.argv[1] if len(sys.argv) > 1 else os.path.join(DIR, '..', 'Debug', 'ldb')
+SUSPENDS = int(sys.argv[2]) if len(sys.argv) > 2 else 20
+SCRIPT = os.path.join(DIR, 'sortloop.lua')
+
+
+def start():
+    ldb = subprocess.Popen([LDB, '-n', SCRIPT, '-b', 'false', '-t', 'ide', '-c', '0', '-e', 'none'],
+                           stdout=subprocess.PIPE, stderr=subprocess.STDOUT)
+    for line in ldb.stdout:
+        if line.startswith(b'ready '):
+            break
+    else:
+        raise Exception('ldb did not print its ready line')
+    # ldb keeps printing, keep its stdout from filling up and blocking it
+    threading.Thread(target=ldb.stdout.read, daemon=True).start()
+    sock = socket.create_connection(('localhost', int(line.split()[1])))
+    sock.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+    replies = sock.makefile('rb')
+    # ldb stops on the first line
+    if not read_until(replies, b'0 suspended'):
+        raise Exception('ldb closed the connection')
+    return ldb, sock, replies
+
+
+def read_until(replies, prefix):
+    """False if the connection closed first, the script ended"""
+    while True:
+        line = replies.readline()
+        if not line:
+            return False
+        if line.startswith(prefix):
+            return True
+
+
+def run_time():
+    ldb, sock, replies = start()
+    try:
+        start_time = time.perf_counter()
+        sock.sendall(b'1 resume\n')
+        # the connection closes when the script ends
+        while replies.readline():
+            pass
+        return time.perf_counter() - start_time
+    finally:
+        sock.close()
+        ldb.kill()
+        ldb.wait()
+
+
+def suspend_times():
+    times = []
+    while len(times) < SUSPENDS:
+        # a suspend that arrives after the script ended is not counted,
+        # the next ldb takes it again
+        ldb, sock, replies = start()
+        try:
+            i = 0
+            while len(times) < SUSPENDS:
+                i += 1
+                sock.sendall(b'%d resume\n' % (2 * i - 1))
+                if not read_until(replies, b'%d ' % (2 * i - 1)):
+                    break
+                time.sleep(random.uniform(0.01, 0.05))
+                start_time = time.perf_counter()
+                sock.sendall(b'%d suspend\n' % (2 * i))
+                if not read_until(replies, b'0 suspended client'):
+                    break
+                times.append(time.perf_counter() - start_time)
+        finally:
+            sock.close()
+            ldb.kill()
+            ldb.wait()
+    return times
+
+
+times = sorted(suspend_times())
+print('suspend while running, %d suspends: median %.2f ms, worst %.2f ms' % (
+    len(times), times[len(times) // 2] * 1e3, times[-1] * 1e3))
+print('sortloop.lua run to the end: %.0f ms' % (run_time() * 1e3))
@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (c) 2008 VeriSign, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     VeriSign, Inc. - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.debug.examples.core.pda.model;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmark comparing {@link PDATextCursor} with the
+ * <code>String.split</code> parsing it replaced, on large synthetic
+ * <code>stackforide</code>, <code>getglobals</code> and <code>var</code>
+ * replies.
+ * <p>
+ * Both sides produce the same strings - the fields of each frame, and the
+ * name and value of each global or table element - so the comparison
+ * covers tokenizing without the model objects, which need a live debug
+ * target.
+ * </p>
+ * <p>
+ * This folder is not part of the plug-in build. To run it, compile it
+ * together with <code>src/</code> against the JMH jars (Java 5 or later)
+ * and start <code>org.openjdk.jmh.Main ReplyParserBenchmark</code>, e.g.
+ * <pre>
+ * javac -cp jmh-core.jar:jmh-generator-annprocess.jar:&lt;eclipse plugins&gt; \
+ *     -d out src/org/eclipse/debug/examples/core/pda/model/*.java benchmark/org/eclipse/debug/examples/core/pda/model/*.java
+ * java -cp out:jmh-core.jar:jopt-simple.jar:commons-math3.jar:&lt;eclipse plugins&gt; \
+ *     org.openjdk.jmh.Main ReplyParserBenchmark
+ * </pre>
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplyParserBenchmark {
+	
+	private static final String START_TABLE = "startglobaltable=startglobaltable";
+	private static final String END_TABLE = "endglobaltable=endglobaltable";
+	
+	/**
+	 * Number of frames, globals or table elements in each reply
+	 */
+	@Param({"100", "10000"})
+	public int size;
+	
+	private String fStack;
+	private String fGlobals;
+	private String fTable;
+	private PDATextCursor fCursor;
+	
+	@Setup
+	public void setUp() {
+		StringBuffer stack = new StringBuffer();
+		StringBuffer globals = new StringBuffer();
+		StringBuffer table = new StringBuffer();
+		for (int i = 0; i < size; i++) {
+			stack.append("/home/user/scripts/module").append(i).append(".lua|").append(i + 1)
+				.append("|function").append(i).append("|local").append(i).append("|count|result|#");
+			if (i % 10 == 0) {
+				globals.append(START_TABLE).append('|');
+				for (int j = 0; j < 5; j++) {
+					globals.append("table").append(i).append('[').append(j).append("]=element ").append(j).append('|');
+				}
+				globals.append(END_TABLE).append('|');
+			} else {
+				globals.append("global").append(i).append("=value of global ").append(i).append('|');
+			}
+			table.append("t[").append(i).append("]=element value ").append(i).append('|');
+		}
+		fStack = stack.toString();
+		fGlobals = globals.toString();
+		fTable = table.toString();
+		fCursor = new PDATextCursor();
+	}
+	
+	@Benchmark
+	public void stackCursor(Blackhole bh) {
+		fCursor.reset(PDATextCursor.SHAPE_STACK, fStack);
+		bh.consume(PDAReplyParser.parseStackFrames(fCursor));
+	}
+	
+	@Benchmark
+	public void stackSplit(Blackhole bh) {
+		String[] framesText = fStack.split("#");
+		String[][] frames = new String[framesText.length][];
+		for (int i = 0; i < framesText.length; i++) {
+			frames[i] = framesText[i].split("\\|");
+		}
+		bh.consume(frames);
+	}
+	
+	@Benchmark
+	public void globalsCursor(Blackhole bh) {
+		fCursor.reset(PDATextCursor.SHAPE_GLOBALS, fGlobals);
+		consumeFields(fCursor, bh);
+	}
+	
+	@Benchmark
+	public void globalsSplit(Blackhole bh) {
+		String[] strings = fGlobals.split("\\|");
+		for (int i = 0; i < strings.length; i++) {
+			String curLine = strings[i];
+			if (curLine.equals(START_TABLE)) {
+				bh.consume(strings[i + 1].split("\\[")[0]);
+			} else if (!curLine.equals(END_TABLE)) {
+				String[] nameVal = curLine.split("\\=");
+				bh.consume(nameVal[0]);
+				bh.consume(nameVal[1]);
+			}
+		}
+	}
+	
+	@Benchmark
+	public void tableCursor(Blackhole bh) {
+		fCursor.reset(PDATextCursor.SHAPE_VAR, fTable);
+		consumeFields(fCursor, bh);
+	}
+	
+	@Benchmark
+	public void tableSplit(Blackhole bh) {
+		String[] strings = fTable.split("\\|");
+		for (int i = 0; i < strings.length; i++) {
+			String[] nameVal = strings[i].split("\\=");
+			bh.consume(nameVal[0]);
+			bh.consume(nameVal[1]);
+		}
+	}
+	
+	private static void consumeFields(PDATextCursor cursor, Blackhole bh) {
+		int type;
+		while ((type = cursor.next()) != IPDAReplyCursor.END) {
+			if (type != IPDAReplyCursor.TABLE_END) {
+				bh.consume(cursor.getText());
+			}
+		}
+	}
+}
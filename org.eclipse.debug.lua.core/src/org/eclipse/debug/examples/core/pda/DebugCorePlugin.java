@@ -28,6 +28,7 @@ import java.util.ResourceBundle;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.core.runtime.Plugin;
+import org.eclipse.debug.examples.core.pda.model.PDAIOService;
 import org.osgi.framework.BundleContext;
 
 /**
@@ -78,6 +79,20 @@ public class DebugCorePlugin extends Plugin {
 	 */
 	public static final String ATTR_LDB_FULL_PATH = "ldb.fullpath";
 
+	/**
+	 * Launch configuration whether to talk to ldb over an AF_UNIX socket
+	 * file rather than TCP, where the platform supports it. Defaults to
+	 * <code>true</code>.
+	 */
+	public static final String ATTR_LDB_UNIX_SOCKET = "ldb.unixsocket";
+
+	/**
+	 * Launch configuration whether ldb compresses large replies. Only worth
+	 * it over a slow link; on the local machine compressing costs more than
+	 * it saves. Defaults to <code>false</code>.
+	 */
+	public static final String ATTR_LDB_COMPRESS = "ldb.compress";
+
 	/**
 	 * Plug-in identifier.
 	 */
@@ -102,6 +117,7 @@ public class DebugCorePlugin extends Plugin {
 	 * This method is called when the plug-in is stopped
 	 */
 	public void stop(BundleContext context) throws Exception {
+		PDAIOService.shutdownDefault();
 		super.stop(context);
 		plugin = null;
 		resourceBundle = null;
@@ -30,7 +30,6 @@ import org.eclipse.debug.core.model.IBreakpoint;
 import org.eclipse.debug.core.model.IThread;
 import org.eclipse.debug.core.model.LineBreakpoint;
 import org.eclipse.debug.examples.core.pda.DebugCorePlugin;
-import org.eclipse.debug.examples.core.pda.model.IPDAEventListener;
 import org.eclipse.debug.examples.core.pda.model.PDADebugTarget;
 import org.eclipse.debug.examples.core.pda.model.PDAThread;
 
@@ -38,7 +37,7 @@ import org.eclipse.debug.examples.core.pda.model.PDAThread;
 /**
  * PDA line breakpoint
  */
-public class PDALineBreakpoint extends LineBreakpoint implements IPDAEventListener {
+public class PDALineBreakpoint extends LineBreakpoint {
 	
 	// target currently installed in
 	private PDADebugTarget fTarget;
@@ -94,27 +93,52 @@ public class PDALineBreakpoint extends LineBreakpoint implements IPDAEventListen
     
     /**
      * Installs this breakpoint in the given interpreter.
-     * Registeres this breakpoint as an event listener in the
-     * given target and creates the breakpoint specific request.
+     * Registers this breakpoint with the given target, so the thread
+     * finds it when the VM stops at its line, and creates the breakpoint
+     * specific request.
      * 
      * @param target Lua interpreter
      * @throws CoreException if installation fails
      */
     public void install(PDADebugTarget target) throws CoreException {
     	fTarget = target;
-    	target.addEventListener(this);
+    	register(target);
     	createRequest(target);
     }
     
+    /**
+     * Registers this breakpoint with the target, which sends its line
+     * to the VM and hands it to the thread when the VM suspends there.
+     * Subclasses hit on other events should override.
+     * 
+     * @param target Lua interpreter
+     * @throws CoreException if the line number can not be read
+     */
+    protected void register(PDADebugTarget target) throws CoreException {
+    	target.addLineBreakpoint(this, getLineNumber());
+    }
+    
+    /**
+     * Deregisters this breakpoint from the target. Subclasses should
+     * override along with <code>register</code>.
+     * 
+     * @param target Lua interpreter
+     */
+    protected void deregister(PDADebugTarget target) {
+    	target.removeLineBreakpoint(this);
+    }
+    
     /**
      * Create the breakpoint specific request in the target. Subclasses
-     * should override.
+     * should override. Line breakpoints are sent to the VM by the target,
+     * all those of a file at once, so this only tells the target that
+     * they changed.
      * 
      * @param target Lua interpreter
      * @throws CoreException if request creation fails
      */
     protected void createRequest(PDADebugTarget target) throws CoreException {
-    	target.sendRequest("break " + getLineNumber());
+    	target.updateLineBreakpoints();
     }
     
     /**
@@ -125,19 +149,19 @@ public class PDALineBreakpoint extends LineBreakpoint implements IPDAEventListen
      * @throws CoreException if clearing the request fails
      */
     protected void clearRequest(PDADebugTarget target) throws CoreException {
-    	target.sendRequest("clear " + getLineNumber());
+    	target.updateLineBreakpoints();
     }
     
     /**
      * Removes this breakpoint from the given interpreter.
-     * Removes this breakpoint as an event listener and clears
+     * Deregisters this breakpoint from the target and clears
      * the request for the interpreter.
      * 
      * @param target Lua interpreter
      * @throws CoreException if removal fails
      */
     public void remove(PDADebugTarget target) throws CoreException {
-    	target.removeEventListener(this);
+    	deregister(target);
     	clearRequest(target);
     	fTarget = null;
     	
@@ -167,36 +191,4 @@ public class PDALineBreakpoint extends LineBreakpoint implements IPDAEventListen
 			}    		
     	}
     }
-
-	/* (non-Javadoc)
-	 * 
-	 * Subclasses should override to handle their breakpoint specific event.
-	 * 
-	 * @see org.eclipse.debug.examples.core.pda.model.IPDAEventListener#handleEvent(java.lang.String)
-	 */
-	public void handleEvent(String event) {
-		if (event.startsWith("suspended breakpoint")) {
-			handleHit(event);
-		}
-	}
-    
-	/**
-     * Determines if this breakpoint was hit and notifies the thread.
-     * 
-     * @param event breakpoint event
-     */
-    private void handleHit(String event) {
-    	int lastSpace = event.lastIndexOf(' ');
-    	if (lastSpace > 0) {
-    		String line = event.substring(lastSpace + 1);
-    		int lineNumber = Integer.parseInt(line);
-
-    		try {
-				if (getLineNumber() == lineNumber) {
-					notifyThread();
-				}
-    		} catch (CoreException e) {
-    		}
-    	}
-    }		
 }
@@ -24,13 +24,15 @@ import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.debug.core.model.IBreakpoint;
 import org.eclipse.debug.core.model.IWatchpoint;
+import org.eclipse.debug.examples.core.pda.model.IPDAEventListener;
 import org.eclipse.debug.examples.core.pda.model.PDADebugTarget;
+import org.eclipse.debug.examples.core.pda.model.PDAEvent;
 
 
 /**
  * A watchpoint.
  */
-public class PDAWatchpoint extends PDALineBreakpoint implements IWatchpoint {
+public class PDAWatchpoint extends PDALineBreakpoint implements IWatchpoint, IPDAEventListener {
     
     // 'read' or 'write' depending on what caused the last suspend for this watchpoint
     private String fLastSuspendType;
@@ -194,10 +196,24 @@ public class PDAWatchpoint extends PDALineBreakpoint implements IWatchpoint {
 	}
     
 	/* (non-Javadoc)
-	 * @see org.eclipse.debug.examples.core.pda.model.IPDAEventListener#handleEvent(java.lang.String)
+	 * @see org.eclipse.debug.examples.core.pda.breakpoints.PDALineBreakpoint#register(org.eclipse.debug.examples.core.pda.model.PDADebugTarget)
 	 */
-	public void handleEvent(String event) {
-		if (event.startsWith("suspended watch")) {
+	protected void register(PDADebugTarget target) throws CoreException {
+		target.addEventListener(this);
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.eclipse.debug.examples.core.pda.breakpoints.PDALineBreakpoint#deregister(org.eclipse.debug.examples.core.pda.model.PDADebugTarget)
+	 */
+	protected void deregister(PDADebugTarget target) {
+		target.removeEventListener(this);
+	}
+    
+	/* (non-Javadoc)
+	 * @see org.eclipse.debug.examples.core.pda.model.IPDAEventListener#handleEvent(org.eclipse.debug.examples.core.pda.model.PDAEvent)
+	 */
+	public void handleEvent(PDAEvent event) {
+		if (event.is(PDAEvent.SUSPENDED, "watch")) {
 			handleHit(event);
 		}
 	}
@@ -207,8 +223,8 @@ public class PDAWatchpoint extends PDALineBreakpoint implements IWatchpoint {
      * 
      * @param event breakpoint event
      */
-    private void handleHit(String event) {
-        String[] strings = event.split(" ");
+    private void handleHit(PDAEvent event) {
+        String[] strings = event.getText().split(" ");
         if (strings.length == 4) {
             String fv = strings[3];
             int j = fv.indexOf("::");
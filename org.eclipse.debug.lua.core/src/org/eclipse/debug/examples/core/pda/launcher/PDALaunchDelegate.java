@@ -25,7 +25,6 @@ import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.List;
-import java.net.ServerSocket;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IMarker;
@@ -35,6 +34,7 @@ import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.Platform;
 import org.eclipse.core.runtime.Status;
 import org.eclipse.debug.core.DebugPlugin;
 import org.eclipse.debug.core.ILaunch;
@@ -75,10 +75,12 @@ public class PDALaunchDelegate extends LaunchConfigurationDelegate {
 		}
 
 		// build a command like:
-		// ldb -n ../../sort.lua -b true -t ide -c 3000 -e 3001
+		// ldb -n ../../sort.lua -b true -t ide -c 3000 -e none
 		// which means
 		// ldb lua program, buffer in memory, IDE vs. command line ldb, command
-		// port 3000, event port 3001
+		// port 3000, events sent over the command connection
+		// or in run mode:
+		// ldb -n ../../sort.lua -t run
 
 		// ldb executable
 		String ldb = configuration.getAttribute(
@@ -113,34 +115,46 @@ public class PDALaunchDelegate extends LaunchConfigurationDelegate {
 		commandList.add("-n ");
 		commandList.add(file.getLocation().toOSString());
 
-		// for the IDE we always buffer in memory after reading the script
-		// from disk
-		commandList.add("-b ");
-		commandList.add("true");
-
-		// this makes ldb work with sockets instead of stdin/stdout
-		commandList.add("-t ");
-		commandList.add("ide");
-
 		System.out.println("program=" + file.getLocation().toOSString());
 
-		// if in debug mode, add debug arguments - i.e. '-debug requestPort
-		// eventPort'
-		int requestPort = -1;
-		int eventPort = -1;
+		// if in debug mode, add debug arguments - i.e. '-c requestPort
+		// -e none'. Port 0 makes ldb pick a free port itself and print it
+		// in a ready line, which the debug target waits for. With no event
+		// port the events come over the request connection. On Linux ldb
+		// listens on a socket file given with '-u' instead, which skips
+		// the TCP stack and needs no port.
+		int requestPort = 0;
+		String socketFile = null;
 		if (mode.equals(ILaunchManager.DEBUG_MODE)) {
-			requestPort = findFreePort();
-			eventPort = findFreePort();
-			if (requestPort == -1 || eventPort == -1) {
-				abort("Unable to find free port", null);
+			// for the IDE we always buffer in memory after reading the script
+			// from disk
+			commandList.add("-b ");
+			commandList.add("true");
+
+			// this makes ldb work with sockets instead of stdin/stdout
+			commandList.add("-t ");
+			commandList.add("ide");
+
+			if (configuration.getAttribute(DebugCorePlugin.ATTR_LDB_UNIX_SOCKET, true)) {
+				socketFile = newSocketFile();
+			}
+			if (socketFile != null) {
+				commandList.add("-u ");
+				commandList.add(socketFile);
+			} else {
+				commandList.add("-c ");
+				commandList.add("" + requestPort);
 			}
+			commandList.add("-e ");
+			commandList.add("none");
+		} else {
+			// in run mode ldb just runs the script, without a hook on each
+			// line or sockets, so it runs as fast as in the lua interpreter
+			// and its output goes straight to the console
+			commandList.add("-t ");
+			commandList.add("run");
 		}
 
-		commandList.add("-c ");
-		commandList.add("" + requestPort);
-		commandList.add("-e ");
-		commandList.add("" + eventPort);
-
 		String[] commandLine = (String[]) commandList
 				.toArray(new String[commandList.size()]);
 		System.out.println("commandList=" + commandList);
@@ -149,12 +163,43 @@ public class PDALaunchDelegate extends LaunchConfigurationDelegate {
 
 		// if in debug mode, create a debug target
 		if (mode.equals(ILaunchManager.DEBUG_MODE)) {
-			IDebugTarget target = new PDADebugTarget(launch, p, requestPort,
-					eventPort);
+			IDebugTarget target;
+			if (socketFile != null) {
+				target = new PDADebugTarget(launch, p, socketFile);
+			} else {
+				target = new PDADebugTarget(launch, p, requestPort);
+			}
 			launch.addDebugTarget(target);
 		}
 	}
 	
+	/**
+	 * Returns a new path for ldb to create its AF_UNIX socket file at, or
+	 * <code>null</code> to use TCP. Socket files are only used on Linux,
+	 * when this VM can connect to them.
+	 * 
+	 * @return socket file path, which does not exist, or <code>null</code>
+	 */
+	private String newSocketFile() {
+		if (!Platform.getOS().equals(Platform.OS_LINUX) || !PDADebugTarget.supportsUnixSockets()) {
+			return null;
+		}
+		try {
+			// a unique name; ldb creates the socket file itself, so the
+			// placeholder is removed
+			File file = File.createTempFile("ldb", ".sock");
+			file.delete();
+			String path = file.getAbsolutePath();
+			// the longest path a socket address holds on Linux
+			if (path.length() > 107) {
+				return null;
+			}
+			return path;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
 	/**
 	 * Throws an exception with a new status containing the given
 	 * message and optional exception.
@@ -172,27 +217,5 @@ public class PDALaunchDelegate extends LaunchConfigurationDelegate {
 	 */
 	public boolean buildForLaunch(ILaunchConfiguration configuration, String mode, IProgressMonitor monitor) throws CoreException {
 		return false;
-	}	
-	
-	/**
-	 * Returns a free port number on localhost, or -1 if unable to find a free port.
-	 * 
-	 * @return a free port number on localhost, or -1 if unable to find a free port
-	 */
-	public static int findFreePort() {
-		ServerSocket socket= null;
-		try {
-			socket= new ServerSocket(0);
-			return socket.getLocalPort();
-		} catch (IOException e) { 
-		} finally {
-			if (socket != null) {
-				try {
-					socket.close();
-				} catch (IOException e) {
-				}
-			}
-		}
-		return -1;		
 	}
 }
@@ -24,12 +24,13 @@ package org.eclipse.debug.examples.core.pda.model;
  * <li><code>suspended X</code> - the interpreter has suspended and entered debug mode;
  * 		<code>X</code> is the cause of the suspension:
  * 		<ul>
- * 		<li><code>breakpoint N</code> - a breakpoint at line <code>N</code> was hit</li>
+ * 		<li><code>breakpoint N F</code> - a breakpoint at line <code>N</code> of file
+ * 			<code>F</code> was hit, where <code>F</code> is the full path of the file</li>
  * 		<li><code>client</code> - a client request to suspend has completed</li>
  * 		<li><code>drop</code> - a client request to drop a frame has completed</li>
  * 		<li><code>event E</code> - an error was encountered, where <code>E</code> is one
  * 			of <code>unimpinstr</code> or <code>nosuchlabel</code></li>
- * 		<li><code>step</code> - a step request has completed</li>
+ * 		<li><code>step</code> - a step request of any kind has completed</li>
  * 		<li><code>watch A F::V</code> - a watchpoint was hit for reason <code>A</code>
  * 			(<code>read</code> or <code>write</code>), on variable <code>V</code> in
  * 			function <code>F</code></li>
@@ -38,16 +39,28 @@ package org.eclipse.debug.examples.core.pda.model;
  * <li><code>resumed X</code> - the interpreter has resumed execution in run mode;
  * 		<code>X</code> is the cause of the resume:
  * 		<ul>
- * 		<li><code>step</code> - a step request has been initiated</li>
+ * 		<li><code>step</code> - a step into request has been initiated</li>
+ * 		<li><code>stepover</code> - a step over request has been initiated</li>
+ * 		<li><code>stepreturn</code> - a step return request has been initiated</li>
  * 		<li><code>client</code> - a client request to resume has been initiated</li>
  * 		</ul>
  * 		</li>
+ * <li><code>snapshot stack S</code> - sent just before a suspended event, where
+ * 		<code>S</code> is the reply to <code>stackforide</code></li>
+ * <li><code>snapshot changes C</code> - sent after <code>snapshot stack</code>, where
+ * 		<code>C</code> is the reply to <code>changes</code></li>
  * <li><code>unimplemented instruction X</code> - an unimplemented instruction <code>X</code>
  * 		was encountered</li>
  * <li><code>no such label X</code> - a branch or call to an unknown label <code>X</code>
  * 		was encountered</li>
  * </ul>
  * </p>
+ * <p>
+ * Each event is parsed once into a {@link PDAEvent} and handed to every
+ * listener. Breakpoints are not listeners, the debug target hands a
+ * <code>suspended breakpoint N F</code> event to the breakpoints on line
+ * <code>N</code> of file <code>F</code> only.
+ * </p>
  */
 public interface IPDAEventListener {
 	
@@ -57,6 +70,6 @@ public interface IPDAEventListener {
 	 * 
 	 * @param event the event
 	 */
-	public void handleEvent(String event);
+	public void handleEvent(PDAEvent event);
 
 }
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright (c) 2008 VeriSign, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     VeriSign, Inc. - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.debug.examples.core.pda.model;
+
+/**
+ * Walks the typed fields of a reply from ldb one at a time, without
+ * copying the reply or splitting it into arrays.
+ * <p>
+ * The field types are:
+ * <ul>
+ * <li><code>TEXT</code> - a plain reply, e.g. <code>ok</code> or the value
+ * 		of a scalar variable</li>
+ * <li><code>VALUE</code> - a value; a global or table element when it
+ * 		follows a <code>NAME</code>, otherwise an element of a list such as
+ * 		the data stack or the file, line and function of a stack frame</li>
+ * <li><code>NAME</code> - the name of the value that follows, or the name
+ * 		of a local variable of a stack frame</li>
+ * <li><code>TABLE_BEGIN</code> - the start of a table, whose name is the
+ * 		field text; the named values up to <code>TABLE_END</code> are its
+ * 		elements</li>
+ * <li><code>TABLE_END</code> - the end of a table</li>
+ * <li><code>FRAME_END</code> - the end of a stack frame</li>
+ * <li><code>BATCH_REPLY</code> - the whole reply to one command of a
+ * 		<code>batch</code>, see {@link PDAFrame#getBatchReplies()}</li>
+ * </ul>
+ * </p>
+ */
+public interface IPDAReplyCursor {
+	
+	/**
+	 * Returned by {@link #next()} when there are no more fields
+	 */
+	public static final int END = -1;
+	
+	public static final int TEXT = 'T';
+	public static final int VALUE = 'V';
+	public static final int NAME = 'N';
+	public static final int TABLE_BEGIN = '{';
+	public static final int TABLE_END = '}';
+	public static final int FRAME_END = '#';
+	public static final int BATCH_REPLY = 'R';
+	
+	/**
+	 * Advances to the next field of the reply.
+	 * 
+	 * @return the type of the next field, or <code>END</code> if there
+	 * are no more fields
+	 */
+	public int next();
+	
+	/**
+	 * Returns the text of the current field.
+	 * 
+	 * @return the text of the current field
+	 */
+	public String getText();
+}
@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2008 VeriSign, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     VeriSign, Inc. - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.debug.examples.core.pda.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Groups queries to the PDA VM so they go out as one <code>batch</code>
+ * command and their replies come back in one frame, one round trip for
+ * all of them however slow the link:
+ * <pre>
+ *   PDABatch batch = target.newBatch();
+ *   PDARequest frames = batch.add("stackforide");
+ *   PDARequest changes = batch.add("changes");
+ *   batch.send();
+ *   ... frames.getReplyCursor(monitor, timeout) ...
+ * </pre>
+ * Each command gets a request of its own, which completes with that
+ * command's reply. The VM runs the commands in order, as if they had
+ * been sent one by one. Commands that resume the VM, such as
+ * <code>step</code> or <code>resume</code>, are refused in a batch.
+ * <p>
+ * When the VM sends text replies, which can not hold a batch, the
+ * commands are sent one by one instead.
+ * </p>
+ */
+public class PDABatch {
+
+	private PDADebugTarget fTarget;
+	private List fRequests = new ArrayList();
+	private boolean fSent = false;
+
+	/**
+	 * Constructs an empty batch for the given target
+	 *
+	 * @param target debug target the batch is sent to
+	 * @see PDADebugTarget#newBatch()
+	 */
+	PDABatch(PDADebugTarget target) {
+		fTarget = target;
+	}
+
+	/**
+	 * Adds a command to this batch.
+	 *
+	 * @param command command, e.g. <code>var 1 x</code>
+	 * @return the request for the command, which completes once the batch
+	 * 	has been sent and answered
+	 * @throws IllegalStateException if the batch has been sent
+	 */
+	public PDARequest add(String command) {
+		if (fSent) {
+			throw new IllegalStateException("Batch already sent");
+		}
+		PDARequest request = fTarget.newRequest(command);
+		fRequests.add(request);
+		return request;
+	}
+
+	/**
+	 * Sends the commands added to this batch without waiting for their
+	 * replies. Has no effect if the batch has been sent.
+	 */
+	public void send() {
+		if (fSent) {
+			return;
+		}
+		fSent = true;
+		fTarget.postBatch((PDARequest[]) fRequests.toArray(new PDARequest[fRequests.size()]));
+	}
+
+	/**
+	 * The <code>batch</code> request itself, which hands each reply in
+	 * the batch's frame to the request for its command
+	 */
+	static class BatchRequest extends PDARequest {
+
+		private PDARequest[] fParts;
+
+		/**
+		 * Constructs the request for a batch of the given requests
+		 *
+		 * @param target debug target the batch is sent to
+		 * @param id correlation id of the batch
+		 * @param parts requests for the commands of the batch, in order
+		 */
+		BatchRequest(PDADebugTarget target, int id, PDARequest[] parts) {
+			super(target, id, "batch " + parts.length);
+			fParts = parts;
+		}
+
+		/**
+		 * Returns the text sent for this request: the batch command and a
+		 * line for each command, without correlation ids
+		 *
+		 * @return the lines of the batch
+		 */
+		String getText() {
+			StringBuffer text = new StringBuffer();
+			text.append(getId()).append(' ').append(getCommand()).append('\n');
+			for (int i = 0; i < fParts.length; i++) {
+				text.append(fParts[i].getCommand()).append('\n');
+			}
+			return text.toString();
+		}
+
+		/* (non-Javadoc)
+		 * @see org.eclipse.debug.examples.core.pda.model.PDARequest#setReply(org.eclipse.debug.examples.core.pda.model.PDAFrame)
+		 */
+		void setReply(PDAFrame frame) {
+			super.setReply(frame);
+			PDAFrame[] replies = frame.getBatchReplies();
+			if (replies.length != fParts.length) {
+				// an error for the whole batch, e.g. from a VM that does
+				// not know the batch command
+				setFailed(new IOException(frame.getText()));
+				return;
+			}
+			for (int i = 0; i < fParts.length; i++) {
+				fParts[i].setReply(replies[i]);
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see org.eclipse.debug.examples.core.pda.model.PDARequest#setReply(java.lang.String)
+		 */
+		void setReply(String reply) {
+			// a text reply can only be an error
+			super.setReply(reply);
+			setFailed(new IOException(reply));
+		}
+
+		/* (non-Javadoc)
+		 * @see org.eclipse.debug.examples.core.pda.model.PDARequest#setFailed(java.lang.Exception)
+		 */
+		void setFailed(Exception error) {
+			super.setFailed(error);
+			for (int i = 0; i < fParts.length; i++) {
+				fParts[i].setFailed(error);
+			}
+		}
+	}
+}
@@ -11,6 +11,7 @@
  *******************************************************************************/
 package org.eclipse.debug.examples.core.pda.model;
 
+import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.debug.core.DebugException;
 import org.eclipse.debug.core.DebugPlugin;
 import org.eclipse.debug.core.IBreakpointManager;
@@ -43,8 +44,20 @@ public class PDADebugElement extends DebugElement {
 	/**
 	 * Sends a request to the PDA interpreter, waits for and returns the reply.
 	 * <p>
+	 * On the wire each command is prefixed with a correlation id that the
+	 * interpreter echoes back in front of the reply, e.g. <code>17 var 1 x</code>
+	 * is answered by <code>17 abc</code>. Requests from different threads do
+	 * not wait for each other; see {@link PDARequest}. Events come over the
+	 * same connection with the id 0, e.g. <code>0 suspended step</code>.
+	 * </p>
+	 * <p>
 	 * Interpreter commands and replies are as follows:
 	 * <ul>
+	 * <li><code>changes [all]</code> - return the locals and globals whose values changed
+	 * 		since the last <code>changes</code>, or all of them, as <code>name=value</code>
+	 * 		entries; a local is named <code>D:name</code> where <code>D</code> is the depth
+	 * 		of its frame from the bottom of the stack, a global <code>G:name</code>, and a
+	 * 		global that no longer exists has the value <code>@</code></li>
 	 * <li><code>clear N</code> - clear the breakpoint on line <code>N</code>;
 	 * 		reply is <code>ok</code></li>
 	 * <li><code>data</code> - return the contents of the data stack; reply is the data
@@ -58,7 +71,16 @@ public class PDADebugElement extends DebugElement {
 	 * 		the interpreter sends the error event (for example <code>unimlpemented instruction foo</code>)
 	 * 		and corresponding suspend event (for example <code>suspended event unimpinstr</code>).</li>
 	 * <li><code>exit</code> - end the interpreter; reply is <code>ok</code></li>
+	 * <li><code>expand H O C</code> - return up to <code>C</code> entries, starting at
+	 * 		<code>O</code>, of the table, function upvalues or userdata metatable that
+	 * 		handle <code>H</code> stands for; reply is the number of entries followed by
+	 * 		the entries, as for a ranged <code>var</code>. Tables, functions, userdata and
+	 * 		threads in any reply are sent as handles, e.g. <code>@12 table</code>, which
+	 * 		stay the same for as long as the object lives; see {@link PDATableValue}.</li>
 	 * <li><code>popdata</code> - pop the top value off the data stack; reply is the value</li>
+	 * <li><code>protocol binary</code> - send every later reply as a binary frame of
+	 * 		typed fields instead of a line of text; reply is <code>ok binary</code>, still
+	 * 		sent as text. See {@link PDAFrameCodec}.</li>
 	 * <li><code>pushdata V</code> - push the value <code>V</code> onto the data stack; reply is
 	 * 		<code>ok</code></li>
 	 * <li><code>resume</code> - resume execution of the program; reply is <code>ok</code></li>
@@ -86,6 +108,9 @@ public class PDADebugElement extends DebugElement {
 	 * <li><code>var N M</code> - return the contents of variable <code>M</code> in the control
 	 * 		stack frame <code>N</code> (stack frames are indexed from 0, 0 being the oldest);
 	 * 		reply is variable value</li>
+	 * <li><code>var N M O C</code> - as <code>var N M</code>, but for a table only up to
+	 * 		<code>C</code> entries starting at <code>O</code> are returned, after the
+	 * 		number of entries in the table, e.g. <code>100000|x[1]=abc|x[2]=def|</code></li>
 	 * </ul>
 	 * </p>
 	 * 
@@ -97,6 +122,23 @@ public class PDADebugElement extends DebugElement {
 		return getPDADebugTarget().sendRequest(request);
 	}
 	
+	/**
+	 * Sends a request to the PDA interpreter and waits for the reply, giving
+	 * up if the monitor is cancelled or the target's request timeout expires
+	 * first. Use this from views and hovers, which must never hang on a slow
+	 * or huge reply.
+	 * 
+	 * @param request command
+	 * @param monitor progress monitor, or <code>null</code>
+	 * @return reply
+	 * @throws DebugException if the request fails, is cancelled or times out
+	 * @see PDADebugTarget#getRequestTimeout()
+	 * @see PDADebugTarget#sendRequestAsync(String)
+	 */
+	public String sendRequest(String request, IProgressMonitor monitor) throws DebugException {
+		return getPDADebugTarget().sendRequest(request, monitor);
+	}
+	
 	/**
 	 * Returns the debug target as a PDA target.
 	 * 
@@ -18,13 +18,23 @@
 ******************************************************************************/
 package org.eclipse.debug.examples.core.pda.model;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.util.Vector;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.eclipse.core.resources.IContainer;
 import org.eclipse.core.resources.IMarker;
@@ -34,21 +44,23 @@ import org.eclipse.core.resources.IResource;
 import org.eclipse.core.resources.IWorkspaceRunnable;
 import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.core.runtime.CoreException;
-import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.ListenerList;
 import org.eclipse.core.runtime.Path;
 import org.eclipse.core.runtime.Status;
 import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.debug.core.DebugException;
 import org.eclipse.debug.core.IBreakpointManager;
 import org.eclipse.debug.core.IBreakpointManagerListener;
+import org.eclipse.debug.core.IStreamListener;
 import org.eclipse.debug.core.ILaunch;
 import org.eclipse.debug.core.ILaunchConfiguration;
 import org.eclipse.debug.core.model.IBreakpoint;
 import org.eclipse.debug.core.model.IDebugTarget;
 import org.eclipse.debug.core.model.IMemoryBlock;
 import org.eclipse.debug.core.model.IProcess;
+import org.eclipse.debug.core.model.IStreamMonitor;
 import org.eclipse.debug.core.model.IThread;
 import org.eclipse.debug.core.model.IValue;
 import org.eclipse.debug.core.sourcelookup.ISourceContainer;
@@ -71,12 +83,9 @@ public class PDADebugTarget extends PDADebugElement implements IDebugTarget, IBr
 	// containing launch object
 	private ILaunch fLaunch;
 	
-	// sockets to communicate with VM
-	private Socket fRequestSocket;
-	private PrintWriter fRequestWriter;
-	private BufferedReader fRequestReader;
-	private Socket fEventSocket;
-	private BufferedReader fEventReader;
+	// connection to the VM, carrying both replies and events; read and
+	// written by the shared I/O service
+	private PDAIOService.Connection fConnection;
 	
 	// terminated state
 	private boolean fTerminated = false;
@@ -85,14 +94,121 @@ public class PDADebugTarget extends PDADebugElement implements IDebugTarget, IBr
 	private IThread[] fThreads;
 	private PDAThread fThread;
 	
-	// event dispatch job
+	/**
+	 * Global variables fetched while the thread was suspended, or
+	 * <code>null</code>, and the thread's suspend count at the time
+	 */
+	private PDAVariable[] fGlobals;
+	private int fGlobalsCount;
+	private Object fGlobalsLock = new Object();
+	
+	/**
+	 * Data stack fetched while the thread was suspended, or
+	 * <code>null</code>, and the thread's suspend count at the time
+	 */
+	private IValue[] fDataStack;
+	private int fDataStackCount;
+	private Object fDataStackLock = new Object();
+	
+	// event dispatch job, and whether it is scheduled to run
 	private EventDispatchJob fEventDispatch;
-	// event listeners
-	private Vector fEventListeners = new Vector();
+	private boolean fEventDispatchScheduled = false;
+	// event listeners; copied on change, so dispatching does not copy
+	private ListenerList fEventListeners = new ListenerList();
+	// installed line breakpoints, by file and line: an IResource to a Map
+	// from Integer lines to arrays of PDALineBreakpoint, the arrays
+	// replaced rather than changed; and the file and line each breakpoint
+	// was installed at
+	private Map fLineBreakpoints = new HashMap();
+	private Map fBreakpointFiles = new HashMap();
+	private Map fBreakpointLines = new HashMap();
+	// number of bulk breakpoint changes under way, the files whose lines
+	// changed since they were sent to the VM, and the line list last sent
+	// for each file; guarded by fLineBreakpoints
+	private int fBreakpointUpdates = 0;
+	private Set fChangedFiles = new HashSet();
+	private Map fSentBreakpointLines = new HashMap();
+	
+	// workspace files of the paths the VM names scripts by, a full path
+	// without symbolic links to an IResource, or to NO_RESOURCE outside the
+	// workspace
+	private Map fSourceResources = new HashMap();
+	// events read from the connection, not yet handed to the listeners
+	private LinkedList fEvents = new LinkedList();
+	// whether reading stopped because too many events are queued
+	private boolean fEventsPaused = false;
+	// whether the connection has closed, and whether because it failed
+	private boolean fEventsClosed = false;
+	private boolean fEventsFailed = false;
+	
+	// requests waiting for a reply, keyed by correlation id
+	private Map fPendingRequests = new HashMap();
+	// correlation id of the next request
+	private int fNextRequestId = 1;
+	// whether the request socket has been closed
+	private boolean fRequestsClosed = false;
+	// whether the VM sends binary reply frames instead of text lines; set
+	// on the I/O thread, also read when sending a batch
+	private volatile boolean fBinaryReplies = false;
+	// milliseconds to wait for replies to requests made on behalf of a
+	// progress monitor
+	private long fRequestTimeout = DEFAULT_REQUEST_TIMEOUT;
+	
+	/**
+	 * Default time to wait for a reply to a request made on behalf of a
+	 * progress monitor, in milliseconds
+	 */
+	public static final long DEFAULT_REQUEST_TIMEOUT = 30000;
+	
+	/**
+	 * Time to wait for the VM to start listening and accept the connections,
+	 * in milliseconds
+	 */
+	private static final long CONNECT_TIMEOUT = 30000;
+	
+	/**
+	 * Longest pause between attempts to connect, in milliseconds
+	 */
+	private static final long MAX_CONNECT_DELAY = 500;
+	
+	/**
+	 * Correlation id the VM sends its events with; requests are numbered
+	 * from 1
+	 */
+	private static final String EVENT_ID = "0";
+	
+	/**
+	 * Pattern of the line the VM prints on its standard output once it
+	 * listens for connections: <code>ready commandPort</code>, or
+	 * <code>ready socketFile</code> when it listens on a socket file
+	 */
+	private static final Pattern READY_LINE = Pattern.compile("^ready (\\S+)", Pattern.MULTILINE);
+	
+	/**
+	 * Number of queued events at which the target stops reading from the
+	 * VM until the event dispatch job catches up. A VM flooding events
+	 * then waits on its socket instead of growing the queue.
+	 */
+	private static final int MAX_QUEUED_EVENTS = 1000;
+	
+	/**
+	 * Line list of <code>setbreakpoints</code> for a file without
+	 * breakpoints
+	 */
+	private static final String NO_LINES = "none";
+	
+	/**
+	 * Cached for a path of the VM that is not a file in the workspace
+	 */
+	private static final Object NO_RESOURCE = new Object();
 	
 	/**
-	 * Listens to events from the PDA VM and fires corresponding 
-	 * debug events.
+	 * Hands the events from the PDA VM to the event listeners, in the order
+	 * they arrived, and fires corresponding debug events. Listeners may send
+	 * requests and wait for their replies, so events are handled here rather
+	 * than on the I/O thread that reads them. The job is scheduled when
+	 * events are queued and ends once the queue is empty, so idle targets
+	 * hold no thread.
 	 */
 	class EventDispatchJob extends Job {
 		
@@ -105,21 +221,76 @@ public class PDADebugTarget extends PDADebugElement implements IDebugTarget, IBr
 		 * @see org.eclipse.core.runtime.jobs.Job#run(org.eclipse.core.runtime.IProgressMonitor)
 		 */
 		protected IStatus run(IProgressMonitor monitor) {
-			String event = "";
-			while (!isTerminated() && event != null) {
-				try {
-					event = fEventReader.readLine();
-					if (event != null) {
-						Object[] listeners = fEventListeners.toArray();
-						for (int i = 0; i < listeners.length; i++) {
-							((IPDAEventListener)listeners[i]).handleEvent(event);	
+			PDAEvent event;
+			while ((event = takeEvent()) != null) {
+				Object[] listeners = fEventListeners.getListeners();
+				for (int i = 0; i < listeners.length; i++) {
+					((IPDAEventListener)listeners[i]).handleEvent(event);	
+				}
+			}
+			return Status.OK_STATUS;
+		}
+		
+	}
+	
+	/**
+	 * Decodes replies and events as the I/O service reads them from the
+	 * PDA VM. Each reply is handed to the request with the same correlation
+	 * id; replies may arrive in any order. Events arrive as replies to the
+	 * reserved id 0 and are queued for the event dispatch job. Both are
+	 * text lines until the VM accepts binary frames. Runs on the I/O
+	 * thread, so it must not block.
+	 */
+	class ReplyHandler implements PDAIOService.IConnectionHandler {
+		
+		// bytes read but not decoded yet, in write mode
+		private ByteBuffer fInput = ByteBuffer.allocate(8 * 1024);
+		// whether the VM sent something that is not a reply
+		private boolean fCorrupt = false;
+		
+		/* (non-Javadoc)
+		 * @see org.eclipse.debug.examples.core.pda.model.PDAIOService.IConnectionHandler#received(java.nio.ByteBuffer)
+		 */
+		public void received(ByteBuffer data) {
+			if (fInput.remaining() < data.remaining()) {
+				ByteBuffer input = ByteBuffer.allocate(Math.max(fInput.capacity() * 2, fInput.position() + data.remaining()));
+				fInput.flip();
+				input.put(fInput);
+				fInput = input;
+			}
+			fInput.put(data);
+			fInput.flip();
+			try {
+				while (true) {
+					// a reply may switch the stream to frames, so each one
+					// is dispatched before the next is decoded
+					if (fBinaryReplies) {
+						PDAFrame frame = PDAFrameCodec.decodeFrame(fInput);
+						if (frame == null) {
+							break;
+						}
+						dispatchReply(frame);
+					} else {
+						String reply = PDAFrameCodec.decodeLine(fInput);
+						if (reply == null) {
+							break;
 						}
+						dispatchReply(reply);
 					}
-				} catch (IOException e) {
-					terminated();
 				}
+			} catch (IOException e) {
+				fCorrupt = true;
+				fConnection.close();
 			}
-			return Status.OK_STATUS;
+			fInput.compact();
+		}
+		
+		/* (non-Javadoc)
+		 * @see org.eclipse.debug.examples.core.pda.model.PDAIOService.IConnectionHandler#closed(java.io.IOException)
+		 */
+		public void closed(IOException error) {
+			failPendingRequests(new IOException("Request socket closed"));
+			closeEvents(error != null || fCorrupt);
 		}
 		
 	}
@@ -132,9 +303,7 @@ public class PDADebugTarget extends PDADebugElement implements IDebugTarget, IBr
 	 * @param listener event listener
 	 */
 	public void addEventListener(IPDAEventListener listener) {
-		if (!fEventListeners.contains(listener)) {
-			fEventListeners.add(listener);
-		}
+		fEventListeners.add(listener);
 	}
 	
 	/**
@@ -147,46 +316,294 @@ public class PDADebugTarget extends PDADebugElement implements IDebugTarget, IBr
 		fEventListeners.remove(listener);
 	}
 	
+	/**
+	 * Registers the given line breakpoint to be told when the VM suspends
+	 * at the given line of its file. A breakpoint already registered is
+	 * moved to the line.
+	 * 
+	 * @param breakpoint line breakpoint
+	 * @param lineNumber 1-based line of the breakpoint
+	 */
+	public void addLineBreakpoint(PDALineBreakpoint breakpoint, int lineNumber) {
+		IResource file = getBreakpointResource(breakpoint);
+		if (file == null) {
+			return;
+		}
+		synchronized (fLineBreakpoints) {
+			removeLineBreakpoint(breakpoint);
+			Map lines = (Map) fLineBreakpoints.get(file);
+			if (lines == null) {
+				lines = new HashMap();
+				fLineBreakpoints.put(file, lines);
+			}
+			Integer line = new Integer(lineNumber);
+			PDALineBreakpoint[] old = getLineBreakpoints(file, lineNumber);
+			PDALineBreakpoint[] breakpoints = new PDALineBreakpoint[old.length + 1];
+			System.arraycopy(old, 0, breakpoints, 0, old.length);
+			breakpoints[old.length] = breakpoint;
+			lines.put(line, breakpoints);
+			fBreakpointFiles.put(breakpoint, file);
+			fBreakpointLines.put(breakpoint, line);
+			fChangedFiles.add(file);
+		}
+	}
+	
+	/**
+	 * Deregisters the given line breakpoint. Has no effect if it is not
+	 * registered.
+	 * 
+	 * @param breakpoint line breakpoint
+	 */
+	public void removeLineBreakpoint(PDALineBreakpoint breakpoint) {
+		synchronized (fLineBreakpoints) {
+			IResource file = (IResource) fBreakpointFiles.remove(breakpoint);
+			Integer line = (Integer) fBreakpointLines.remove(breakpoint);
+			if (file == null) {
+				return;
+			}
+			fChangedFiles.add(file);
+			Map lines = (Map) fLineBreakpoints.get(file);
+			PDALineBreakpoint[] old = (PDALineBreakpoint[]) lines.get(line);
+			if (old.length == 1) {
+				lines.remove(line);
+				if (lines.isEmpty()) {
+					fLineBreakpoints.remove(file);
+				}
+				return;
+			}
+			PDALineBreakpoint[] breakpoints = new PDALineBreakpoint[old.length - 1];
+			int j = 0;
+			for (int i = 0; i < old.length; i++) {
+				if (old[i] != breakpoint) {
+					breakpoints[j++] = old[i];
+				}
+			}
+			lines.put(line, breakpoints);
+		}
+	}
+	
+	/**
+	 * Sends the lines of the registered line breakpoints of each file
+	 * whose breakpoints changed to the VM, in one
+	 * <code>setbreakpoints</code> request per file, which replaces all the
+	 * breakpoints the VM has for the file. Nothing is sent for a file whose
+	 * lines are the same as last sent, or while breakpoints are changed in
+	 * bulk, which sends them once at the end. Does not wait for the
+	 * replies.
+	 */
+	public void updateLineBreakpoints() {
+		synchronized (fLineBreakpoints) {
+			if (fBreakpointUpdates > 0) {
+				return;
+			}
+			Iterator files = fChangedFiles.iterator();
+			while (files.hasNext()) {
+				IResource file = (IResource) files.next();
+				String lines = NO_LINES;
+				Map numbers = (Map) fLineBreakpoints.get(file);
+				if (numbers != null) {
+					Integer[] sorted = (Integer[]) numbers.keySet().toArray(new Integer[numbers.size()]);
+					Arrays.sort(sorted);
+					StringBuffer buffer = new StringBuffer();
+					for (int i = 0; i < sorted.length; i++) {
+						if (i > 0) {
+							buffer.append(',');
+						}
+						buffer.append(sorted[i]);
+					}
+					lines = buffer.toString();
+				}
+				Object sent = fSentBreakpointLines.get(file);
+				if (lines.equals(sent == null ? NO_LINES : sent) || file.getLocation() == null) {
+					continue;
+				}
+				fSentBreakpointLines.put(file, lines);
+				String location = file.getLocation().toOSString();
+				synchronized (fSourceResources) {
+					// the VM names the file by this path when it stops in it
+					fSourceResources.put(getCanonicalPath(location), file);
+				}
+				// sent under the lock, so the VM gets the line lists in order
+				sendRequestAsync("setbreakpoints " + location + " " + lines);
+			}
+			fChangedFiles.clear();
+		}
+	}
+	
+	/**
+	 * Installs or removes all the given breakpoints, sending the VM the
+	 * resulting lines once rather than once per breakpoint
+	 * 
+	 * @param breakpoints breakpoints
+	 * @param install whether to install or remove them
+	 */
+	private void updateBreakpoints(IBreakpoint[] breakpoints, boolean install) {
+		synchronized (fLineBreakpoints) {
+			fBreakpointUpdates++;
+		}
+		try {
+			for (int i = 0; i < breakpoints.length; i++) {
+				if (install) {
+					breakpointAdded(breakpoints[i]);
+				} else {
+					breakpointRemoved(breakpoints[i], null);
+				}
+			}
+		} finally {
+			synchronized (fLineBreakpoints) {
+				fBreakpointUpdates--;
+			}
+		}
+		updateLineBreakpoints();
+	}
+	
+	/**
+	 * Returns the line breakpoints registered at the given line of a file
+	 * 
+	 * @param file workspace file, or <code>null</code>
+	 * @param lineNumber 1-based line
+	 * @return the breakpoints, possibly none
+	 */
+	private PDALineBreakpoint[] getLineBreakpoints(IResource file, int lineNumber) {
+		synchronized (fLineBreakpoints) {
+			Map lines = (Map) fLineBreakpoints.get(file);
+			PDALineBreakpoint[] breakpoints = null;
+			if (lines != null) {
+				breakpoints = (PDALineBreakpoint[]) lines.get(new Integer(lineNumber));
+			}
+			if (breakpoints == null) {
+				return new PDALineBreakpoint[0];
+			}
+			return breakpoints;
+		}
+	}
+	
+	/**
+	 * Returns the line breakpoints registered at the given line of the
+	 * file the VM names by the given path
+	 * 
+	 * @param path full path of the file, as the VM sends it
+	 * @param lineNumber 1-based line
+	 * @return the breakpoints, none if the path is not a workspace file
+	 */
+	PDALineBreakpoint[] getLineBreakpoints(String path, int lineNumber) {
+		return getLineBreakpoints(getSourceResource(path), lineNumber);
+	}
+	
+	/**
+	 * Returns the workspace file the VM names by the given path. Looked up
+	 * once per path, as every breakpoint hit names one. The VM resolves
+	 * symbolic links, so a file the breakpoints were sent for is known by
+	 * its canonical path even in a linked folder or a workspace reached
+	 * through a link.
+	 * 
+	 * @param path full path of a file in the file system, without symbolic
+	 * 	links
+	 * @return the file, or <code>null</code> if it is not in the workspace
+	 */
+	private IResource getSourceResource(String path) {
+		synchronized (fSourceResources) {
+			Object resource = fSourceResources.get(path);
+			if (resource == null) {
+				resource = ResourcesPlugin.getWorkspace().getRoot().getFileForLocation(new Path(path));
+				if (resource == null) {
+					resource = NO_RESOURCE;
+				}
+				fSourceResources.put(path, resource);
+			}
+			return resource == NO_RESOURCE ? null : (IResource) resource;
+		}
+	}
+	
+	/**
+	 * Returns the given path without symbolic links, as the VM names
+	 * files
+	 * 
+	 * @param path full path of a file in the file system
+	 * @return canonical path, or the path itself if it cannot be resolved
+	 */
+	private static String getCanonicalPath(String path) {
+		try {
+			return new File(path).getCanonicalPath();
+		} catch (IOException e) {
+			return path;
+		}
+	}
+	
 	/**
 	 * Constructs a new debug target in the given launch for the 
-	 * associated PDA VM process.
+	 * associated PDA VM process. The VM must have been started with
+	 * <code>-e none</code>, so that it sends its events over the request
+	 * connection; a single connection keeps replies and events in the
+	 * order the VM sent them.
+	 * <p>
+	 * When the port is 0 the VM picks a free port itself and announces
+	 * it in a <code>ready</code> line on its standard output; the target
+	 * connects as soon as that line appears. The port is not known ahead,
+	 * so no other process can take it in between.
+	 * </p>
 	 * 
 	 * @param launch containing launch
 	 * @param process PDA VM
-	 * @param requestPort port to send requests to the VM
-	 * @param eventPort port to read events from
+	 * @param requestPort port to send requests to the VM, or 0
 	 * @exception CoreException if unable to connect to host
 	 */
-	public PDADebugTarget(ILaunch launch, IProcess process, int requestPort, int eventPort) throws CoreException {
+	public PDADebugTarget(ILaunch launch, IProcess process, int requestPort) throws CoreException {
+		this(launch, process, requestPort, null);
+	}
+	
+	/**
+	 * Constructs a new debug target in the given launch for the
+	 * associated PDA VM process, which was started with
+	 * <code>-u socketFile</code> and listens on that AF_UNIX socket file
+	 * rather than a TCP port. The target connects once the VM prints its
+	 * <code>ready</code> line. Only use when
+	 * {@link #supportsUnixSockets()} is <code>true</code>.
+	 * 
+	 * @param launch containing launch
+	 * @param process PDA VM
+	 * @param socketFile socket file to send requests to the VM through
+	 * @exception CoreException if unable to connect to the VM
+	 */
+	public PDADebugTarget(ILaunch launch, IProcess process, String socketFile) throws CoreException {
+		this(launch, process, 0, socketFile);
+	}
+	
+	private PDADebugTarget(ILaunch launch, IProcess process, int requestPort, String socketFile) throws CoreException {
 		super(null);
 		fLaunch = launch;
 		fProcess = process;
 		addEventListener(this);
+		fThread = new PDAThread(this);
+		fThreads = new IThread[] {fThread};
+		fEventDispatch = new EventDispatchJob();
 		try {
-			// give interpreter a chance to start
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-			}
-			fRequestSocket = new Socket("localhost", requestPort);
-			fRequestWriter = new PrintWriter(fRequestSocket.getOutputStream());
-			fRequestReader = new BufferedReader(new InputStreamReader(fRequestSocket.getInputStream()));
-			// give interpreter a chance to open next socket
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
+			long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+			SocketAddress address;
+			if (socketFile != null) {
+				waitForReady(deadline);
+				address = unixSocketAddress(socketFile);
+			} else {
+				if (requestPort == 0) {
+					requestPort = Integer.parseInt(waitForReady(deadline));
+				}
+				address = new InetSocketAddress("localhost", requestPort);
 			}
-			fEventSocket = new Socket("localhost", eventPort);
-			fEventReader = new BufferedReader(new InputStreamReader(fEventSocket.getInputStream()));
-		} catch (UnknownHostException e) {
-			requestFailed("Unable to connect to PDA VM", e);
+			fConnection = PDAIOService.getDefault().register(connect(address, deadline), new ReplyHandler());
 		} catch (IOException e) {
 			requestFailed("Unable to connect to PDA VM", e);
 		}
-		fThread = new PDAThread(this);
-		fThreads = new IThread[] {fThread};
-		fEventDispatch = new EventDispatchJob();
-		fEventDispatch.schedule();
+		// ask for binary replies before anything else; an older VM
+		// answers something other than "ok binary" and keeps sending text
+		sendRequestAsync(PDAFrameCodec.PROTOCOL_BINARY);
+		// and, when the launch asks for it, to have large payloads, globals
+		// and big tables, compressed; a VM that can not refuses and sends
+		// them as they are
+		ILaunchConfiguration configuration = launch.getLaunchConfiguration();
+		if (configuration != null && configuration.getAttribute(DebugCorePlugin.ATTR_LDB_COMPRESS, false)) {
+			sendRequestAsync(PDAFrameCodec.PROTOCOL_COMPRESS + " " + PDAFrameCodec.COMPRESS_THRESHOLD);
+		}
+		fConnection.setReading(true);
 		IBreakpointManager breakpointManager = getBreakpointManager();
         breakpointManager.addBreakpointListener(this);
 		breakpointManager.addBreakpointManagerListener(this);
@@ -198,6 +615,153 @@ public class PDADebugTarget extends PDADebugElement implements IDebugTarget, IBr
 		*/
 	}
 
+	/**
+	 * Waits for the VM to print its <code>ready</code> line and returns
+	 * the port or socket file in it.
+	 * 
+	 * @param deadline time to give up at
+	 * @return command port or socket file
+	 * @throws IOException if the VM ends or the deadline passes first
+	 */
+	private String waitForReady(long deadline) throws IOException {
+		IStreamMonitor output = fProcess.getStreamsProxy().getOutputStreamMonitor();
+		// what the VM printed, guarded by itself; the monitor's contents
+		// can not be relied on, as a console connected to the process
+		// flushes them and stops them being kept
+		final StringBuffer printed = new StringBuffer();
+		IStreamListener listener = new IStreamListener() {
+			public void streamAppended(String text, IStreamMonitor monitor) {
+				synchronized (printed) {
+					printed.append(text);
+					printed.notifyAll();
+				}
+			}
+		};
+		synchronized (output) {
+			// no text is appended in between, so none is missed or doubled
+			output.addListener(listener);
+			synchronized (printed) {
+				printed.append(output.getContents());
+			}
+		}
+		try {
+			synchronized (printed) {
+				while (true) {
+					Matcher ready = READY_LINE.matcher(printed);
+					if (ready.find()) {
+						return ready.group(1);
+					}
+					long remaining = deadline - System.currentTimeMillis();
+					if (fProcess.isTerminated() || remaining <= 0) {
+						throw new IOException("VM did not print its ready line");
+					}
+					try {
+						printed.wait(Math.min(remaining, MAX_CONNECT_DELAY));
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted waiting for the VM");
+					}
+				}
+			}
+		} finally {
+			output.removeListener(listener);
+		}
+	}
+	
+	/**
+	 * Connects to the given address, a port on the local host or a socket
+	 * file. Failed attempts are retried after a pause that doubles each
+	 * time, up to {@link #MAX_CONNECT_DELAY}, until the deadline.
+	 * 
+	 * @param address address to connect to
+	 * @param deadline time to give up at
+	 * @return connected channel
+	 * @throws IOException if the last attempt fails
+	 */
+	private SocketChannel connect(SocketAddress address, long deadline) throws IOException {
+		long delay = 10;
+		while (true) {
+			try {
+				if (address instanceof InetSocketAddress) {
+					return SocketChannel.open(address);
+				}
+				SocketChannel channel = openUnixChannel();
+				try {
+					channel.connect(address);
+				} catch (IOException e) {
+					channel.close();
+					throw e;
+				}
+				return channel;
+			} catch (IOException e) {
+				if (fProcess.isTerminated() || System.currentTimeMillis() + delay > deadline) {
+					throw e;
+				}
+			}
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted connecting to the VM");
+			}
+			delay = Math.min(delay * 2, MAX_CONNECT_DELAY);
+		}
+	}
+	
+	/**
+	 * Returns whether this VM can connect to AF_UNIX socket files, which
+	 * needs a Java 16 or later class library on a platform that has them.
+	 * 
+	 * @return whether targets can be constructed with a socket file
+	 */
+	public static boolean supportsUnixSockets() {
+		try {
+			unixSocketAddress("ldb.sock");
+			openUnixChannel().close();
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Returns the address of the given AF_UNIX socket file. Looked up
+	 * reflectively, as the class library may be older than Java 16.
+	 * 
+	 * @param socketFile socket file
+	 * @return address of the file
+	 * @throws IOException if AF_UNIX sockets are not supported
+	 */
+	private static SocketAddress unixSocketAddress(String socketFile) throws IOException {
+		try {
+			Method of = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", new Class[] {String.class});
+			return (SocketAddress) of.invoke(null, new Object[] {socketFile});
+		} catch (Exception e) {
+			throw new IOException("AF_UNIX sockets not supported: " + e);
+		}
+	}
+	
+	/**
+	 * Opens an unconnected AF_UNIX socket channel, reflectively as in
+	 * {@link #unixSocketAddress(String)}.
+	 * 
+	 * @return blocking channel
+	 * @throws IOException if AF_UNIX sockets are not supported
+	 */
+	private static SocketChannel openUnixChannel() throws IOException {
+		try {
+			Class family = Class.forName("java.net.ProtocolFamily");
+			Object unix = Class.forName("java.net.StandardProtocolFamily").getField("UNIX").get(null);
+			Method open = SocketChannel.class.getMethod("open", new Class[] {family});
+			return (SocketChannel) open.invoke(null, new Object[] {unix});
+		} catch (InvocationTargetException e) {
+			if (e.getTargetException() instanceof IOException) {
+				throw (IOException) e.getTargetException();
+			}
+			throw new IOException("AF_UNIX sockets not supported: " + e.getTargetException());
+		} catch (Exception e) {
+			throw new IOException("AF_UNIX sockets not supported: " + e);
+		}
+	}
+
     /* (non-Javadoc)
 	 * @see org.eclipse.debug.core.model.IDebugTarget#getProcess()
 	 */
@@ -227,29 +791,30 @@ public class PDADebugTarget extends PDADebugElement implements IDebugTarget, IBr
 	 */
 	public boolean supportsBreakpoint(IBreakpoint breakpoint) {
 		if (!isTerminated() && breakpoint.getModelIdentifier().equals(getModelIdentifier())) {
-			try {
-				String program = getLaunch().getLaunchConfiguration().getAttribute(DebugCorePlugin.ATTR_PDA_PROGRAM, (String)null);
-				if (program != null) {
-					IResource resource = null;
-					if (breakpoint instanceof PDARunToLineBreakpoint) {
-						PDARunToLineBreakpoint rtl = (PDARunToLineBreakpoint) breakpoint;
-						resource = rtl.getSourceFile();
-					} else {
-						IMarker marker = breakpoint.getMarker();
-						if (marker != null) {
-							resource = marker.getResource();
-						}
-					}
-					if (resource != null) {
-						IPath p = new Path(program);
-						return resource.getFullPath().equals(p);
-					}
-				}
-			} catch (CoreException e) {
-			}			
+			// any file the VM can load, not only the launched program, as
+			// it may require other scripts
+			IResource resource = getBreakpointResource(breakpoint);
+			return resource != null && resource.getType() == IResource.FILE && resource.getLocation() != null;
 		}
 		return false;
 	}
+	
+	/**
+	 * Returns the file the given breakpoint is set in
+	 * 
+	 * @param breakpoint breakpoint
+	 * @return the file, or <code>null</code> if it has none
+	 */
+	private IResource getBreakpointResource(IBreakpoint breakpoint) {
+		if (breakpoint instanceof PDARunToLineBreakpoint) {
+			return ((PDARunToLineBreakpoint) breakpoint).getSourceFile();
+		}
+		IMarker marker = breakpoint.getMarker();
+		if (marker == null) {
+			return null;
+		}
+		return marker.getResource();
+	}
 	/* (non-Javadoc)
 	 * @see org.eclipse.debug.core.model.IDebugElement#getDebugTarget()
 	 */
@@ -402,10 +967,7 @@ public class PDADebugTarget extends PDADebugElement implements IDebugTarget, IBr
 	 * manager.
 	 */
 	private void installDeferredBreakpoints() {
-		IBreakpoint[] breakpoints = getBreakpointManager().getBreakpoints(getModelIdentifier());
-		for (int i = 0; i < breakpoints.length; i++) {
-			breakpointAdded(breakpoints[i]);
-		}
+		updateBreakpoints(getBreakpointManager().getBreakpoints(getModelIdentifier()), true);
 	}
 	
 	/**
@@ -420,6 +982,7 @@ public class PDADebugTarget extends PDADebugElement implements IDebugTarget, IBr
 		breakpointManager.removeBreakpointManagerListener(this);
 		fireTerminateEvent();
 		removeEventListener(this);
+		fConnection.close();
 	}
 	
 	/**
@@ -428,81 +991,460 @@ public class PDADebugTarget extends PDADebugElement implements IDebugTarget, IBr
 	 * @return the values on the data stack (top down)
 	 */
 	public IValue[] getDataStack() throws DebugException {
-		String dataStack = sendRequest("data");
-		if (dataStack != null && dataStack.length() > 0) {
-			String[] values = dataStack.split("\\|");
-			IValue[] theValues = new IValue[values.length];
-			for (int i = 0; i < values.length; i++) {
-				String value = values[values.length - i - 1];
-				theValues[i] = new PDAStackValue(this, value, i);
+		return getDataStack(null);
+	}
+	
+	/**
+	 * Returns the values on the data stack (top down), giving up if the
+	 * monitor is cancelled or the request times out. They are fetched once
+	 * each time the thread suspends, and again after a push or a pop.
+	 * 
+	 * @param monitor progress monitor, or <code>null</code>
+	 * @return the values on the data stack (top down)
+	 * @throws DebugException if the request fails, is cancelled or times out
+	 * @see #getRequestTimeout()
+	 */
+	public IValue[] getDataStack(IProgressMonitor monitor) throws DebugException {
+		PDAThread thread = getThread();
+		if (thread == null) {
+			return toDataStack(sendRequestAsync("data"), monitor);
+		}
+		synchronized (fDataStackLock) {
+			int suspendCount = thread.getSuspendCount();
+			if (fDataStack == null || fDataStackCount != suspendCount) {
+				fDataStack = toDataStack(sendRequestAsync("data"), monitor);
+				fDataStackCount = suspendCount;
 			}
-			return theValues;
+			return fDataStack;
+		}
+	}
+	
+	/**
+	 * Drops the data stack fetched in this suspend, after a request that
+	 * changes it
+	 */
+	private void dataStackChanged() {
+		synchronized (fDataStackLock) {
+			fDataStack = null;
+		}
+	}
+	
+	/**
+	 * Waits for the reply to the given <code>data</code> request and returns
+	 * the values on the data stack (top down)
+	 * 
+	 * @param request <code>data</code> request
+	 * @param monitor progress monitor, or <code>null</code>
+	 * @return the values on the data stack (top down)
+	 * @throws DebugException if the request fails, is cancelled or times out
+	 */
+	private IValue[] toDataStack(PDARequest request, IProgressMonitor monitor) throws DebugException {
+		IPDAReplyCursor reply = request.getReplyCursor(monitor, getRequestTimeout());
+		return toDataStack(PDAReplyParser.parseValues(reply));
+	}
+	
+	/**
+	 * Returns the given values of the data stack top down
+	 * 
+	 * @param values values of the data stack, bottom up
+	 * @return the values on the data stack (top down)
+	 */
+	private IValue[] toDataStack(String[] values) {
+		IValue[] theValues = new IValue[values.length];
+		for (int i = 0; i < values.length; i++) {
+			String value = values[values.length - i - 1];
+			theValues[i] = new PDAStackValue(this, value, i);
 		}
-		return new IValue[0];		
+		return theValues;
 	}
 
 	public IValue[] getGlobals() throws DebugException {
-		String data = sendRequest("getglobals");
-		String[] strings = data.split("\\|");
-		
-		int numVars = strings.length;
-		PDAVariable[] vars = new PDAVariable[numVars];
-		PDAStackFrame dummyStackFrame = new PDAStackFrame(new PDAThread(this), "dummyfile|1|dummyfunctionname|dummyvarName", 0);
-		for (int i = 0; i < numVars; i++) {
-			// strings[i] is something like "x[1]=abc"
-			String[] nameVal = strings[i].split("\\=");
-			// Save the "x[1]" here
-			PDAVariable pdaVar = new PDAVariable(dummyStackFrame, nameVal[0]);
-			// the stack frame is never going to be used so it is 0
-			// this is because all globals are retrieved in 1 shot
-			// and the array of PDAVariables/PDAVlue know not to 
-			// retrieve again using the stack frame
-			// Save the "abc" here
-			pdaVar.setPDAVaribleValue(nameVal[1]);
-			pdaVar.setGlobal(true);
-			vars[i] = pdaVar;
+		return getGlobals(null);
+	}
+
+	/**
+	 * Returns the global variables, giving up if the monitor is cancelled
+	 * or a request times out
+	 * 
+	 * @param monitor progress monitor, or <code>null</code>
+	 * @return a single value holding the global variables
+	 * @throws DebugException if a request fails, is cancelled or times out
+	 * @see #getRequestTimeout()
+	 */
+	public IValue[] getGlobals(IProgressMonitor monitor) throws DebugException {
+		return new IValue[] {new PDAValue(this, "globals", getGlobalVariables(monitor))};
+	}
+	
+	/**
+	 * Returns the global variables. They are made once each time the
+	 * thread suspends, from the values the thread keeps up to date with
+	 * the interpreter's changes, and shared by every stack frame and by
+	 * {@link #getGlobals(IProgressMonitor)}. The variables belong to the
+	 * top stack frame.
+	 * 
+	 * @param monitor progress monitor, or <code>null</code>
+	 * @return the global variables, none if the thread is not suspended
+	 * @throws DebugException if a request fails, is cancelled or times out
+	 * @see #getRequestTimeout()
+	 */
+	public PDAVariable[] getGlobalVariables(IProgressMonitor monitor) throws DebugException {
+		PDAThread thread = getThread();
+		if (thread == null) {
+			return new PDAVariable[0];
+		}
+		synchronized (fGlobalsLock) {
+			int suspendCount = thread.getSuspendCount();
+			if (fGlobals == null || fGlobalsCount != suspendCount) {
+				PDAStackFrame top = (PDAStackFrame) thread.getTopStackFrame(monitor);
+				if (top == null) {
+					return new PDAVariable[0];
+				}
+				String[][] reported = thread.getReportedGlobals();
+				if (reported != null) {
+					fGlobals = new PDAVariable[reported.length];
+					for (int i = 0; i < reported.length; i++) {
+						fGlobals[i] = new PDAVariable(top, reported[i][0]);
+						fGlobals[i].setGlobalVal(reported[i][1]);
+						fGlobals[i].setGlobal(true);
+					}
+				} else {
+					PDARequest request = sendRequestAsync("getglobals");
+					fGlobals = PDAReplyParser.parseGlobals(top, request.getReplyCursor(monitor, getRequestTimeout()));
+				}
+				fGlobalsCount = suspendCount;
+			}
+			return fGlobals;
 		}
-		
-		IValue[] values = new IValue[1];
-		values[0] = new PDAValue(this, "globals", vars);
-		return values;	
 	}
 
 	/* (non-Javadoc)
 	 * @see org.eclipse.debug.examples.core.pda.model.PDADebugElement#sendRequest(java.lang.String)
 	 */
 	public String sendRequest(String request) throws DebugException {
-		synchronized (fRequestSocket) {
-			fRequestWriter.println(request);
-			fRequestWriter.flush();
-			try {
-				// wait for reply
-				String reply = fRequestReader.readLine();
-				return reply;
-			} catch (IOException e) {
-				requestFailed("Request failed: " + request, e);
+		return sendRequestAsync(request).getReply();
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.eclipse.debug.examples.core.pda.model.PDADebugElement#sendRequest(java.lang.String, org.eclipse.core.runtime.IProgressMonitor)
+	 */
+	public String sendRequest(String request, IProgressMonitor monitor) throws DebugException {
+		return sendRequest(request, monitor, getRequestTimeout());
+	}
+	
+	/**
+	 * Sends a request to the VM and waits for the reply, giving up if the
+	 * monitor is cancelled or the timeout expires first.
+	 * 
+	 * @param request command
+	 * @param monitor progress monitor, or <code>null</code>
+	 * @param timeout milliseconds to wait for the reply, or <code>0</code>
+	 *  to wait until it arrives
+	 * @return reply
+	 * @throws DebugException if the request fails, is cancelled or times out
+	 */
+	public String sendRequest(String request, IProgressMonitor monitor, long timeout) throws DebugException {
+		return sendRequestAsync(request).getReply(monitor, timeout);
+	}
+	
+	/**
+	 * Sends a request to the VM without waiting for the reply. The
+	 * returned request can be waited on, with or without a timeout,
+	 * or cancelled.
+	 * 
+	 * @param request command
+	 * @return the request waiting for its reply
+	 */
+	public PDARequest sendRequestAsync(String request) {
+		return postRequest(request);
+	}
+	
+	/**
+	 * Returns how long requests made on behalf of a progress monitor wait
+	 * for their reply, in milliseconds.
+	 * 
+	 * @return request timeout in milliseconds, <code>0</code> meaning no timeout
+	 */
+	public long getRequestTimeout() {
+		return fRequestTimeout;
+	}
+	
+	/**
+	 * Sets how long requests made on behalf of a progress monitor wait
+	 * for their reply, in milliseconds.
+	 * 
+	 * @param timeout request timeout in milliseconds, <code>0</code> meaning
+	 *  no timeout
+	 */
+	public void setRequestTimeout(long timeout) {
+		fRequestTimeout = timeout;
+	}
+	
+	/**
+	 * Sends all of the given requests in one batch before waiting for any
+	 * reply, so the whole group costs a single round trip to the VM.
+	 * 
+	 * @param requests commands
+	 * @return replies, in the same order as the requests
+	 * @throws DebugException if any of the requests fail
+	 * @see #newBatch()
+	 */
+	public String[] sendRequests(String[] requests) throws DebugException {
+		PDABatch batch = newBatch();
+		PDARequest[] pending = new PDARequest[requests.length];
+		for (int i = 0; i < requests.length; i++) {
+			pending[i] = batch.add(requests[i]);
+		}
+		batch.send();
+		String[] replies = new String[requests.length];
+		for (int i = 0; i < pending.length; i++) {
+			replies[i] = pending[i].getReply();
+		}
+		return replies;
+	}
+	
+	/**
+	 * Returns a new, empty batch of requests for this target
+	 * 
+	 * @return a new batch
+	 */
+	public PDABatch newBatch() {
+		return new PDABatch(this);
+	}
+	
+	/**
+	 * Returns a new request for the given command with a new correlation
+	 * id, not sent yet
+	 * 
+	 * @param command command
+	 * @return the request
+	 */
+	PDARequest newRequest(String command) {
+		synchronized (fPendingRequests) {
+			return new PDARequest(this, fNextRequestId++, command);
+		}
+	}
+	
+	/**
+	 * Tags the given command with a new correlation id and writes it to
+	 * the VM without waiting for the reply.
+	 * 
+	 * @param command command
+	 * @return the request waiting for its reply
+	 */
+	private PDARequest postRequest(String command) {
+		PDARequest request = newRequest(command);
+		post(request, request.getId() + " " + command + "\n");
+		return request;
+	}
+	
+	/**
+	 * Writes the given requests to the VM in one <code>batch</code> command
+	 * without waiting for the replies. A single request, or requests to a
+	 * VM that sends text replies, are written one by one.
+	 * 
+	 * @param requests requests made with {@link #newRequest(String)}
+	 */
+	void postBatch(PDARequest[] requests) {
+		if (requests.length == 1 || !fBinaryReplies) {
+			for (int i = 0; i < requests.length; i++) {
+				post(requests[i], requests[i].getId() + " " + requests[i].getCommand() + "\n");
+			}
+		} else if (requests.length > 1) {
+			PDABatch.BatchRequest batch;
+			synchronized (fPendingRequests) {
+				batch = new PDABatch.BatchRequest(this, fNextRequestId++, requests);
+			}
+			post(batch, batch.getText());
+		}
+	}
+	
+	/**
+	 * Registers the given request to wait for its reply and writes it to
+	 * the VM
+	 * 
+	 * @param request request
+	 * @param text the request's lines, with its correlation id
+	 */
+	private void post(PDARequest request, String text) {
+		synchronized (fPendingRequests) {
+			if (fRequestsClosed) {
+				request.setFailed(new IOException("Request socket closed"));
+				return;
 			}
+			fPendingRequests.put(new Integer(request.getId()), request);
+		}
+		try {
+			fConnection.send(ByteBuffer.wrap(text.getBytes("UTF-8")));
+		} catch (IOException e) {
+			forgetRequest(request);
+			request.setFailed(e);
+		}
+	}
+	
+	/**
+	 * Stops waiting for the reply to the given request, which has been
+	 * cancelled. A reply that arrives later is dropped.
+	 * 
+	 * @param request cancelled request
+	 */
+	void forgetRequest(PDARequest request) {
+		synchronized (fPendingRequests) {
+			fPendingRequests.remove(new Integer(request.getId()));
+		}
+	}
+	
+	/**
+	 * Completes the pending request that the given reply line answers.
+	 * A reply line is the correlation id of the request followed by a
+	 * space and the reply, e.g. <code>"17 abc"</code>.
+	 * 
+	 * @param line reply line from the VM
+	 */
+	private void dispatchReply(String line) {
+		int space = line.indexOf(' ');
+		String id = space < 0 ? line : line.substring(0, space);
+		String reply = space < 0 ? "" : line.substring(space + 1);
+		if (id.equals(EVENT_ID)) {
+			postEvent(reply);
+			return;
+		}
+		PDARequest request;
+		try {
+			synchronized (fPendingRequests) {
+				request = (PDARequest) fPendingRequests.remove(Integer.valueOf(id));
+			}
+		} catch (NumberFormatException e) {
+			return;
+		}
+		if (request != null) {
+			if (request.getCommand().equals(PDAFrameCodec.PROTOCOL_BINARY) &&
+					reply.equals(PDAFrameCodec.PROTOCOL_BINARY_OK)) {
+				// every reply after this one is a binary frame
+				fBinaryReplies = true;
+			}
+			request.setReply(reply);
+		}
+	}
+	
+	/**
+	 * Completes the pending request that the given binary frame answers.
+	 * 
+	 * @param frame reply frame from the VM
+	 */
+	private void dispatchReply(PDAFrame frame) {
+		if (frame.getId() == 0) {
+			postEvent(frame.getText());
+			return;
+		}
+		PDARequest request;
+		synchronized (fPendingRequests) {
+			request = (PDARequest) fPendingRequests.remove(new Integer(frame.getId()));
+		}
+		if (request != null) {
+			request.setReply(frame);
+		}
+	}
+	
+	/**
+	 * Queues an event for the event dispatch job. Stops reading from the
+	 * VM while the queue is full.
+	 * 
+	 * @param event event from the VM
+	 */
+	private void postEvent(String event) {
+		PDAEvent parsed = new PDAEvent(event);
+		synchronized (fEvents) {
+			fEvents.addLast(parsed);
+			if (!fEventsPaused && fEvents.size() >= MAX_QUEUED_EVENTS) {
+				fEventsPaused = true;
+				fConnection.setReading(false);
+			}
+			scheduleEventDispatch();
+		}
+	}
+	
+	/**
+	 * Ends the events once those already queued have been handled
+	 * 
+	 * @param failed whether the connection to the VM failed
+	 */
+	private void closeEvents(boolean failed) {
+		synchronized (fEvents) {
+			fEventsClosed = true;
+			fEventsFailed = failed;
+			scheduleEventDispatch();
+		}
+	}
+	
+	/**
+	 * Schedules the event dispatch job unless it is already scheduled.
+	 * Called holding the event queue's lock.
+	 */
+	private void scheduleEventDispatch() {
+		if (!fEventDispatchScheduled) {
+			fEventDispatchScheduled = true;
+			fEventDispatch.schedule();
+		}
+	}
+	
+	/**
+	 * Returns the next event from the VM, resuming reading once half the
+	 * queue has drained. When the queue is empty, the event dispatch job
+	 * is marked as no longer scheduled, and the target terminates if the
+	 * connection failed.
+	 * 
+	 * @return the next event, or <code>null</code> if there is none
+	 */
+	private PDAEvent takeEvent() {
+		boolean failed;
+		synchronized (fEvents) {
+			if (isTerminated()) {
+				fEvents.clear();
+			}
+			if (!fEvents.isEmpty()) {
+				if (fEventsPaused && fEvents.size() <= MAX_QUEUED_EVENTS / 2) {
+					fEventsPaused = false;
+					fConnection.setReading(true);
+				}
+				return (PDAEvent) fEvents.removeFirst();
+			}
+			fEventDispatchScheduled = false;
+			failed = fEventsFailed;
+		}
+		if (failed && !isTerminated()) {
+			terminated();
 		}
 		return null;
-	}  
+	}
+	
+	/**
+	 * Fails every request still waiting for a reply and any request
+	 * sent from now on.
+	 * 
+	 * @param error reason the requests failed
+	 */
+	private void failPendingRequests(Exception error) {
+		synchronized (fPendingRequests) {
+			fRequestsClosed = true;
+			Iterator requests = fPendingRequests.values().iterator();
+			while (requests.hasNext()) {
+				((PDARequest) requests.next()).setFailed(error);
+			}
+			fPendingRequests.clear();
+		}
+	}
 	
 	/**
 	 * When the breakpoint manager disables, remove all registered breakpoints
 	 * requests from the VM. When it enables, reinstall them.
 	 */
 	public void breakpointManagerEnablementChanged(boolean enabled) {
-		IBreakpoint[] breakpoints = getBreakpointManager().getBreakpoints(getModelIdentifier());
-		for (int i = 0; i < breakpoints.length; i++) {
-			if (enabled) {
-				breakpointAdded(breakpoints[i]);
-			} else {
-				breakpointRemoved(breakpoints[i], null);
-			}
-        }
+		updateBreakpoints(getBreakpointManager().getBreakpoints(getModelIdentifier()), enabled);
 	}	
 	
 	/**
-	 * Returns whether popping the data stack is currently permitted
+	 * Returns whether popping the data stack is currently permitted. Asks
+	 * the interpreter only the first time in a suspend.
 	 *  
 	 * @return whether popping the data stack is currently permitted
 	 */
@@ -521,9 +1463,16 @@ public class PDADebugTarget extends PDADebugElement implements IDebugTarget, IBr
 	 * @throws DebugException if the stack is empty or the request fails
 	 */
 	public IValue pop() throws DebugException {
-	    IValue[] dataStack = getDataStack();
+	    // the VM runs requests in order, so the data stack comes back as it
+	    // was just before the pop
+	    PDABatch batch = newBatch();
+	    PDARequest data = batch.add("data");
+	    PDARequest pop = batch.add("popdata");
+	    batch.send();
+	    IValue[] dataStack = toDataStack(data, null);
+	    pop.getReply();
+	    dataStackChanged();
 	    if (dataStack.length > 0) {
-	        sendRequest("popdata");
 	        return dataStack[0];
 	    }
 	    requestFailed("Empty stack", null);
@@ -547,6 +1496,7 @@ public class PDADebugTarget extends PDADebugElement implements IDebugTarget, IBr
 	 */
 	public void push(String value) throws DebugException {
 	    sendRequest("pushdata " + value);
+	    dataStackChanged();
 	}
 
 	private ISourceContainer[] computeSourceContainers() throws CoreException {
@@ -587,17 +1537,17 @@ public class PDADebugTarget extends PDADebugElement implements IDebugTarget, IBr
 	}
 
 	/* (non-Javadoc)
-	 * @see org.eclipse.debug.examples.core.pda.model.IPDAEventListener#handleEvent(java.lang.String)
+	 * @see org.eclipse.debug.examples.core.pda.model.IPDAEventListener#handleEvent(org.eclipse.debug.examples.core.pda.model.PDAEvent)
 	 */
-	public void handleEvent(String event) {
-		if (event.equals("started")) {
+	public void handleEvent(PDAEvent event) {
+		if (event.getKind() == PDAEvent.STARTED) {
 			started();
-		} else if (event.equals("terminated")) {
+		} else if (event.getKind() == PDAEvent.TERMINATED) {
 			terminated();
-		} else if (event.startsWith("syntaxerror")) {
+		} else if (event.getKind() == PDAEvent.SYNTAX_ERROR) {
 			// a line like
 			// "syntaxerror [string "D:\eclipse-3.4-new\runtime-EclipseApplication\..."]:6: 'then' expected near 'a'"
-			final String[] parts = event.split("\\|");
+			final String[] parts = event.getText().split("\\|");
 			
 			final String[] errorPart = parts[2].split(":");
 						
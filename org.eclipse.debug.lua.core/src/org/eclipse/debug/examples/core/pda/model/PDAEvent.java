@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright (c) 2008 VeriSign, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     VeriSign, Inc. - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.debug.examples.core.pda.model;
+
+/**
+ * An event from the PDA VM, parsed once when it arrives so listeners
+ * test its kind and reason instead of each matching the text again.
+ * <p>
+ * An event is a kind, a reason and a detail, separated by the first two
+ * spaces: <code>suspended breakpoint 12</code> is of kind
+ * {@link #SUSPENDED}, reason <code>breakpoint</code> and detail
+ * <code>12</code>. See {@link IPDAEventListener} for the events sent.
+ * </p>
+ */
+public class PDAEvent {
+
+	/**
+	 * Kind of the <code>started</code> event
+	 */
+	public static final int STARTED = 1;
+
+	/**
+	 * Kind of the <code>terminated</code> event
+	 */
+	public static final int TERMINATED = 2;
+
+	/**
+	 * Kind of the <code>suspended</code> events
+	 */
+	public static final int SUSPENDED = 3;
+
+	/**
+	 * Kind of the <code>resumed</code> events
+	 */
+	public static final int RESUMED = 4;
+
+	/**
+	 * Kind of the <code>snapshot</code> events
+	 */
+	public static final int SNAPSHOT = 5;
+
+	/**
+	 * Kind of the <code>syntaxerror</code> event
+	 */
+	public static final int SYNTAX_ERROR = 6;
+
+	/**
+	 * Kind of any other event, such as an error
+	 */
+	public static final int OTHER = 0;
+
+	private String fText;
+	private int fKind;
+	private String fReason;
+	private String fDetail;
+	private int fLine = -1;
+	private String fFile;
+
+	/**
+	 * Parses an event from the VM.
+	 *
+	 * @param text the event, e.g. <code>suspended breakpoint 12</code>
+	 */
+	public PDAEvent(String text) {
+		fText = text;
+		int kindEnd = text.indexOf(' ');
+		String kind = kindEnd < 0 ? text : text.substring(0, kindEnd);
+		if (kind.equals("started")) {
+			fKind = STARTED;
+		} else if (kind.equals("terminated")) {
+			fKind = TERMINATED;
+		} else if (kind.equals("suspended")) {
+			fKind = SUSPENDED;
+		} else if (kind.equals("resumed")) {
+			fKind = RESUMED;
+		} else if (kind.equals("snapshot")) {
+			fKind = SNAPSHOT;
+		} else if (text.startsWith("syntaxerror")) {
+			fKind = SYNTAX_ERROR;
+			return;
+		} else {
+			fKind = OTHER;
+			return;
+		}
+		if (kindEnd < 0) {
+			return;
+		}
+		int reasonEnd = text.indexOf(' ', kindEnd + 1);
+		if (reasonEnd < 0) {
+			fReason = text.substring(kindEnd + 1);
+			return;
+		}
+		fReason = text.substring(kindEnd + 1, reasonEnd);
+		fDetail = text.substring(reasonEnd + 1);
+		if (fKind == SUSPENDED && fReason.equals("breakpoint")) {
+			// the line, then the file if the VM sends it
+			int lineEnd = fDetail.indexOf(' ');
+			try {
+				fLine = Integer.parseInt(lineEnd < 0 ? fDetail : fDetail.substring(0, lineEnd));
+			} catch (NumberFormatException e) {
+			}
+			if (lineEnd >= 0) {
+				fFile = fDetail.substring(lineEnd + 1);
+			}
+		}
+	}
+
+	/**
+	 * Returns the event as the VM sent it
+	 *
+	 * @return the event text
+	 */
+	public String getText() {
+		return fText;
+	}
+
+	/**
+	 * Returns the kind of this event, one of the constants of this class
+	 *
+	 * @return the kind of this event
+	 */
+	public int getKind() {
+		return fKind;
+	}
+
+	/**
+	 * Returns the word after the kind, e.g. <code>step</code> for
+	 * <code>resumed step</code> or <code>stack</code> for a stack snapshot
+	 *
+	 * @return the reason, or <code>null</code> if there is none or this
+	 * 	event is of kind {@link #OTHER} or {@link #SYNTAX_ERROR}
+	 */
+	public String getReason() {
+		return fReason;
+	}
+
+	/**
+	 * Returns whether this event has the given kind and reason
+	 *
+	 * @param kind event kind
+	 * @param reason reason
+	 * @return whether this event has the given kind and reason
+	 */
+	public boolean is(int kind, String reason) {
+		return fKind == kind && reason.equals(fReason);
+	}
+
+	/**
+	 * Returns the rest of the event after the reason, e.g. the line for
+	 * <code>suspended breakpoint 12</code> or the reply for a snapshot
+	 *
+	 * @return the detail, or <code>null</code> if there is none
+	 */
+	public String getDetail() {
+		return fDetail;
+	}
+
+	/**
+	 * Returns the line of the breakpoint hit for a
+	 * <code>suspended breakpoint</code> event
+	 *
+	 * @return the 1-based line, or -1 for any other event
+	 */
+	public int getLine() {
+		return fLine;
+	}
+
+	/**
+	 * Returns the file of the breakpoint hit for a
+	 * <code>suspended breakpoint</code> event, as the VM knows it
+	 *
+	 * @return full path of the file in the file system, or
+	 * 	<code>null</code> for any other event
+	 */
+	public String getFile() {
+		return fFile;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return fText;
+	}
+}
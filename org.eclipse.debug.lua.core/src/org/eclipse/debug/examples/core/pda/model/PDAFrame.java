@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright (c) 2008 VeriSign, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     VeriSign, Inc. - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.debug.examples.core.pda.model;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A binary reply frame from ldb: the correlation id of the request it
+ * answers and a payload of typed fields. Each field is a one byte type,
+ * a four byte big endian length and that many bytes of content, which
+ * are kept as they arrived until a field is read.
+ * 
+ * @see PDAFrameCodec
+ */
+public class PDAFrame {
+	
+	private int fId;
+	private byte[] fPayload;
+	
+	/**
+	 * Constructs a frame answering the given request
+	 * 
+	 * @param id correlation id
+	 * @param payload fields of the reply
+	 */
+	PDAFrame(int id, byte[] payload) {
+		fId = id;
+		fPayload = payload;
+	}
+	
+	/**
+	 * Returns the correlation id of the request this frame answers
+	 * 
+	 * @return correlation id
+	 */
+	public int getId() {
+		return fId;
+	}
+	
+	/**
+	 * Returns a new cursor positioned before the first field of this frame
+	 * 
+	 * @return a new cursor over this frame's fields
+	 */
+	public IPDAReplyCursor cursor() {
+		return new FrameCursor();
+	}
+	
+	/**
+	 * Returns the text of this frame's <code>TEXT</code> fields, which is
+	 * the whole reply to commands that only answer <code>ok</code> or an
+	 * error.
+	 * 
+	 * @return the text of this frame
+	 */
+	public String getText() {
+		IPDAReplyCursor cursor = cursor();
+		StringBuffer text = new StringBuffer();
+		int type;
+		while ((type = cursor.next()) != IPDAReplyCursor.END) {
+			if (type == IPDAReplyCursor.TEXT) {
+				text.append(cursor.getText());
+			}
+		}
+		return text.toString();
+	}
+	
+	/**
+	 * Returns the replies in this frame, which answers a <code>batch</code>
+	 * request: each <code>BATCH_REPLY</code> field as a frame of its own,
+	 * in the order of the batch's commands.
+	 * 
+	 * @return the replies of the batch, none if this frame holds no
+	 * 	<code>BATCH_REPLY</code> fields
+	 */
+	public PDAFrame[] getBatchReplies() {
+		FrameCursor cursor = new FrameCursor();
+		List replies = new ArrayList();
+		int type;
+		while ((type = cursor.next()) != IPDAReplyCursor.END) {
+			if (type == IPDAReplyCursor.BATCH_REPLY) {
+				byte[] payload = new byte[cursor.fLength];
+				System.arraycopy(fPayload, cursor.fStart, payload, 0, cursor.fLength);
+				replies.add(new PDAFrame(fId, payload));
+			}
+		}
+		return (PDAFrame[]) replies.toArray(new PDAFrame[replies.size()]);
+	}
+	
+	/**
+	 * Reads the fields of the payload in place
+	 */
+	class FrameCursor implements IPDAReplyCursor {
+		
+		private int fPosition = 0;
+		private int fStart;
+		private int fLength;
+		
+		/* (non-Javadoc)
+		 * @see org.eclipse.debug.examples.core.pda.model.IPDAReplyCursor#next()
+		 */
+		public int next() {
+			if (fPosition + 5 > fPayload.length) {
+				return END;
+			}
+			int type = fPayload[fPosition] & 0xff;
+			int length = ((fPayload[fPosition + 1] & 0xff) << 24) |
+				((fPayload[fPosition + 2] & 0xff) << 16) |
+				((fPayload[fPosition + 3] & 0xff) << 8) |
+				(fPayload[fPosition + 4] & 0xff);
+			fStart = fPosition + 5;
+			if (length < 0 || length > fPayload.length - fStart) {
+				// a truncated field ends the frame
+				fPosition = fPayload.length;
+				return END;
+			}
+			fLength = length;
+			fPosition = fStart + length;
+			return type;
+		}
+		
+		/* (non-Javadoc)
+		 * @see org.eclipse.debug.examples.core.pda.model.IPDAReplyCursor#getText()
+		 */
+		public String getText() {
+			try {
+				return new String(fPayload, fStart, fLength, "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				return new String(fPayload, fStart, fLength);
+			}
+		}
+	}
+}
@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright (c) 2008 VeriSign, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     VeriSign, Inc. - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.debug.examples.core.pda.model;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes replies from ldb's request socket.
+ * <p>
+ * ldb starts out sending each reply as a line of text, the correlation id
+ * of the request, a space and the reply. After the IDE sends
+ * <code>protocol binary</code> and ldb answers <code>ok binary</code>,
+ * every later reply is a binary frame:
+ * <pre>
+ *   u32 correlation id | u32 payload length | payload
+ * </pre>
+ * where the payload is a sequence of typed fields (see {@link PDAFrame}
+ * and {@link IPDAReplyCursor}) and all numbers are big endian. Field
+ * contents are raw bytes, so values may hold newlines, <code>|</code> or
+ * <code>=</code> without any escaping. The frame layout is mirrored by
+ * <code>ReplyWriter</code> in ldb.
+ * </p>
+ * <p>
+ * After <code>protocol compress</code>, ldb compresses payloads at or
+ * above the given size with zlib when that makes them smaller. The top
+ * bit of the length marks such a frame, and the payload's own length
+ * comes before the compressed bytes:
+ * <pre>
+ *   u32 correlation id | u32 0x80000000 | length | u32 payload length | zlib data
+ * </pre>
+ * </p>
+ */
+public class PDAFrameCodec {
+	
+	/**
+	 * The command that switches ldb to binary replies
+	 */
+	public static final String PROTOCOL_BINARY = "protocol binary";
+	
+	/**
+	 * ldb's reply when it has switched to binary replies
+	 */
+	public static final String PROTOCOL_BINARY_OK = "ok binary";
+	
+	/**
+	 * The command that has ldb compress binary payloads of at least
+	 * {@link #COMPRESS_THRESHOLD} bytes
+	 */
+	public static final String PROTOCOL_COMPRESS = "protocol compress";
+	
+	/**
+	 * Size from which payloads are compressed. Smaller ones gain too little
+	 * to pay for compressing them, on a link of any speed.
+	 */
+	public static final int COMPRESS_THRESHOLD = 8 * 1024;
+	
+	/**
+	 * Bit of the frame length that marks a compressed payload
+	 */
+	private static final int COMPRESSED = 0x80000000;
+	
+	/**
+	 * Largest payload accepted, so a corrupt length can not exhaust memory
+	 */
+	public static final int MAX_PAYLOAD = 64 * 1024 * 1024;
+	
+	private PDAFrameCodec() {
+	}
+	
+	/**
+	 * Decodes the next binary frame at the buffer's position, if all of it
+	 * has arrived.
+	 * 
+	 * @param in bytes read from the request socket, from its position to
+	 * 	its limit
+	 * @return the frame, with the position moved past it, or
+	 * 	<code>null</code> and the position unchanged if the frame is not
+	 * 	complete yet
+	 * @throws IOException if the frame is corrupt
+	 */
+	public static PDAFrame decodeFrame(ByteBuffer in) throws IOException {
+		if (in.remaining() < 8) {
+			return null;
+		}
+		int start = in.position();
+		int id = in.getInt(start);
+		int length = in.getInt(start + 4);
+		boolean compressed = (length & COMPRESSED) != 0;
+		length &= ~COMPRESSED;
+		if (length > MAX_PAYLOAD || (compressed && length < 4)) {
+			throw new IOException("Bad frame length " + length);
+		}
+		if (in.remaining() - 8 < length) {
+			return null;
+		}
+		byte[] payload = new byte[length];
+		in.position(start + 8);
+		in.get(payload);
+		if (compressed) {
+			payload = inflate(payload);
+		}
+		return new PDAFrame(id, payload);
+	}
+	
+	/**
+	 * Inflates the payload of a compressed frame
+	 * 
+	 * @param data payload length and zlib data
+	 * @return the payload
+	 * @throws IOException if the data is corrupt or does not inflate to
+	 * 	the given length
+	 */
+	private static byte[] inflate(byte[] data) throws IOException {
+		int length = ByteBuffer.wrap(data).getInt();
+		if (length < 0 || length > MAX_PAYLOAD) {
+			throw new IOException("Bad frame length " + length);
+		}
+		byte[] payload = new byte[length];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data, 4, data.length - 4);
+			int inflated = 0;
+			while (inflated < length && !inflater.finished()) {
+				int n = inflater.inflate(payload, inflated, length - inflated);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				inflated += n;
+			}
+			if (inflated != length || !inflater.finished()) {
+				throw new IOException("Bad compressed frame");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Bad compressed frame: " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+		return payload;
+	}
+	
+	/**
+	 * Decodes the next text reply line at the buffer's position, if all of
+	 * it has arrived. Nothing past the line is consumed, so the stream can
+	 * switch to binary frames after any line.
+	 * 
+	 * @param in bytes read from the request socket, from its position to
+	 * 	its limit
+	 * @return the line without its line terminator, with the position moved
+	 * 	past it, or <code>null</code> and the position unchanged if the line
+	 * 	is not complete yet
+	 * @throws IOException if the line is longer than {@link #MAX_PAYLOAD}
+	 */
+	public static String decodeLine(ByteBuffer in) throws IOException {
+		int start = in.position();
+		int end = start;
+		while (end < in.limit() && in.get(end) != '\n') {
+			end++;
+		}
+		if (end == in.limit()) {
+			if (end - start > MAX_PAYLOAD) {
+				throw new IOException("Reply line too long");
+			}
+			return null;
+		}
+		int length = end - start;
+		if (length > 0 && in.get(end - 1) == '\r') {
+			length--;
+		}
+		byte[] line = new byte[length];
+		in.get(line);
+		in.position(end + 1);
+		try {
+			return new String(line, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return new String(line);
+		}
+	}
+}
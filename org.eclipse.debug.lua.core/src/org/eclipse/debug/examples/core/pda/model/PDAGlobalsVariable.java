@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (c) 2008 VeriSign, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     VeriSign, Inc. - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.debug.examples.core.pda.model;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.debug.core.DebugException;
+import org.eclipse.debug.core.model.IValue;
+import org.eclipse.debug.core.model.IVariable;
+
+/**
+ * The "GLOBAL VARIABLES" section shown after the locals of each stack
+ * frame. Its value holds the global variables, which are fetched from the
+ * debug target when the section is first expanded and shared by every
+ * stack frame until the thread resumes.
+ * 
+ * @see PDADebugTarget#getGlobalVariables(IProgressMonitor)
+ */
+public class PDAGlobalsVariable extends PDAVariable {
+	
+	/**
+	 * Constructs the globals section of the given stack frame
+	 * 
+	 * @param frame owning stack frame
+	 */
+	public PDAGlobalsVariable(PDAStackFrame frame) {
+		super(frame, "GLOBAL");
+		setGlobal(true);
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.eclipse.debug.examples.core.pda.model.PDAVariable#getValue(org.eclipse.core.runtime.IProgressMonitor)
+	 */
+	public IValue getValue(IProgressMonitor monitor) throws DebugException {
+		return new GlobalsValue(getPDADebugTarget());
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.eclipse.debug.core.model.IVariable#hasValueChanged()
+	 */
+	public boolean hasValueChanged() throws DebugException {
+		return false;
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.eclipse.debug.core.model.IValueModification#supportsValueModification()
+	 */
+	public boolean supportsValueModification() {
+		return false;
+	}
+	
+	/**
+	 * Value of the globals section, whose variables are the global variables
+	 */
+	static class GlobalsValue extends PDAValue {
+		
+		GlobalsValue(PDADebugTarget target) {
+			super(target, "VARIABLES");
+		}
+		
+		/* (non-Javadoc)
+		 * @see org.eclipse.debug.core.model.IValue#getVariables()
+		 */
+		public IVariable[] getVariables() throws DebugException {
+			return getPDADebugTarget().getGlobalVariables(null);
+		}
+		
+		/* (non-Javadoc)
+		 * @see org.eclipse.debug.core.model.IValue#hasVariables()
+		 */
+		public boolean hasVariables() throws DebugException {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,391 @@
+/*******************************************************************************
+ * Copyright (c) 2008 VeriSign, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     VeriSign, Inc. - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.debug.examples.core.pda.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.debug.examples.core.pda.DebugCorePlugin;
+
+/**
+ * Reads and writes the sockets of every debug session on one thread.
+ * <p>
+ * Each session registers its connected channel with a handler. The I/O
+ * thread waits on a single selector for any channel to become readable
+ * and passes the bytes read to the channel's handler, which must only
+ * decode and queue them and never block. Writes go straight to the
+ * channel when it has room; whatever does not fit is queued and written
+ * by the I/O thread as the channel drains. The number of threads stays
+ * the same however many sessions are open.
+ * </p>
+ */
+public class PDAIOService implements Runnable {
+
+	/**
+	 * Receives what is read from a registered channel. Both methods are
+	 * called on the I/O thread.
+	 */
+	public interface IConnectionHandler {
+
+		/**
+		 * Notification that bytes were read. The buffer is only valid
+		 * during the call.
+		 *
+		 * @param data bytes read, from its position to its limit
+		 */
+		public void received(ByteBuffer data);
+
+		/**
+		 * Notification that the connection is closed. Called once.
+		 *
+		 * @param error why the connection failed, or <code>null</code> if
+		 * 	the other end closed it or it was closed locally
+		 */
+		public void closed(IOException error);
+	}
+
+	/**
+	 * A channel registered with the service
+	 */
+	public class Connection {
+
+		private SocketChannel fChannel;
+		private IConnectionHandler fHandler;
+		private SelectionKey fKey;
+		// buffers waiting to be written, in order
+		private LinkedList fOutput = new LinkedList();
+		private boolean fReading = false;
+		private boolean fClosed = false;
+
+		Connection(SocketChannel channel, IConnectionHandler handler) {
+			fChannel = channel;
+			fHandler = handler;
+		}
+
+		/**
+		 * Writes the given bytes, or queues what the channel has no room
+		 * for. Does not wait for the channel to drain.
+		 *
+		 * @param data bytes to write, from its position to its limit
+		 * @throws IOException if the connection is closed or fails
+		 */
+		public void send(ByteBuffer data) throws IOException {
+			synchronized (this) {
+				if (fClosed) {
+					throw new ClosedChannelException();
+				}
+				if (fOutput.isEmpty()) {
+					fChannel.write(data);
+				}
+				if (!data.hasRemaining()) {
+					return;
+				}
+				fOutput.addLast(data);
+			}
+			changed(this);
+		}
+
+		/**
+		 * Stops or resumes reading from the channel, so a handler that
+		 * falls behind can hold the other end back.
+		 *
+		 * @param reading whether to read from the channel
+		 */
+		public void setReading(boolean reading) {
+			synchronized (this) {
+				if (fReading == reading) {
+					return;
+				}
+				fReading = reading;
+			}
+			changed(this);
+		}
+
+		/**
+		 * Closes the channel. The handler is told on the I/O thread.
+		 */
+		public void close() {
+			synchronized (this) {
+				if (fClosed) {
+					return;
+				}
+				fClosed = true;
+			}
+			changed(this);
+		}
+
+		/**
+		 * Registers the channel or updates what the selector waits for.
+		 * Called on the I/O thread.
+		 */
+		void update() {
+			int ops;
+			boolean closed;
+			synchronized (this) {
+				closed = fClosed;
+				ops = (fReading ? SelectionKey.OP_READ : 0) | (fOutput.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+			}
+			if (closed) {
+				closeChannel(null);
+				return;
+			}
+			try {
+				if (fKey == null) {
+					fKey = fChannel.register(fSelector, ops, this);
+				} else {
+					fKey.interestOps(ops);
+				}
+			} catch (IOException e) {
+				closeChannel(e);
+			}
+		}
+
+		/**
+		 * Reads what is available and hands it to the handler. Called on
+		 * the I/O thread.
+		 */
+		void read() {
+			try {
+				fReadBuffer.clear();
+				if (fChannel.read(fReadBuffer) < 0) {
+					closeChannel(null);
+					return;
+				}
+			} catch (IOException e) {
+				closeChannel(e);
+				return;
+			}
+			fReadBuffer.flip();
+			fHandler.received(fReadBuffer);
+		}
+
+		/**
+		 * Writes queued buffers until the channel is full. Called on the
+		 * I/O thread.
+		 */
+		void flush() {
+			try {
+				synchronized (this) {
+					while (!fOutput.isEmpty()) {
+						ByteBuffer data = (ByteBuffer) fOutput.getFirst();
+						fChannel.write(data);
+						if (data.hasRemaining()) {
+							return;
+						}
+						fOutput.removeFirst();
+					}
+				}
+			} catch (IOException e) {
+				closeChannel(e);
+				return;
+			}
+			update();
+		}
+
+		/**
+		 * Closes the channel and tells the handler, once
+		 *
+		 * @param error why, or <code>null</code>
+		 */
+		void closeChannel(IOException error) {
+			synchronized (this) {
+				fClosed = true;
+				if (!fChannel.isOpen()) {
+					return;
+				}
+				fOutput.clear();
+			}
+			if (fKey != null) {
+				fKey.cancel();
+			}
+			try {
+				fChannel.close();
+			} catch (IOException e) {
+			}
+			fHandler.closed(error);
+		}
+	}
+
+	// the shared instance, created on first use
+	private static PDAIOService fgDefault;
+
+	private Selector fSelector;
+	private Thread fThread;
+	// connections registered or changed since the last select
+	private LinkedList fChanged = new LinkedList();
+	private boolean fShutdown = false;
+	// read buffer, only used on the I/O thread
+	private ByteBuffer fReadBuffer = ByteBuffer.allocate(64 * 1024);
+
+	/**
+	 * Returns the service shared by all debug sessions, starting it if
+	 * need be.
+	 *
+	 * @return the shared service
+	 * @throws IOException if the selector can not be opened
+	 */
+	public static synchronized PDAIOService getDefault() throws IOException {
+		if (fgDefault == null) {
+			fgDefault = new PDAIOService();
+		}
+		return fgDefault;
+	}
+
+	/**
+	 * Stops the shared service, if it was started, closing every
+	 * connection.
+	 */
+	public static synchronized void shutdownDefault() {
+		if (fgDefault != null) {
+			fgDefault.shutdown();
+			fgDefault = null;
+		}
+	}
+
+	private PDAIOService() throws IOException {
+		fSelector = Selector.open();
+		fThread = new Thread(this, "PDA I/O");
+		fThread.setDaemon(true);
+		fThread.start();
+	}
+
+	/**
+	 * Registers a connected channel and switches it to non-blocking mode.
+	 * Nothing is read until {@link Connection#setReading(boolean)} is
+	 * called, so the caller can hold on to the connection before the
+	 * handler hears from it.
+	 *
+	 * @param channel connected channel
+	 * @param handler receives what is read
+	 * @return the connection, to write to or close
+	 * @throws IOException if the channel can not be made non-blocking
+	 */
+	public Connection register(SocketChannel channel, IConnectionHandler handler) throws IOException {
+		synchronized (fChanged) {
+			if (fShutdown) {
+				throw new IOException("PDA I/O stopped");
+			}
+		}
+		channel.configureBlocking(false);
+		Connection connection = new Connection(channel, handler);
+		changed(connection);
+		return connection;
+	}
+
+	/**
+	 * Has the I/O thread bring the selector up to date with the given
+	 * connection.
+	 *
+	 * @param connection registered or changed connection
+	 */
+	private void changed(Connection connection) {
+		synchronized (fChanged) {
+			if (fShutdown) {
+				return;
+			}
+			fChanged.addLast(connection);
+		}
+		fSelector.wakeup();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		while (true) {
+			Connection[] changed;
+			synchronized (fChanged) {
+				if (fShutdown) {
+					break;
+				}
+				changed = (Connection[]) fChanged.toArray(new Connection[fChanged.size()]);
+				fChanged.clear();
+			}
+			for (int i = 0; i < changed.length; i++) {
+				changed[i].update();
+			}
+			try {
+				fSelector.select();
+			} catch (IOException e) {
+				log("PDA I/O selector failed", e);
+				break;
+			}
+			Iterator keys = fSelector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = (SelectionKey) keys.next();
+				keys.remove();
+				Connection connection = (Connection) key.attachment();
+				try {
+					if (key.isValid() && key.isWritable()) {
+						connection.flush();
+					}
+					if (key.isValid() && key.isReadable()) {
+						connection.read();
+					}
+				} catch (RuntimeException e) {
+					// a broken handler only loses its own connection
+					log("PDA connection handler failed", e);
+					connection.closeChannel(new IOException(e.toString()));
+				}
+			}
+		}
+		// connections not yet registered are still in the changed list
+		LinkedList open = new LinkedList();
+		synchronized (fChanged) {
+			fShutdown = true;
+			open.addAll(fChanged);
+			fChanged.clear();
+		}
+		Iterator keys = fSelector.keys().iterator();
+		while (keys.hasNext()) {
+			open.add(((SelectionKey) keys.next()).attachment());
+		}
+		Iterator connections = open.iterator();
+		while (connections.hasNext()) {
+			((Connection) connections.next()).closeChannel(new IOException("PDA I/O stopped"));
+		}
+		try {
+			fSelector.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Logs an error in the plug-in's log
+	 *
+	 * @param message what failed
+	 * @param e exception
+	 */
+	private static void log(String message, Throwable e) {
+		DebugCorePlugin plugin = DebugCorePlugin.getDefault();
+		if (plugin != null) {
+			plugin.getLog().log(new Status(IStatus.ERROR, DebugCorePlugin.PLUGIN_ID, 0, message, e));
+		}
+	}
+
+	/**
+	 * Stops the I/O thread
+	 */
+	private void shutdown() {
+		synchronized (fChanged) {
+			fShutdown = true;
+		}
+		fSelector.wakeup();
+	}
+}
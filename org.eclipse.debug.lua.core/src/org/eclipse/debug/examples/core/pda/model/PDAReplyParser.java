@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * Copyright (c) 2008 VeriSign, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     VeriSign, Inc. - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.debug.examples.core.pda.model;
+
+import java.util.Vector;
+
+/**
+ * Builds the debug model from the typed fields of ldb replies.
+ */
+public class PDAReplyParser {
+	
+	private PDAReplyParser() {
+	}
+	
+	/**
+	 * Parses a <code>stackforide</code> reply into the data of each stack
+	 * frame, from the oldest frame to the newest. The data of a frame is
+	 * its file name, line number and function name followed by the names
+	 * of its local variables.
+	 * 
+	 * @param reply <code>stackforide</code> reply
+	 * @return the data of each stack frame, oldest first
+	 */
+	public static String[][] parseStackFrames(IPDAReplyCursor reply) {
+		Vector frames = new Vector();
+		Vector data = new Vector();
+		int type;
+		while ((type = reply.next()) != IPDAReplyCursor.END) {
+			if (type == IPDAReplyCursor.FRAME_END) {
+				String[] frame = new String[data.size()];
+				data.copyInto(frame);
+				frames.add(frame);
+				data.clear();
+			} else {
+				data.add(reply.getText());
+			}
+		}
+		String[][] theFrames = new String[frames.size()][];
+		frames.copyInto(theFrames);
+		return theFrames;
+	}
+	
+	/**
+	 * Parses a <code>getglobals</code> reply into global variables. A global
+	 * table is a single variable holding its elements.
+	 * 
+	 * @param frame stack frame the variables are shown in
+	 * @param reply <code>getglobals</code> reply
+	 * @return the global variables
+	 */
+	public static PDAVariable[] parseGlobals(PDAStackFrame frame, IPDAReplyCursor reply) {
+		Vector vars = new Vector();
+		String name = "";
+		int type;
+		while ((type = reply.next()) != IPDAReplyCursor.END) {
+			switch (type) {
+				case IPDAReplyCursor.NAME:
+					name = reply.getText();
+					break;
+				case IPDAReplyCursor.VALUE:
+					PDAVariable global = new PDAVariable(frame, name);
+					global.setGlobalVal(reply.getText());
+					global.setGlobal(true);
+					vars.add(global);
+					break;
+				case IPDAReplyCursor.TABLE_BEGIN:
+					PDAVariable table = new PDAVariable(frame, reply.getText());
+					table.setTable(true); // both table and global are set
+					table.setGlobal(true);
+					table.setGlobalTablePDAVars(parseTable(frame, reply));
+					vars.add(table);
+					break;
+			}
+		}
+		PDAVariable[] theVars = new PDAVariable[vars.size()];
+		vars.copyInto(theVars);
+		return theVars;
+	}
+	
+	/**
+	 * Parses the reply to a <code>var frame name offset count</code> request
+	 * into a value. A table value holds the number of entries in the table
+	 * and the entries that were sent, and fetches the others as they are
+	 * shown.
+	 * 
+	 * @param frame stack frame the variable belongs to
+	 * @param command the request without its range, <code>var frame name</code>
+	 * @param reply <code>var</code> reply
+	 * @return the value
+	 * @see PDATableValue
+	 */
+	public static PDAValue parseValue(PDAStackFrame frame, String command, IPDAReplyCursor reply) {
+		int type = reply.next();
+		if (type == IPDAReplyCursor.TABLE_BEGIN) {
+			int size = parseSize(reply);
+			return new PDATableValue(frame, command, "table", size, parseTable(frame, reply));
+		}
+		if (type == IPDAReplyCursor.END) {
+			return new PDAValue(frame.getPDADebugTarget(), "");
+		}
+		return toValue(frame, reply.getText());
+	}
+	
+	/**
+	 * Returns the value for the given text from ldb. A table, function,
+	 * userdata or thread is sent as a handle, e.g. <code>@12 table</code>,
+	 * and becomes a value that is expanded when it is opened. A string that
+	 * starts with <code>@</code> is sent with another <code>@</code> in front.
+	 * 
+	 * @param frame stack frame the value is shown in
+	 * @param text value text
+	 * @return the value
+	 */
+	public static PDAValue toValue(PDAStackFrame frame, String text) {
+		PDADebugTarget target = frame.getPDADebugTarget();
+		if (text.startsWith("@@")) {
+			return new PDAValue(target, text.substring(1));
+		}
+		if (text.startsWith("@")) {
+			int space = text.indexOf(' ');
+			if (space > 1) {
+				return new PDATableValue(frame, "expand " + text.substring(1, space), text.substring(space + 1));
+			}
+		}
+		return new PDAValue(target, text);
+	}
+	
+	/**
+	 * Parses a list of <code>name=value</code> entries, such as a
+	 * <code>changes</code> reply.
+	 * 
+	 * @param reply reply holding a list of entries
+	 * @return the name and value of each entry, in the order they were sent
+	 */
+	public static String[][] parseEntries(IPDAReplyCursor reply) {
+		Vector entries = new Vector();
+		String name = "";
+		int type;
+		while ((type = reply.next()) != IPDAReplyCursor.END) {
+			if (type == IPDAReplyCursor.NAME) {
+				name = reply.getText();
+			} else if (type == IPDAReplyCursor.VALUE) {
+				entries.add(new String[] {name, reply.getText()});
+			}
+		}
+		String[][] theEntries = new String[entries.size()][];
+		entries.copyInto(theEntries);
+		return theEntries;
+	}
+	
+	/**
+	 * Parses a list of values, such as a <code>data</code> reply.
+	 * 
+	 * @param reply reply holding a list of values
+	 * @return the values, in the order they were sent
+	 */
+	public static String[] parseValues(IPDAReplyCursor reply) {
+		Vector values = new Vector();
+		int type;
+		while ((type = reply.next()) != IPDAReplyCursor.END) {
+			if (type == IPDAReplyCursor.VALUE) {
+				values.add(reply.getText());
+			}
+		}
+		String[] theValues = new String[values.size()];
+		values.copyInto(theValues);
+		return theValues;
+	}
+	
+	/**
+	 * Parses the number of entries sent at the start of a ranged table reply
+	 * 
+	 * @param reply reply positioned just after the start of a table
+	 * @return the number of entries in the table
+	 */
+	static int parseSize(IPDAReplyCursor reply) {
+		if (reply.next() == IPDAReplyCursor.VALUE) {
+			try {
+				return Integer.parseInt(reply.getText());
+			} catch (NumberFormatException e) {
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * Parses the elements of a table, up to the end of the table
+	 * 
+	 * @param frame stack frame the table is shown in
+	 * @param reply reply positioned just after the start of a table
+	 * @return the elements of the table
+	 */
+	static PDAVariable[] parseTable(PDAStackFrame frame, IPDAReplyCursor reply) {
+		Vector vars = new Vector();
+		String name = "";
+		int type;
+		while ((type = reply.next()) != IPDAReplyCursor.END && type != IPDAReplyCursor.TABLE_END) {
+			if (type == IPDAReplyCursor.NAME) {
+				name = reply.getText();
+			} else if (type == IPDAReplyCursor.VALUE) {
+				PDAVariable element = new PDAVariable(frame, name);
+				element.setPDAVaribleValue(reply.getText());
+				element.setTable(true);
+				vars.add(element);
+			}
+		}
+		PDAVariable[] theVars = new PDAVariable[vars.size()];
+		vars.copyInto(theVars);
+		return theVars;
+	}
+}
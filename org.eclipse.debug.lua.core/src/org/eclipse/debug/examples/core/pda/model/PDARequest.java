@@ -0,0 +1,255 @@
+/*******************************************************************************
+ * Copyright (c) 2008 VeriSign, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     VeriSign, Inc. - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.debug.examples.core.pda.model;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.debug.core.DebugException;
+import org.eclipse.debug.examples.core.pda.DebugCorePlugin;
+
+/**
+ * A request that has been sent to ldb and is waiting for its reply.
+ * <p>
+ * Each request is tagged with a correlation id that ldb echoes back with
+ * the reply, so any number of requests can be in flight at once and
+ * replies are matched to their requests as they arrive.
+ * </p>
+ * <p>
+ * A request is a future: it is returned as soon as the command has been
+ * written, and the caller decides how long to wait for the reply. A wait
+ * can be bounded by a timeout and cut short through a progress monitor.
+ * A request that is cancelled or times out is forgotten by its target,
+ * and its reply is dropped if it arrives later.
+ * </p>
+ */
+public class PDARequest {
+
+	/**
+	 * How often a waiting caller checks its progress monitor, in milliseconds
+	 */
+	private static final long POLL_INTERVAL = 100;
+
+	private PDADebugTarget fTarget;
+	private int fId;
+	private String fCommand;
+	private String fReply;
+	private PDAFrame fFrame;
+	private boolean fDone = false;
+	private boolean fCanceled = false;
+	private Exception fError;
+
+	/**
+	 * Constructs a request with the given correlation id and command
+	 *
+	 * @param target debug target the request is sent to
+	 * @param id correlation id
+	 * @param command command text, e.g. <code>var 1 x</code>
+	 */
+	PDARequest(PDADebugTarget target, int id, String command) {
+		fTarget = target;
+		fId = id;
+		fCommand = command;
+	}
+
+	/**
+	 * Returns the correlation id of this request
+	 *
+	 * @return the correlation id of this request
+	 */
+	public int getId() {
+		return fId;
+	}
+
+	/**
+	 * Returns the command this request sends
+	 *
+	 * @return the command this request sends
+	 */
+	public String getCommand() {
+		return fCommand;
+	}
+
+	/**
+	 * Returns whether a reply or failure has been received for this request,
+	 * or it has been cancelled
+	 *
+	 * @return whether this request has completed
+	 */
+	public synchronized boolean isDone() {
+		return fDone;
+	}
+
+	/**
+	 * Returns whether this request has been cancelled
+	 *
+	 * @return whether this request has been cancelled
+	 */
+	public synchronized boolean isCanceled() {
+		return fCanceled;
+	}
+
+	/**
+	 * Waits for and returns the reply to this request, however long it takes.
+	 *
+	 * @return reply
+	 * @throws DebugException if the request failed or was cancelled
+	 */
+	public String getReply() throws DebugException {
+		return getReply(null, 0);
+	}
+
+	/**
+	 * Waits for and returns the reply to this request. The request is
+	 * cancelled if the monitor is cancelled or the timeout expires before
+	 * the reply arrives.
+	 *
+	 * @param monitor progress monitor used to cancel the wait, or <code>null</code>
+	 * @param timeout milliseconds to wait for the reply, or <code>0</code>
+	 *  to wait until it arrives
+	 * @return reply
+	 * @throws DebugException if the request failed, was cancelled or timed out
+	 */
+	public String getReply(IProgressMonitor monitor, long timeout) throws DebugException {
+		long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+		try {
+			while (!waitForDone(Math.min(POLL_INTERVAL, deadline - System.currentTimeMillis()))) {
+				if (monitor != null && monitor.isCanceled()) {
+					cancel();
+					break;
+				}
+				if (System.currentTimeMillis() >= deadline) {
+					cancel();
+					throw newDebugException(IStatus.ERROR, "Request timed out after " + timeout + "ms: " + fCommand, null);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cancel();
+		}
+		synchronized (this) {
+			if (fCanceled) {
+				throw newDebugException(IStatus.CANCEL, "Request cancelled: " + fCommand, null);
+			}
+			if (fError != null) {
+				throw newDebugException(IStatus.ERROR, "Request failed: " + fCommand, fError);
+			}
+			return fReply;
+		}
+	}
+
+	/**
+	 * Waits for the reply to this request and returns a cursor over its
+	 * fields, whether the reply came as a binary frame or a line of text.
+	 * The request is cancelled if the monitor is cancelled or the timeout
+	 * expires before the reply arrives.
+	 *
+	 * @param monitor progress monitor used to cancel the wait, or <code>null</code>
+	 * @param timeout milliseconds to wait for the reply, or <code>0</code>
+	 *  to wait until it arrives
+	 * @return a new cursor over the reply's fields
+	 * @throws DebugException if the request failed, was cancelled or timed out
+	 * @see #getReply(IProgressMonitor, long)
+	 */
+	public IPDAReplyCursor getReplyCursor(IProgressMonitor monitor, long timeout) throws DebugException {
+		String reply = getReply(monitor, timeout);
+		synchronized (this) {
+			if (fFrame != null) {
+				return fFrame.cursor();
+			}
+		}
+		return new PDATextCursor(fCommand, reply);
+	}
+
+	/**
+	 * Cancels this request. Any caller waiting for the reply is released,
+	 * and the reply is dropped if it arrives later. Has no effect if the
+	 * request has already completed.
+	 */
+	public void cancel() {
+		synchronized (this) {
+			if (fDone) {
+				return;
+			}
+			fCanceled = true;
+			fDone = true;
+			notifyAll();
+		}
+		fTarget.forgetRequest(this);
+	}
+
+	/**
+	 * Waits up to the given time for this request to complete
+	 *
+	 * @param millis milliseconds to wait
+	 * @return whether this request has completed
+	 * @throws InterruptedException if the wait was interrupted
+	 */
+	private synchronized boolean waitForDone(long millis) throws InterruptedException {
+		if (!fDone && millis > 0) {
+			wait(millis);
+		}
+		return fDone;
+	}
+
+	/**
+	 * Returns a debug exception with the given severity, message and cause
+	 *
+	 * @param severity status severity
+	 * @param message status message
+	 * @param cause underlying exception or <code>null</code>
+	 * @return debug exception
+	 */
+	private DebugException newDebugException(int severity, String message, Throwable cause) {
+		return new DebugException(new Status(severity, DebugCorePlugin.ID_PDA_DEBUG_MODEL,
+				DebugException.TARGET_REQUEST_FAILED, message, cause));
+	}
+
+	/**
+	 * Completes this request with the given reply
+	 *
+	 * @param reply reply from ldb
+	 */
+	synchronized void setReply(String reply) {
+		if (!fDone) {
+			fReply = reply;
+			fDone = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Completes this request with the given binary reply
+	 *
+	 * @param frame reply from ldb
+	 */
+	synchronized void setReply(PDAFrame frame) {
+		if (!fDone) {
+			fFrame = frame;
+			fReply = frame.getText();
+			fDone = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Completes this request with the given failure
+	 *
+	 * @param error reason the request failed
+	 */
+	synchronized void setFailed(Exception error) {
+		if (!fDone) {
+			fError = error;
+			fDone = true;
+			notifyAll();
+		}
+	}
+}
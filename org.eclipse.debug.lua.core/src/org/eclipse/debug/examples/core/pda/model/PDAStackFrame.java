@@ -24,8 +24,6 @@
 ******************************************************************************/
 package org.eclipse.debug.examples.core.pda.model;
 
-import java.util.Vector;
-
 import org.eclipse.core.runtime.Path;
 import org.eclipse.debug.core.DebugException;
 import org.eclipse.debug.core.model.IRegisterGroup;
@@ -44,8 +42,6 @@ public class PDAStackFrame extends PDADebugElement implements IStackFrame {
 	private String fFileName;
 	private int fId;
 	
-	static private final String startGlobalTable = "startglobaltable=startglobaltable";
-	static private final String endGlobalTable = "endglobaltable=endglobaltable";
 	
 	/**
 	 * Constructs a stack frame in the given thread with the given
@@ -56,6 +52,19 @@ public class PDAStackFrame extends PDADebugElement implements IStackFrame {
 	 * @param id stack frame id (0 is the bottom of the stack)
 	 */
 	public PDAStackFrame(PDAThread thread, String data, int id) {
+		this(thread, PDAReplyParser.parseValues(new PDATextCursor(PDATextCursor.SHAPE_LIST, data)), id);
+	}
+	
+	/**
+	 * Constructs a stack frame in the given thread with the given
+	 * frame data: the file name, line number and function name followed
+	 * by the names of the local variables.
+	 * 
+	 * @param thread
+	 * @param data frame data
+	 * @param id stack frame id (0 is the bottom of the stack)
+	 */
+	public PDAStackFrame(PDAThread thread, String[] data, int id) {
 		super(thread.getPDADebugTarget());
 		fId = id;
 		fThread = thread;
@@ -65,121 +74,27 @@ public class PDAStackFrame extends PDADebugElement implements IStackFrame {
 	/**
 	 * Initializes this frame based on its data
 	 * 
-	 * @param data
+	 * @param strings frame data
 	 */
-	private void init(String data) {
-		String[] strings = data.split("\\|");
+	private void init(String[] strings) {
 		String fileName = strings[0];
 		fFileName = (new Path(fileName)).lastSegment();
 		String pc = strings[1];
 		fPC = Integer.parseInt(pc);
 		fName = strings[2];
 		int numVars = strings.length - 3;
-		IVariable[] vars = new IVariable[numVars];
+		
+		// the locals are followed by an empty line and the global variables,
+		// which are fetched once per suspend when they are first expanded
+		IVariable[] vars = new IVariable[numVars + 2];
 		for (int i = 0; i < numVars; i++) {
 			vars[i] = new PDAVariable(this, strings[i + 3]);
 		}
-		
-		// I am adding the global variables to the end of every stack frame's
-		// variable display window
-	    try {
-			data = sendRequest("getglobals");
-		} catch (DebugException e) {
-			strings = new String[0];
-		}
-
-		strings = data.split("\\|");
-
-		// The list is serialized data that may have tables in it. The
-		// tables have markers for start and end that should not be counted
-		// as part of the list.
-		// Everything between a start and an end marker is counted as 1 variable.
-		// This is because those variables are stored in an array in the current
-		// variable.
-		int numGlobalVars = 0;
-		boolean doCount = true;
-		for(int i = 0; i < strings.length; i++) {
-			if (doCount) {
-				numGlobalVars++;
-			}
-			
-			if (strings[i].equals(startGlobalTable)) {
-				doCount = false;
-			} else if (strings[i].equals(endGlobalTable)) {
-				doCount = true;
-			}
-		}
-		
-		// make 2 fake variables between the locals and globals as labels
-		int fakeGlobals = 2;
-		numGlobalVars += fakeGlobals;
-		
-		IVariable[] globalVars = new PDAVariable[numGlobalVars];
-		// make the fake globals first
-		PDAVariable fakeVar = null;
-		fakeVar = new PDAVariable(this, ""); // empty name as a space
-		fakeVar.setGlobalVal("");            // empty value as a space
-		fakeVar.setGlobal(true);
-		globalVars[0] = fakeVar;
-		fakeVar = new PDAVariable(this, "GLOBAL");
-		fakeVar.setGlobalVal("VARIABLES");
-		fakeVar.setGlobal(true);
-		globalVars[1] = fakeVar;
-		
-		int countOfStringVars = 0;
-		PDAVariable pdaVar = null;
-		for (int i = 2; i < numGlobalVars; i++) {
-			// strings[i] is something like "x[1]=abc"
-			String curLine = strings[countOfStringVars++];
-			String[] nameVal = curLine.split("\\=");
-			// Save the "x[1]" here
-			pdaVar = new PDAVariable(this, nameVal[0]);
-            if (curLine.equals(startGlobalTable)) {
-            	// make new PDAVariables in a loop until endGlobalTable marker
-            	//
-            	// look ahead to the next entry to get the name, e.g. x[1]=0
-            	// just use the "x"
-            	String name = strings[countOfStringVars+1];
-            	name = name.split("\\[")[0];
-            	pdaVar.setName(name);
-            	pdaVar.setTable(true); // both table and global are set
-            	pdaVar.setGlobal(true);
-            	Vector vec = new Vector();
-            	while (true) {
-            		curLine = strings[countOfStringVars++];
-            		if (curLine.equals(endGlobalTable)) {
-            			break;
-            		}
-            		nameVal = curLine.split("\\=");
-            		PDAVariable pVar = new PDAVariable(this, nameVal[0]);
-            		pVar.setPDAVaribleValue(nameVal[1]);
-            		pVar.setTable(true);
-            		vec.add(pVar);
-            	}
-            	PDAVariable[] array = new PDAVariable[vec.size()];
-            	vec.copyInto(array);
-            	// put this array in the last pdaVar
-            	pdaVar.setGlobalTablePDAVars(array);
-            	globalVars[i] = pdaVar;
-            	continue;
-            }
-            
-			// Save the "abc" here
-			pdaVar.setGlobalVal(nameVal[1]);
-			pdaVar.setGlobal(true);
-			globalVars[i] = pdaVar;
-		}
-		
-		int total = numVars + numGlobalVars;
-		IVariable[] totalVars = new PDAVariable[total];
-		for (int i = 0; i < total; i++) {
-			if (i < numVars) {
-				totalVars[i] = vars[i];
-			} else {
-				totalVars[i] = globalVars[i-numVars];
-			}
-		}
-		vars = totalVars;
+		PDAVariable spacer = new PDAVariable(this, ""); // empty name as a space
+		spacer.setGlobalVal("");                        // empty value as a space
+		spacer.setGlobal(true);
+		vars[numVars] = spacer;
+		vars[numVars + 1] = new PDAGlobalsVariable(this);
 
 		fThread.setVariables(this, vars);
 	}
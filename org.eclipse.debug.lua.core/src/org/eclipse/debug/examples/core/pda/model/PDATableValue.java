@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright (c) 2008 VeriSign, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     VeriSign, Inc. - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.debug.examples.core.pda.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.debug.core.DebugException;
+import org.eclipse.debug.core.model.IIndexedValue;
+import org.eclipse.debug.core.model.IVariable;
+
+/**
+ * Value of a Lua table, or of a function or userdata that ldb sent as a
+ * handle. What is inside it is fetched a page at a time as it is shown,
+ * so a large table opens without ldb or the IDE holding all its entries,
+ * and a nested table is only fetched when it is opened. The Variables
+ * view splits a value with more than {@link #PAGE_SIZE} entries into
+ * ranges and asks for the entries of a range when it is expanded.
+ * <p>
+ * Pages are fetched with a ranged command: <code>var frame name</code>
+ * for a local table, or <code>expand handle</code> for a handle, followed
+ * by the offset and number of entries wanted. Entries are in the order
+ * <code>lua_next</code> visits them, which stays the same only while the
+ * table is unchanged, so pages are only valid until the thread resumes.
+ * A new value is created each time the thread suspends.
+ * </p>
+ */
+public class PDATableValue extends PDAValue implements IIndexedValue {
+	
+	/**
+	 * Number of entries fetched in each request, the same as the size of
+	 * the ranges the Variables view shows
+	 */
+	public static final int PAGE_SIZE = 100;
+	
+	private PDAStackFrame fFrame;
+	private String fCommand;
+	
+	/**
+	 * Number of entries, or -1 until the first page has been fetched
+	 */
+	private int fSize = -1;
+	
+	/**
+	 * Pages fetched so far, keyed by their offset
+	 */
+	private Map fPages = new HashMap();
+	
+	/**
+	 * Constructs a value whose entries are fetched when they are first
+	 * asked for
+	 * 
+	 * @param frame stack frame the value is shown in
+	 * @param command command that fetches the entries, without the range,
+	 *  e.g. <code>expand 12</code>
+	 * @param value text shown for the value, e.g. <code>table</code>
+	 */
+	public PDATableValue(PDAStackFrame frame, String command, String value) {
+		super(frame.getPDADebugTarget(), value);
+		fFrame = frame;
+		fCommand = command;
+	}
+	
+	/**
+	 * Constructs a value whose first page of entries has been fetched
+	 * 
+	 * @param frame stack frame the value is shown in
+	 * @param command command that fetches the entries, without the range,
+	 *  e.g. <code>var 0 x</code>
+	 * @param value text shown for the value, e.g. <code>table</code>
+	 * @param size number of entries
+	 * @param firstPage entries from offset 0
+	 */
+	public PDATableValue(PDAStackFrame frame, String command, String value, int size, PDAVariable[] firstPage) {
+		this(frame, command, value);
+		fSize = size;
+		fPages.put(new Integer(0), firstPage);
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.eclipse.debug.core.model.IIndexedValue#getSize()
+	 */
+	public int getSize() throws DebugException {
+		synchronized (fPages) {
+			if (fSize >= 0) {
+				return fSize;
+			}
+		}
+		fetchPage(0, PAGE_SIZE);
+		synchronized (fPages) {
+			return fSize;
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.eclipse.debug.core.model.IIndexedValue#getInitialOffset()
+	 */
+	public int getInitialOffset() {
+		return 0;
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.eclipse.debug.core.model.IIndexedValue#getVariable(int)
+	 */
+	public IVariable getVariable(int offset) throws DebugException {
+		IVariable[] variables = getVariables(offset, 1);
+		if (variables.length == 0) {
+			requestFailed("No table entry at " + offset, null);
+		}
+		return variables[0];
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.eclipse.debug.core.model.IIndexedValue#getVariables(int, int)
+	 */
+	public IVariable[] getVariables(int offset, int length) throws DebugException {
+		if (offset < 0 || length < 0 || offset + length > getSize()) {
+			requestFailed("Table range out of bounds: " + offset + ", " + length, null);
+		}
+		synchronized (fPages) {
+			PDAVariable[] page = (PDAVariable[]) fPages.get(new Integer(offset));
+			if (page != null && page.length >= length) {
+				if (page.length == length) {
+					return page;
+				}
+				PDAVariable[] variables = new PDAVariable[length];
+				System.arraycopy(page, 0, variables, 0, length);
+				return variables;
+			}
+		}
+		return fetchPage(offset, length);
+	}
+	
+	/**
+	 * Fetches and keeps the given range of entries, and the number of
+	 * entries
+	 * 
+	 * @param offset offset of the first entry
+	 * @param length number of entries
+	 * @return the entries
+	 * @throws DebugException if the request fails or times out
+	 */
+	private PDAVariable[] fetchPage(int offset, int length) throws DebugException {
+		PDARequest request = getPDADebugTarget().sendRequestAsync(fCommand + " " + offset + " " + length);
+		IPDAReplyCursor reply = request.getReplyCursor(null, getPDADebugTarget().getRequestTimeout());
+		int size = 0;
+		PDAVariable[] page = new PDAVariable[0];
+		if (reply.next() == IPDAReplyCursor.TABLE_BEGIN) {
+			// anything else means the handle or variable is gone
+			size = PDAReplyParser.parseSize(reply);
+			page = PDAReplyParser.parseTable(fFrame, reply);
+		}
+		synchronized (fPages) {
+			fSize = size;
+			fPages.put(new Integer(offset), page);
+		}
+		return page;
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.eclipse.debug.core.model.IValue#getVariables()
+	 */
+	public IVariable[] getVariables() throws DebugException {
+		return getVariables(0, getSize());
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.eclipse.debug.core.model.IValue#hasVariables()
+	 */
+	public boolean hasVariables() throws DebugException {
+		synchronized (fPages) {
+			// a value that has not been opened is not fetched just to find out
+			return fSize != 0;
+		}
+	}
+	
+	/*
+	 *  (non-Javadoc)
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	public boolean equals(Object obj) {
+		return obj instanceof PDATableValue && ((PDATableValue)obj).fCommand.equals(fCommand);
+	}
+	
+	/*
+	 *  (non-Javadoc)
+	 * @see java.lang.Object#hashCode()
+	 */
+	public int hashCode() {
+		return fCommand.hashCode();
+	}
+}
@@ -0,0 +1,371 @@
+/*******************************************************************************
+ * Copyright (c) 2008 VeriSign, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     VeriSign, Inc. - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.debug.examples.core.pda.model;
+
+/**
+ * Walks the fields of a text reply from ldb in place, so text replies are
+ * read by the same parser as binary frames.
+ * <p>
+ * Text replies are <code>|</code> separated and their layout depends on the
+ * command that was sent:
+ * <ul>
+ * <li><code>data</code> - <code>value|value|...|</code>, read as values</li>
+ * <li><code>stackforide</code> - <code>file|line|function|local|...|#</code>
+ * 		for each frame; the first three of each frame are read as values,
+ * 		the locals as names and each <code>#</code> as a frame end</li>
+ * <li><code>getglobals</code> and <code>changes</code> - <code>name=value|...|</code> with each table
+ * 		between <code>startglobaltable=startglobaltable|</code> and
+ * 		<code>endglobaltable=endglobaltable|</code>; each entry is read as
+ * 		a name and a value, and the markers as table begin and end</li>
+ * <li><code>var</code> - a single text, or <code>x[1]=abc|x[2]=def|...|</code>
+ * 		for a table, read as a table of named values. A ranged request gets
+ * 		the number of entries in the table first, e.g.
+ * 		<code>100000|x[1]=abc|...|</code>, which is read as a value.</li>
+ * </ul>
+ * </p>
+ * <p>
+ * The reply is copied once into a character buffer that is kept when the
+ * cursor is reset, and field text is only created when asked for.
+ * </p>
+ */
+public class PDATextCursor implements IPDAReplyCursor {
+	
+	/**
+	 * Reply layouts, chosen by the command that was sent
+	 */
+	public static final int SHAPE_LIST = 0;
+	public static final int SHAPE_STACK = 1;
+	public static final int SHAPE_GLOBALS = 2;
+	public static final int SHAPE_VAR = 3;
+	
+	private static final String START_TABLE = "startglobaltable=startglobaltable";
+	private static final String END_TABLE = "endglobaltable=endglobaltable";
+	
+	// states of a var reply
+	private static final int VAR_START = 0;
+	private static final int VAR_TABLE = 1;
+	private static final int VAR_DONE = 2;
+	
+	private char[] fBuffer = new char[0];
+	private int fLength;
+	private int fShape;
+	
+	// start of the next token
+	private int fPosition;
+	// the current field
+	private int fStart;
+	private int fEnd;
+	// the value half of a name=value token, returned by the next call
+	private int fValueStart = -1;
+	private int fValueEnd;
+	// number of fields read from the current stack frame
+	private int fFrameField;
+	private int fVarState;
+	
+	/**
+	 * Constructs a cursor with no reply; see {@link #reset(String, String)}
+	 */
+	public PDATextCursor() {
+	}
+	
+	/**
+	 * Constructs a cursor over the given reply to the given command
+	 * 
+	 * @param command command that was sent, e.g. <code>var 1 x</code>
+	 * @param reply text reply, without its correlation id
+	 */
+	public PDATextCursor(String command, String reply) {
+		reset(command, reply);
+	}
+	
+	/**
+	 * Constructs a cursor over the given reply
+	 * 
+	 * @param shape one of the <code>SHAPE_</code> constants
+	 * @param reply text reply, without its correlation id
+	 */
+	public PDATextCursor(int shape, String reply) {
+		reset(shape, reply);
+	}
+	
+	/**
+	 * Positions this cursor before the first field of the given reply to
+	 * the given command
+	 * 
+	 * @param command command that was sent, e.g. <code>var 1 x</code>
+	 * @param reply text reply, without its correlation id
+	 */
+	public void reset(String command, String reply) {
+		reset(shapeOf(command), reply);
+	}
+	
+	/**
+	 * Positions this cursor before the first field of the given reply
+	 * 
+	 * @param shape one of the <code>SHAPE_</code> constants
+	 * @param reply text reply, without its correlation id
+	 */
+	public void reset(int shape, String reply) {
+		fLength = reply == null ? 0 : reply.length();
+		if (fBuffer.length < fLength) {
+			fBuffer = new char[fLength];
+		}
+		if (fLength > 0) {
+			reply.getChars(0, fLength, fBuffer, 0);
+		}
+		fShape = shape;
+		fPosition = 0;
+		fStart = 0;
+		fEnd = 0;
+		fValueStart = -1;
+		fFrameField = 0;
+		fVarState = VAR_START;
+	}
+	
+	/**
+	 * Returns the layout of the text reply to the given command
+	 * 
+	 * @param command command that was sent
+	 * @return one of the <code>SHAPE_</code> constants
+	 */
+	public static int shapeOf(String command) {
+		if (command.startsWith("stackforide")) {
+			return SHAPE_STACK;
+		} else if (command.startsWith("getglobals") || command.startsWith("changes")) {
+			return SHAPE_GLOBALS;
+		} else if (command.startsWith("var ")) {
+			return SHAPE_VAR;
+		}
+		return SHAPE_LIST;
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.eclipse.debug.examples.core.pda.model.IPDAReplyCursor#next()
+	 */
+	public int next() {
+		if (fValueStart >= 0) {
+			fStart = fValueStart;
+			fEnd = fValueEnd;
+			fValueStart = -1;
+			return VALUE;
+		}
+		switch (fShape) {
+			case SHAPE_STACK:
+				return nextStackField();
+			case SHAPE_GLOBALS:
+				return nextGlobalsField();
+			case SHAPE_VAR:
+				return nextVarField();
+			default:
+				return nextToken('|') ? VALUE : END;
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see org.eclipse.debug.examples.core.pda.model.IPDAReplyCursor#getText()
+	 */
+	public String getText() {
+		return new String(fBuffer, fStart, fEnd - fStart);
+	}
+	
+	private int nextStackField() {
+		if (fPosition < fLength && fBuffer[fPosition] == '#') {
+			fPosition++;
+			fFrameField = 0;
+			return FRAME_END;
+		}
+		if (!nextToken('#')) {
+			return END;
+		}
+		return fFrameField++ < 3 ? VALUE : NAME;
+	}
+	
+	private int nextGlobalsField() {
+		if (!nextToken('|')) {
+			return END;
+		}
+		if (tokenEquals(START_TABLE)) {
+			tableName();
+			return TABLE_BEGIN;
+		}
+		if (tokenEquals(END_TABLE)) {
+			return TABLE_END;
+		}
+		return splitEntry();
+	}
+	
+	private int nextVarField() {
+		switch (fVarState) {
+			case VAR_START:
+				if (indexOf('|', 0) < 0) {
+					// a single value
+					fVarState = VAR_DONE;
+					if (fLength == 0) {
+						return END;
+					}
+					fStart = 0;
+					fEnd = fLength;
+					return TEXT;
+				}
+				fVarState = VAR_TABLE;
+				tableName();
+				return TABLE_BEGIN;
+			case VAR_TABLE:
+				if (nextToken('|')) {
+					return splitEntry();
+				}
+				fVarState = VAR_DONE;
+				return TABLE_END;
+			default:
+				return END;
+		}
+	}
+	
+	/**
+	 * Reads the next token, which ends at a <code>|</code> or, in a stack
+	 * reply, before a <code>#</code>. Empty tokens are skipped.
+	 * 
+	 * @param stop character that ends a token without being consumed, or
+	 *  <code>|</code>
+	 * @return whether there was another token
+	 */
+	private boolean nextToken(char stop) {
+		while (fPosition < fLength) {
+			int start = fPosition;
+			int end = start;
+			while (end < fLength && fBuffer[end] != '|' && fBuffer[end] != stop) {
+				end++;
+			}
+			fPosition = end < fLength && fBuffer[end] == '|' ? end + 1 : end;
+			if (end > start) {
+				fStart = start;
+				fEnd = end;
+				return true;
+			}
+			if (end < fLength && fBuffer[end] == stop && stop != '|') {
+				return false;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Makes the current field the name of the current <code>name=value</code>
+	 * token and keeps its value for the next call. The name of a table
+	 * element ends at the <code>]=</code> after its key. A token that is
+	 * not an entry is a value.
+	 * 
+	 * @return <code>NAME</code>, or <code>VALUE</code> if the token is not
+	 *  an entry
+	 */
+	private int splitEntry() {
+		int separator = -1;
+		for (int i = fStart; i < fEnd; i++) {
+			char c = fBuffer[i];
+			if (c == '[') {
+				separator = indexOf("]=", i);
+				if (separator >= 0 && separator < fEnd) {
+					separator++;
+				} else {
+					separator = -1;
+				}
+				break;
+			}
+			if (c == '=') {
+				separator = i;
+				break;
+			}
+		}
+		if (separator < 0) {
+			// not an entry, such as the size of a table
+			return VALUE;
+		}
+		fValueStart = separator + 1;
+		fValueEnd = fEnd;
+		fEnd = separator;
+		return NAME;
+	}
+	
+	/**
+	 * Makes the current field the name of the table that starts at the
+	 * next token, taken from the name of its first element, e.g. the
+	 * <code>x</code> of <code>x[1]=abc</code>. Does not move the cursor.
+	 */
+	private void tableName() {
+		int position = fPosition;
+		int start = fStart;
+		int end = fEnd;
+		fStart = fEnd = fPosition;
+		boolean found = nextToken('|');
+		if (found && !isEntry()) {
+			// skip the size of a table
+			found = nextToken('|');
+		}
+		if (found && !tokenEquals(END_TABLE)) {
+			int bracket = fStart;
+			while (bracket < fEnd && fBuffer[bracket] != '[' && fBuffer[bracket] != '=') {
+				bracket++;
+			}
+			start = fStart;
+			end = bracket;
+		} else {
+			start = end = position;
+		}
+		fPosition = position;
+		fStart = start;
+		fEnd = end;
+	}
+	
+	private boolean isEntry() {
+		for (int i = fStart; i < fEnd; i++) {
+			if (fBuffer[i] == '=') {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private boolean tokenEquals(String s) {
+		int length = s.length();
+		if (fEnd - fStart != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (fBuffer[fStart + i] != s.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private int indexOf(char c, int from) {
+		for (int i = from; i < fLength; i++) {
+			if (fBuffer[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	private int indexOf(String s, int from) {
+		int last = fLength - s.length();
+		for (int i = from; i <= last; i++) {
+			int j = 0;
+			while (j < s.length() && fBuffer[i + j] == s.charAt(j)) {
+				j++;
+			}
+			if (j == s.length()) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
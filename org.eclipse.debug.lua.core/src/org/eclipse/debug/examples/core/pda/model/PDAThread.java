@@ -19,14 +19,22 @@
 package org.eclipse.debug.examples.core.pda.model;
 
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
 import org.eclipse.debug.core.DebugEvent;
 import org.eclipse.debug.core.DebugException;
 import org.eclipse.debug.core.model.IBreakpoint;
 import org.eclipse.debug.core.model.IStackFrame;
 import org.eclipse.debug.core.model.IThread;
 import org.eclipse.debug.core.model.IVariable;
+import org.eclipse.debug.examples.core.pda.breakpoints.PDALineBreakpoint;
 
 /**
  * A PDA thread. A PDA VM is single threaded.
@@ -59,6 +67,64 @@ public class PDAThread extends PDADebugElement implements IThread, IPDAEventList
 	 */
 	private Map fVariables = new HashMap();
 	
+	/**
+	 * Incremented each time this thread suspends or resumes, so that
+	 * stack frames and values fetched while suspended can tell whether
+	 * they are still current
+	 */
+	private int fSuspendCount = 0;
+	
+	/**
+	 * Stack frames fetched while suspended, or <code>null</code>
+	 */
+	private IStackFrame[] fStackFrames;
+	
+	/**
+	 * Suspend count when the cached stack frames were fetched
+	 */
+	private int fStackFramesCount;
+	
+	/**
+	 * Held while stack frames are fetched, so that concurrent callers
+	 * share a single <code>stackforide</code> request
+	 */
+	private Object fStackFramesLock = new Object();
+	
+	/**
+	 * Last values reported by the interpreter's <code>changes</code> command.
+	 * Locals are keyed by the depth of their frame from the bottom of the
+	 * stack and their name, <code>2:x</code>, so they stay put when frames
+	 * are pushed or popped above them; globals are keyed by name.
+	 * Only what changed is sent each time the stack frames are fetched.
+	 */
+	private Map fLocalValues = new HashMap();
+	private Map fGlobalValues = new TreeMap();
+	
+	/**
+	 * Keys of the values that changed since the thread last resumed,
+	 * <code>2:x</code> for locals and <code>G:x</code> for globals
+	 */
+	private Set fChangedValues = new HashSet();
+	
+	/**
+	 * Number of stack frames at the last fetch, or -1 if the reported
+	 * values are not known and must all be asked for again
+	 */
+	private int fValuesFrameCount = -1;
+	
+	/**
+	 * Stack sent in a <code>snapshot stack</code> event ahead of the next
+	 * suspended event, or <code>null</code>
+	 */
+	private String[][] fSnapshotFrames;
+	
+	/**
+	 * Stack frames made from a snapshot when this thread suspended, or
+	 * <code>null</code>, and the suspend count they belong to
+	 */
+	private IStackFrame[] fPrimedFrames;
+	private int fPrimedFramesCount;
+	
 	/**
 	 * Constructs a new thread for the given target
 	 * 
@@ -83,19 +149,265 @@ public class PDAThread extends PDADebugElement implements IThread, IPDAEventList
      * file|lineNumber|functionname|varName|etc|file|lineNumber|functionname|varName|etc|
 	 */
 	public IStackFrame[] getStackFrames() throws DebugException {
-		if (isSuspended()) {
-			String framesData = sendRequest("stackforide");
-			if (framesData != null) {
-				String[] frames = framesData.split("#");
-				IStackFrame[] theFrames = new IStackFrame[frames.length];
-				for (int i = 0; i < frames.length; i++) {
-					String data = frames[i];
-					theFrames[frames.length - i - 1] = new PDAStackFrame(this, data, frames.length - i - 1);
+		return getStackFrames(null);
+	}
+	
+	/**
+	 * Returns the stack frames of this thread, giving up if the monitor is
+	 * cancelled or a request times out. The stack frames are fetched once
+	 * each time this thread suspends, unless the interpreter sent them with
+	 * the suspended event; later calls return the same frames until the
+	 * thread resumes.
+	 * 
+	 * @param monitor progress monitor, or <code>null</code>
+	 * @return the stack frames of this thread, top down
+	 * @throws DebugException if a request fails, is cancelled or times out
+	 * @see PDADebugTarget#getRequestTimeout()
+	 */
+	public IStackFrame[] getStackFrames(IProgressMonitor monitor) throws DebugException {
+		synchronized (fStackFramesLock) {
+			int suspendCount = getSuspendCount();
+			if (!isSuspended()) {
+				return new IStackFrame[0];
+			}
+			if (fStackFrames == null || fStackFramesCount != suspendCount) {
+				IStackFrame[] frames = takePrimedFrames(suspendCount);
+				fStackFrames = frames != null ? frames : fetchStackFrames(monitor);
+				fStackFramesCount = suspendCount;
+			}
+			return fStackFrames;
+		}
+	}
+	
+	/**
+	 * Requests the stack frames of this thread from the interpreter
+	 * 
+	 * @param monitor progress monitor, or <code>null</code>
+	 * @return the stack frames of this thread, top down
+	 * @throws DebugException if a request fails, is cancelled or times out
+	 */
+	private IStackFrame[] fetchStackFrames(IProgressMonitor monitor) throws DebugException {
+		// one round trip for both
+		PDABatch batch = getPDADebugTarget().newBatch();
+		PDARequest request = batch.add("stackforide");
+		PDARequest changes;
+		synchronized (fLocalValues) {
+			changes = batch.add(fValuesFrameCount < 0 ? "changes all" : "changes");
+			batch.send();
+		}
+		boolean merged = false;
+		try {
+			IPDAReplyCursor reply = request.getReplyCursor(monitor, getPDADebugTarget().getRequestTimeout());
+			String[][] frames = PDAReplyParser.parseStackFrames(reply);
+			if (monitor != null && monitor.isCanceled()) {
+				throw new DebugException(new Status(IStatus.CANCEL, getModelIdentifier(),
+						DebugException.TARGET_REQUEST_FAILED, "Request cancelled: stackforide", null));
+			}
+			IStackFrame[] theFrames = toStackFrames(frames);
+			reply = changes.getReplyCursor(monitor, getPDADebugTarget().getRequestTimeout());
+			mergeChanges(PDAReplyParser.parseEntries(reply), frames.length);
+			merged = true;
+			return theFrames;
+		} finally {
+			if (!merged) {
+				// the interpreter may have counted changes we never saw
+				changes.cancel();
+				synchronized (fLocalValues) {
+					fValuesFrameCount = -1;
 				}
-				return theFrames;
 			}
 		}
-		return new IStackFrame[0];
+	}
+	
+	/**
+	 * Makes stack frames from the reply to <code>stackforide</code>
+	 * 
+	 * @param frames data of each frame, bottom up
+	 * @return the stack frames, top down
+	 */
+	private IStackFrame[] toStackFrames(String[][] frames) {
+		IStackFrame[] theFrames = new IStackFrame[frames.length];
+		for (int i = 0; i < frames.length; i++) {
+			theFrames[frames.length - i - 1] = new PDAStackFrame(this, frames[i], frames.length - i - 1);
+		}
+		return theFrames;
+	}
+	
+	/**
+	 * Returns the stack frames made from a snapshot for the given suspend
+	 * count, or <code>null</code> if there are none. They are only returned once.
+	 * 
+	 * @param suspendCount current suspend count
+	 * @return stack frames, or <code>null</code>
+	 */
+	private synchronized IStackFrame[] takePrimedFrames(int suspendCount) {
+		IStackFrame[] frames = fPrimedFrames;
+		fPrimedFrames = null;
+		if (frames != null && fPrimedFramesCount == suspendCount) {
+			return frames;
+		}
+		return null;
+	}
+	
+	/**
+	 * Handles a <code>snapshot</code> event, sent by the interpreter just
+	 * before it suspends. The stack is kept until the suspended event; the
+	 * changes are merged into the reported values straight away, as the
+	 * interpreter counts them as seen. If the reported values are not known
+	 * the stack is dropped, so the next fetch asks for all of them.
+	 * 
+	 * @param event <code>snapshot stack ...</code> or <code>snapshot changes ...</code>
+	 */
+	private void handleSnapshot(PDAEvent event) {
+		if (event.getDetail() == null) {
+			return;
+		}
+		if (event.is(PDAEvent.SNAPSHOT, "stack")) {
+			fSnapshotFrames = PDAReplyParser.parseStackFrames(
+					new PDATextCursor(PDATextCursor.SHAPE_STACK, event.getDetail()));
+		} else if (event.is(PDAEvent.SNAPSHOT, "changes") && fSnapshotFrames != null) {
+			String[][] changes = PDAReplyParser.parseEntries(
+					new PDATextCursor(PDATextCursor.SHAPE_GLOBALS, event.getDetail()));
+			synchronized (fLocalValues) {
+				if (fValuesFrameCount < 0) {
+					fSnapshotFrames = null;
+				} else {
+					mergeChanges(changes, fSnapshotFrames.length);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Makes the stack frames from the last snapshot, if any, for the
+	 * suspend that just began
+	 */
+	private void primeStackFrames() {
+		String[][] frames = fSnapshotFrames;
+		fSnapshotFrames = null;
+		if (frames != null) {
+			IStackFrame[] theFrames = toStackFrames(frames);
+			synchronized (this) {
+				fPrimedFrames = theFrames;
+				fPrimedFramesCount = fSuspendCount;
+			}
+		}
+	}
+	
+	/**
+	 * Merges the reply to <code>changes</code> into the reported values
+	 * 
+	 * @param changes name and value of each change
+	 * @param frameCount number of stack frames
+	 */
+	private void mergeChanges(String[][] changes, int frameCount) {
+		synchronized (fLocalValues) {
+			if (fValuesFrameCount < 0) {
+				fLocalValues.clear();
+				fGlobalValues.clear();
+			}
+			for (int i = 0; i < changes.length; i++) {
+				String key = changes[i][0];
+				String value = changes[i][1];
+				if (key.startsWith("G:")) {
+					if (value.equals("@")) {
+						// no longer exists
+						fGlobalValues.remove(key.substring(2));
+					} else {
+						fGlobalValues.put(key.substring(2), value);
+					}
+				} else {
+					fLocalValues.put(key, value);
+				}
+				fChangedValues.add(key);
+			}
+			fValuesFrameCount = frameCount;
+		}
+	}
+	
+	/**
+	 * Forgets the reported values, so they are all asked for again the
+	 * next time the stack frames are fetched. Called when the client
+	 * changes a value itself.
+	 */
+	void forgetReportedValues() {
+		synchronized (fLocalValues) {
+			fValuesFrameCount = -1;
+		}
+	}
+	
+	/**
+	 * Returns the key of the given local in the reported values
+	 * 
+	 * @param frame stack frame
+	 * @param name name of a local in the frame
+	 * @return key of the local
+	 */
+	private String getLocalKey(PDAStackFrame frame, String name) {
+		return (fValuesFrameCount - 1 - frame.getIdentifier()) + ":" + name;
+	}
+	
+	/**
+	 * Returns the last value reported for the given local, or
+	 * <code>null</code> if none
+	 * 
+	 * @param frame stack frame
+	 * @param name name of a local in the frame
+	 * @return value text, or <code>null</code>
+	 */
+	String getReportedValue(PDAStackFrame frame, String name) {
+		synchronized (fLocalValues) {
+			if (fValuesFrameCount < 0) {
+				return null;
+			}
+			return (String) fLocalValues.get(getLocalKey(frame, name));
+		}
+	}
+	
+	/**
+	 * Returns whether the given local changed before the last suspend
+	 * 
+	 * @param frame stack frame
+	 * @param name name of a local in the frame
+	 * @return whether the local changed
+	 */
+	boolean isChanged(PDAStackFrame frame, String name) {
+		synchronized (fLocalValues) {
+			return fChangedValues.contains(getLocalKey(frame, name));
+		}
+	}
+	
+	/**
+	 * Returns whether the given global changed before the last suspend
+	 * 
+	 * @param name name of a global
+	 * @return whether the global changed
+	 */
+	boolean isGlobalChanged(String name) {
+		synchronized (fLocalValues) {
+			return fChangedValues.contains("G:" + name);
+		}
+	}
+	
+	/**
+	 * Returns the name and last reported value of each global, sorted by
+	 * name, or <code>null</code> if the reported values are not known
+	 * 
+	 * @return name and value of each global, or <code>null</code>
+	 */
+	String[][] getReportedGlobals() {
+		synchronized (fLocalValues) {
+			if (fValuesFrameCount < 0) {
+				return null;
+			}
+			String[][] globals = new String[fGlobalValues.size()][];
+			Iterator entries = fGlobalValues.entrySet().iterator();
+			for (int i = 0; entries.hasNext(); i++) {
+				Map.Entry entry = (Map.Entry) entries.next();
+				globals[i] = new String[] {(String) entry.getKey(), (String) entry.getValue()};
+			}
+			return globals;
+		}
 	}
 	
 	/* (non-Javadoc)
@@ -114,7 +426,19 @@ public class PDAThread extends PDADebugElement implements IThread, IPDAEventList
 	 * @see org.eclipse.debug.core.model.IThread#getTopStackFrame()
 	 */
 	public IStackFrame getTopStackFrame() throws DebugException {
-		IStackFrame[] frames = getStackFrames();
+		return getTopStackFrame(null);
+	}
+	
+	/**
+	 * Returns the top stack frame of this thread, giving up if the monitor
+	 * is cancelled or a request times out.
+	 * 
+	 * @param monitor progress monitor, or <code>null</code>
+	 * @return the top stack frame, or <code>null</code> if none
+	 * @throws DebugException if a request fails, is cancelled or times out
+	 */
+	public IStackFrame getTopStackFrame(IProgressMonitor monitor) throws DebugException {
+		IStackFrame[] frames = getStackFrames(monitor);
 		if (frames.length > 0) {
 			return frames[0];
 		}
@@ -161,7 +485,7 @@ public class PDAThread extends PDADebugElement implements IThread, IPDAEventList
 	/* (non-Javadoc)
 	 * @see org.eclipse.debug.core.model.ISuspendResume#isSuspended()
 	 */
-	public boolean isSuspended() {
+	public synchronized boolean isSuspended() {
 		return fSuspended && !isTerminated();
 	}
 	/* (non-Javadoc)
@@ -180,7 +504,7 @@ public class PDAThread extends PDADebugElement implements IThread, IPDAEventList
 	 * @see org.eclipse.debug.core.model.IStep#canStepInto()
 	 */
 	public boolean canStepInto() {
-		return false;
+		return isSuspended();
 	}
 	/* (non-Javadoc)
 	 * @see org.eclipse.debug.core.model.IStep#canStepOver()
@@ -192,7 +516,7 @@ public class PDAThread extends PDADebugElement implements IThread, IPDAEventList
 	 * @see org.eclipse.debug.core.model.IStep#canStepReturn()
 	 */
 	public boolean canStepReturn() {
-		return false;
+		return isSuspended();
 	}
 	/* (non-Javadoc)
 	 * @see org.eclipse.debug.core.model.IStep#isStepping()
@@ -204,17 +528,79 @@ public class PDAThread extends PDADebugElement implements IThread, IPDAEventList
 	 * @see org.eclipse.debug.core.model.IStep#stepInto()
 	 */
 	public void stepInto() throws DebugException {
+		sendRequest("step");
 	}
 	/* (non-Javadoc)
 	 * @see org.eclipse.debug.core.model.IStep#stepOver()
 	 */
 	public void stepOver() throws DebugException {
-		sendRequest("step");
+		// the interpreter runs the calls of the line without stopping
+		sendRequest("stepover");
 	}
 	/* (non-Javadoc)
 	 * @see org.eclipse.debug.core.model.IStep#stepReturn()
 	 */
 	public void stepReturn() throws DebugException {
+		sendRequest("stepreturn");
+	}
+	
+	/**
+	 * Steps the given number of lines, as that many steps into, within
+	 * the interpreter. Only the suspend after the last line is reported.
+	 * 
+	 * @param count number of lines to step, at least 1
+	 * @throws DebugException if the request fails
+	 */
+	public void stepLines(int count) throws DebugException {
+		step("stepn " + count);
+	}
+	
+	/**
+	 * Runs until the given Lua expression is true at the start of a line.
+	 * The interpreter compiles the expression once and evaluates it on
+	 * every line, with the locals, upvalues and globals of the function
+	 * running; only the suspend where it is true is reported. If the
+	 * expression raises an error the thread suspends there instead, with
+	 * the error as its error event, see {@link #getError()}.
+	 * 
+	 * @param expression Lua expression, on one line
+	 * @throws DebugException if the request fails, or the expression
+	 * 	spans lines or does not compile
+	 */
+	public void stepUntil(String expression) throws DebugException {
+		if (expression.indexOf('\n') >= 0 || expression.indexOf('\r') >= 0) {
+			// a request is one line
+			requestFailed("The expression must be on one line", null);
+		}
+		step("stepuntil " + expression);
+	}
+	
+	/**
+	 * Runs until the given line is reached in a frame as deep in the stack
+	 * as the given frame, i.e. in the function of that frame, or one called
+	 * in its place, rather than in a recursive call of it.
+	 * 
+	 * @param frame stack frame of this thread
+	 * @param lineNumber 1-based line
+	 * @throws DebugException if the request fails
+	 */
+	public void stepToLine(PDAStackFrame frame, int lineNumber) throws DebugException {
+		int depth = getStackFrames().length - frame.getIdentifier();
+		step("steptoline " + lineNumber + " " + depth);
+	}
+	
+	/**
+	 * Sends a step request, which the interpreter refuses with an error
+	 * reply if its arguments are not valid
+	 * 
+	 * @param request step request
+	 * @throws DebugException if the request fails or is refused
+	 */
+	private void step(String request) throws DebugException {
+		String reply = sendRequest(request);
+		if (reply.startsWith("ERROR")) {
+			requestFailed(reply, null);
+		}
 	}
 	/* (non-Javadoc)
 	 * @see org.eclipse.debug.core.model.ITerminate#canTerminate()
@@ -249,8 +635,20 @@ public class PDAThread extends PDADebugElement implements IThread, IPDAEventList
 	 * 
 	 * @param suspended whether suspended
 	 */
-	private void setSuspended(boolean suspended) {
+	private synchronized void setSuspended(boolean suspended) {
 		fSuspended = suspended;
+		fSuspendCount++;
+	}
+	
+	/**
+	 * Returns a count that changes each time this thread suspends or
+	 * resumes. Anything fetched from the interpreter while the count is
+	 * unchanged is still current.
+	 * 
+	 * @return suspend count
+	 */
+	synchronized int getSuspendCount() {
+		return fSuspendCount;
 	}
 
 	/**
@@ -275,41 +673,67 @@ public class PDAThread extends PDADebugElement implements IThread, IPDAEventList
 	}
 
 	/* (non-Javadoc)
-	 * @see org.eclipse.debug.examples.core.pda.model.IPDAEventListener#handleEvent(java.lang.String)
+	 * @see org.eclipse.debug.examples.core.pda.model.IPDAEventListener#handleEvent(org.eclipse.debug.examples.core.pda.model.PDAEvent)
 	 */
-	public void handleEvent(String event) {
+	public void handleEvent(PDAEvent event) {
+		if (event.getKind() == PDAEvent.SNAPSHOT) {
+			handleSnapshot(event);
+			return;
+		}
+		
 		// clear previous state
 		fBreakpoint = null;
 		setStepping(false);
 		
 		// handle events
-		if (event.startsWith("resumed")) {
+		String reason = event.getReason();
+		if (event.getKind() == PDAEvent.RESUMED) {
 			setSuspended(false);
-			if (event.endsWith("step")) {
+			fSnapshotFrames = null;
+			synchronized (fLocalValues) {
+				fChangedValues.clear();
+			}
+			if ("step".equals(reason)) {
+				setStepping(true);
+				resumed(DebugEvent.STEP_INTO);
+			} else if ("stepover".equals(reason)) {
 				setStepping(true);
 				resumed(DebugEvent.STEP_OVER);
-			} else if (event.endsWith("client")) {
+			} else if ("stepreturn".equals(reason)) {
+				setStepping(true);
+				resumed(DebugEvent.STEP_RETURN);
+			} else if ("client".equals(reason)) {
 				resumed(DebugEvent.CLIENT_REQUEST);
 			}
-			else if (event.endsWith("drop")) {
+			else if ("drop".equals(reason)) {
 				resumed(DebugEvent.STEP_RETURN);
 			}
-		} else if (event.startsWith("suspended")) {
+		} else if (event.getKind() == PDAEvent.SUSPENDED) {
 			setSuspended(true);
-			if (event.endsWith("client")) {
+			primeStackFrames();
+			if ("client".equals(reason)) {
 				suspended(DebugEvent.CLIENT_REQUEST);
-			} else if (event.endsWith("step")) {
+			} else if ("step".equals(reason)) {
 				suspended(DebugEvent.STEP_END);
-			} else if (event.startsWith("suspended event") && getError() != null) {
+			} else if ("breakpoint".equals(reason)) {
+				// the breakpoint may have been removed since the VM hit it,
+				// or be in a file the workspace does not know by the VM's
+				// path; the thread has suspended all the same
+				PDALineBreakpoint[] breakpoints = getPDADebugTarget().getLineBreakpoints(event.getFile(), event.getLine());
+				if (breakpoints.length > 0) {
+					fBreakpoint = breakpoints[0];
+				}
+				suspended(DebugEvent.BREAKPOINT);
+			} else if ("event".equals(reason) && getError() != null) {
 				exceptionHit();
 			} 
-			else if (event.endsWith("drop")) {
+			else if ("drop".equals(reason)) {
 				suspended(DebugEvent.STEP_END);
 			}
-		} else if (event.equals("started")) {
+		} else if (event.getKind() == PDAEvent.STARTED) {
 			fireCreationEvent();
 		} else {
-			setError(event);
+			setError(event.getText());
 		}
 		
 	}
@@ -25,6 +25,7 @@
 ******************************************************************************/
 package org.eclipse.debug.examples.core.pda.model;
 
+import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.debug.core.DebugEvent;
 import org.eclipse.debug.core.DebugException;
 import org.eclipse.debug.core.model.IValue;
@@ -79,6 +80,18 @@ public class PDAVariable extends PDADebugElement implements IVariable {
 	 */
 	PDAVariable[] pdavars = null;
 	
+	/**
+	 * Value fetched or made while its thread was suspended, or <code>null</code>
+	 */
+	private IValue fValue;
+	
+	/**
+	 * Suspend count of the thread when the value was fetched
+	 * 
+	 * @see PDAThread#getSuspendCount()
+	 */
+	private int fValueCount;
+	
 	/**
 	 * Constructs a variable contained in the given stack frame
 	 * with the given name.
@@ -96,44 +109,54 @@ public class PDAVariable extends PDADebugElement implements IVariable {
 	 * @see org.eclipse.debug.core.model.IVariable#getValue()
 	 */
 	public IValue getValue() throws DebugException {
+		return getValue(null);
+	}
+	
+	/**
+	 * Returns the value of this variable, giving up if the monitor is
+	 * cancelled or the request times out. The value of a local is fetched
+	 * once each time its thread suspends; only the first page of a table
+	 * is fetched with it. A nested table, function or userdata is fetched
+	 * when it is opened. No request is needed for a local whose value was
+	 * sent with the changes at the last suspend.
+	 * 
+	 * @param monitor progress monitor, or <code>null</code>
+	 * @return the value of this variable
+	 * @throws DebugException if the request fails, is cancelled or times out
+	 * @see PDADebugTarget#getRequestTimeout()
+	 */
+	public IValue getValue(IProgressMonitor monitor) throws DebugException {
 		// For globals and tables, we don't need to make a var request 
 		// because the parent already retrieved everything in a list 
 		// (in init) and saved an array of PDAVariables 
 		if (this.isGlobal() && this.isTable()) {
 			return new PDAValue(this.getPDADebugTarget(), "global table", this.pdavars);
-		} else if (this.isGlobal()) {
-			return new PDAValue(this.getPDADebugTarget(), this.globalVal);
+		}
+		int suspendCount = getPDAThread().getSuspendCount();
+		synchronized (this) {
+			if (fValue != null && fValueCount == suspendCount) {
+				return fValue;
+			}
+		}
+		IValue value;
+		String text;
+		if (this.isGlobal()) {
+			value = PDAReplyParser.toValue(getStackFrame(), this.globalVal);
 		} else if (this.isTable()) {
-			return new PDAValue(this.getPDADebugTarget(), this.val);
+			value = PDAReplyParser.toValue(getStackFrame(), this.val);
+		} else if ((text = getPDAThread().getReportedValue(getStackFrame(), getName())) != null) {
+			value = PDAReplyParser.toValue(getStackFrame(), text);
 		} else {
-			String value = sendRequest("var " + getStackFrame().getIdentifier() + " " + getName());
-			if (value.indexOf("|") > -1) {
-				// this is a list of table values, make them into an array of
-				// IValues (PDAValue
-				return init(value);
-			} else {
-			    return new PDAValue(this.getPDADebugTarget(), value);
-			}
+			String command = "var " + getStackFrame().getIdentifier() + " " + getName();
+			PDARequest request = getPDADebugTarget().sendRequestAsync(command + " 0 " + PDATableValue.PAGE_SIZE);
+			IPDAReplyCursor reply = request.getReplyCursor(monitor, getPDADebugTarget().getRequestTimeout());
+			value = PDAReplyParser.parseValue(getStackFrame(), command, reply);
 		}
-	}
-	
-	private PDAValue init(String data) {
-		String[] strings = data.split("\\|");
-		
-		int numVars = strings.length;
-		PDAVariable[] vars = new PDAVariable[numVars];
-		for (int i = 0; i < numVars; i++) {
-			// strings[i] is something like "x[1]=abc"
-			String[] nameVal = strings[i].split("\\=");
-			// Save the "x[1]" here
-			PDAVariable pdaVar = new PDAVariable(getStackFrame(), nameVal[0]);
-			// Save the "abc" here
-			pdaVar.val = nameVal[1];
-			pdaVar.setTable(true);
-			vars[i] = pdaVar;
+		synchronized (this) {
+			fValue = value;
+			fValueCount = suspendCount;
 		}
-
-		return new PDAValue(this.getPDADebugTarget(), "table", vars);
+		return value;
 	}
 	
 	public boolean isTable() {
@@ -183,13 +206,24 @@ public class PDAVariable extends PDADebugElement implements IVariable {
 	 * @see org.eclipse.debug.core.model.IVariable#hasValueChanged()
 	 */
 	public boolean hasValueChanged() throws DebugException {
-		return false;
+		if (isGlobal()) {
+			return getPDAThread().isGlobalChanged(getName());
+		}
+		if (isTable()) {
+			// elements of a table are fetched again each time
+			return false;
+		}
+		return getPDAThread().isChanged(getStackFrame(), getName());
 	}
 	/* (non-Javadoc)
 	 * @see org.eclipse.debug.core.model.IValueModification#setValue(java.lang.String)
 	 */
 	public void setValue(String expression) throws DebugException {
 		sendRequest("setvar " + getStackFrame().getIdentifier() + " " + getName() + " " + expression);
+		synchronized (this) {
+			fValue = null;
+		}
+		getPDAThread().forgetReportedValues();
 		fireChangeEvent(DebugEvent.CONTENT);
 	}
 	/* (non-Javadoc)
@@ -224,5 +258,14 @@ public class PDAVariable extends PDADebugElement implements IVariable {
 	protected PDAStackFrame getStackFrame() {
 		return fFrame;
 	}
+	
+	/**
+	 * Returns the thread of the stack frame owning this variable.
+	 * 
+	 * @return the thread of the stack frame owning this variable
+	 */
+	private PDAThread getPDAThread() {
+		return (PDAThread) fFrame.getThread();
+	}
 
 }
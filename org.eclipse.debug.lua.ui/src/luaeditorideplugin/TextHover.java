@@ -14,12 +14,15 @@
 package luaeditorideplugin;
 
 import org.eclipse.core.runtime.IAdaptable;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
 import org.eclipse.debug.core.DebugException;
-import org.eclipse.debug.core.model.IThread;
+import org.eclipse.debug.core.model.IValue;
 import org.eclipse.debug.core.model.IVariable;
 import org.eclipse.debug.examples.core.pda.model.PDADebugTarget;
 import org.eclipse.debug.examples.core.pda.model.PDAStackFrame;
 import org.eclipse.debug.examples.core.pda.model.PDAThread;
+import org.eclipse.debug.examples.core.pda.model.PDAVariable;
 import org.eclipse.debug.ui.DebugUITools;
 import org.eclipse.jface.text.BadLocationException;
 import org.eclipse.jface.text.IRegion;
@@ -31,6 +34,12 @@ import org.eclipse.jface.text.ITextViewer;
  * Produces debug hover for the PDA debugger.
  */
 public class TextHover implements ITextHover {
+	
+    /**
+     * How long a hover waits for the interpreter before giving up, in
+     * milliseconds
+     */
+    private static final long HOVER_TIMEOUT = 2000;
 
     /* (non-Javadoc)
      * @see org.eclipse.jface.text.ITextHover#getHoverInfo(org.eclipse.jface.text.ITextViewer, org.eclipse.jface.text.IRegion)
@@ -46,6 +55,15 @@ public class TextHover implements ITextHover {
             varName = varName.substring(1);
         }
    
+        // the hover is only useful for a moment, so give up on the
+        // interpreter well before the target's own request timeout
+        final long deadline = System.currentTimeMillis() + HOVER_TIMEOUT;
+        IProgressMonitor monitor = new NullProgressMonitor() {
+            public boolean isCanceled() {
+                return super.isCanceled() || System.currentTimeMillis() > deadline;
+            }
+        };
+        
         PDAStackFrame frame = null;
         IAdaptable debugContext = DebugUITools.getDebugContext();
         if (debugContext instanceof PDAStackFrame) {
@@ -53,16 +71,16 @@ public class TextHover implements ITextHover {
         } else if (debugContext instanceof PDAThread) {
             PDAThread thread = (PDAThread) debugContext;
             try {
-                frame = (PDAStackFrame) thread.getTopStackFrame();
+                frame = (PDAStackFrame) thread.getTopStackFrame(monitor);
             } catch (DebugException e) {
                 return null;
             }
         } else if (debugContext instanceof PDADebugTarget) {
             PDADebugTarget target = (PDADebugTarget) debugContext;
             try {
-                IThread[] threads = target.getThreads();
-                if (threads.length > 0) {
-                    frame = (PDAStackFrame) threads[0].getTopStackFrame();
+                PDAThread thread = target.getThread();
+                if (thread != null) {
+                    frame = (PDAStackFrame) thread.getTopStackFrame(monitor);
                 }
             } catch (DebugException e) {
                 return null;
@@ -74,7 +92,13 @@ public class TextHover implements ITextHover {
                 for (int i = 0; i < variables.length; i++) {
                     IVariable variable = variables[i];
                     if (variable.getName().equals(varName)) {
-                        return varName + " = " + variable.getValue().getValueString(); 
+                        IValue value;
+                        if (variable instanceof PDAVariable) {
+                            value = ((PDAVariable) variable).getValue(monitor);
+                        } else {
+                            value = variable.getValue();
+                        }
+                        return varName + " = " + value.getValueString(); 
                     }
                 }
             } catch (DebugException e) {
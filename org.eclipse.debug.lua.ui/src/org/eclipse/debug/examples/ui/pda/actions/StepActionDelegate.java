@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (c) 2008 VeriSign, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     VeriSign, Inc. - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.debug.examples.ui.pda.actions;
+
+import org.eclipse.debug.core.DebugException;
+import org.eclipse.debug.examples.core.pda.model.PDAStackFrame;
+import org.eclipse.debug.examples.core.pda.model.PDAThread;
+import org.eclipse.jface.action.IAction;
+import org.eclipse.jface.dialogs.ErrorDialog;
+import org.eclipse.jface.dialogs.IInputValidator;
+import org.eclipse.jface.dialogs.InputDialog;
+import org.eclipse.jface.viewers.ISelection;
+import org.eclipse.jface.viewers.IStructuredSelection;
+import org.eclipse.jface.window.Window;
+import org.eclipse.swt.widgets.Shell;
+import org.eclipse.ui.IObjectActionDelegate;
+import org.eclipse.ui.IWorkbenchPart;
+
+
+/**
+ * A step on the selected stack frame that takes one argument, asked for
+ * in a dialog: the interpreter runs the step on its own and reports only
+ * the suspend where it ends.
+ */
+public abstract class StepActionDelegate implements IObjectActionDelegate {
+
+	/**
+	 * Accepts a whole number of at least 1
+	 */
+	protected static final IInputValidator POSITIVE_NUMBER = new IInputValidator() {
+		public String isValid(String newText) {
+			try {
+				if (Integer.parseInt(newText.trim()) > 0) {
+					return null;
+				}
+			} catch (NumberFormatException e) {
+			}
+			return "Enter a number greater than 0";
+		}
+	};
+
+	private PDAStackFrame fFrame;
+	private IWorkbenchPart fPart;
+
+	// the value entered last, offered again the next time
+	private String fValue;
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.ui.IObjectActionDelegate#setActivePart(org.eclipse.jface.action.IAction, org.eclipse.ui.IWorkbenchPart)
+	 */
+	public void setActivePart(IAction action, IWorkbenchPart targetPart) {
+		fPart = targetPart;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.ui.IActionDelegate#selectionChanged(org.eclipse.jface.action.IAction, org.eclipse.jface.viewers.ISelection)
+	 */
+	public void selectionChanged(IAction action, ISelection selection) {
+		fFrame = null;
+		if (selection instanceof IStructuredSelection) {
+			Object element = ((IStructuredSelection) selection).getFirstElement();
+			if (element instanceof PDAStackFrame) {
+				fFrame = (PDAStackFrame) element;
+			}
+		}
+		action.setEnabled(fFrame != null && fFrame.isSuspended());
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.ui.IActionDelegate#run(org.eclipse.jface.action.IAction)
+	 */
+	public void run(IAction action) {
+		if (fFrame == null || fPart == null) {
+			return;
+		}
+		Shell shell = fPart.getSite().getShell();
+		InputDialog dialog = new InputDialog(shell, getTitle(), getMessage(),
+				fValue == null ? getInitialValue() : fValue, getValidator());
+		if (dialog.open() != Window.OK) {
+			return;
+		}
+		fValue = dialog.getValue().trim();
+		try {
+			step((PDAThread) fFrame.getThread(), fFrame, fValue);
+		} catch (DebugException e) {
+			ErrorDialog.openError(shell, getTitle(), null, e.getStatus());
+		}
+	}
+
+	/**
+	 * Returns the title of the dialog and of any error
+	 *
+	 * @return dialog title
+	 */
+	protected abstract String getTitle();
+
+	/**
+	 * Returns the message of the dialog, what to enter
+	 *
+	 * @return dialog message
+	 */
+	protected abstract String getMessage();
+
+	/**
+	 * Returns the value the dialog first shows
+	 *
+	 * @return initial value
+	 */
+	protected String getInitialValue() {
+		return "";
+	}
+
+	/**
+	 * Returns the validator of the value entered, or <code>null</code> if
+	 * the interpreter checks it
+	 *
+	 * @return validator or <code>null</code>
+	 */
+	protected IInputValidator getValidator() {
+		return null;
+	}
+
+	/**
+	 * Takes the step
+	 *
+	 * @param thread thread of the selected frame
+	 * @param frame selected frame
+	 * @param value the value entered, accepted by the validator
+	 * @throws DebugException if the step fails
+	 */
+	protected abstract void step(PDAThread thread, PDAStackFrame frame, String value) throws DebugException;
+}
@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright (c) 2008 VeriSign, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     VeriSign, Inc. - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.debug.examples.ui.pda.actions;
+
+import org.eclipse.debug.core.DebugException;
+import org.eclipse.debug.examples.core.pda.model.PDAStackFrame;
+import org.eclipse.debug.examples.core.pda.model.PDAThread;
+import org.eclipse.jface.dialogs.IInputValidator;
+
+
+/**
+ * Steps a number of lines, see {@link PDAThread#stepLines(int)}
+ */
+public class StepLinesActionDelegate extends StepActionDelegate {
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.debug.examples.ui.pda.actions.StepActionDelegate#getTitle()
+	 */
+	protected String getTitle() {
+		return "Step Lines";
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.debug.examples.ui.pda.actions.StepActionDelegate#getMessage()
+	 */
+	protected String getMessage() {
+		return "Number of lines to step:";
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.debug.examples.ui.pda.actions.StepActionDelegate#getInitialValue()
+	 */
+	protected String getInitialValue() {
+		return "10";
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.debug.examples.ui.pda.actions.StepActionDelegate#getValidator()
+	 */
+	protected IInputValidator getValidator() {
+		return POSITIVE_NUMBER;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.debug.examples.ui.pda.actions.StepActionDelegate#step(org.eclipse.debug.examples.core.pda.model.PDAThread, org.eclipse.debug.examples.core.pda.model.PDAStackFrame, java.lang.String)
+	 */
+	protected void step(PDAThread thread, PDAStackFrame frame, String value) throws DebugException {
+		thread.stepLines(Integer.parseInt(value));
+	}
+}
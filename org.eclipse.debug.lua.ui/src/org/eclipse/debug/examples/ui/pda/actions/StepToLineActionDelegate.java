@@ -0,0 +1,52 @@
+/*******************************************************************************
+ * Copyright (c) 2008 VeriSign, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     VeriSign, Inc. - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.debug.examples.ui.pda.actions;
+
+import org.eclipse.debug.core.DebugException;
+import org.eclipse.debug.examples.core.pda.model.PDAStackFrame;
+import org.eclipse.debug.examples.core.pda.model.PDAThread;
+import org.eclipse.jface.dialogs.IInputValidator;
+
+
+/**
+ * Runs to a line in the selected frame, see
+ * {@link PDAThread#stepToLine(PDAStackFrame, int)}
+ */
+public class StepToLineActionDelegate extends StepActionDelegate {
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.debug.examples.ui.pda.actions.StepActionDelegate#getTitle()
+	 */
+	protected String getTitle() {
+		return "Run to Line in Frame";
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.debug.examples.ui.pda.actions.StepActionDelegate#getMessage()
+	 */
+	protected String getMessage() {
+		return "Suspend when this frame, or a frame as deep, reaches line:";
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.debug.examples.ui.pda.actions.StepActionDelegate#getValidator()
+	 */
+	protected IInputValidator getValidator() {
+		return POSITIVE_NUMBER;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.debug.examples.ui.pda.actions.StepActionDelegate#step(org.eclipse.debug.examples.core.pda.model.PDAThread, org.eclipse.debug.examples.core.pda.model.PDAStackFrame, java.lang.String)
+	 */
+	protected void step(PDAThread thread, PDAStackFrame frame, String value) throws DebugException {
+		thread.stepToLine(frame, Integer.parseInt(value));
+	}
+}
@@ -0,0 +1,45 @@
+/*******************************************************************************
+ * Copyright (c) 2008 VeriSign, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     VeriSign, Inc. - initial API and implementation
+ *******************************************************************************/
+package org.eclipse.debug.examples.ui.pda.actions;
+
+import org.eclipse.debug.core.DebugException;
+import org.eclipse.debug.examples.core.pda.model.PDAStackFrame;
+import org.eclipse.debug.examples.core.pda.model.PDAThread;
+
+
+/**
+ * Runs until a Lua expression is true, see
+ * {@link PDAThread#stepUntil(String)}. The interpreter reports an
+ * expression that does not compile.
+ */
+public class StepUntilActionDelegate extends StepActionDelegate {
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.debug.examples.ui.pda.actions.StepActionDelegate#getTitle()
+	 */
+	protected String getTitle() {
+		return "Run Until";
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.debug.examples.ui.pda.actions.StepActionDelegate#getMessage()
+	 */
+	protected String getMessage() {
+		return "Suspend at the first line where this Lua expression is true:";
+	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.debug.examples.ui.pda.actions.StepActionDelegate#step(org.eclipse.debug.examples.core.pda.model.PDAThread, org.eclipse.debug.examples.core.pda.model.PDAStackFrame, java.lang.String)
+	 */
+	protected void step(PDAThread thread, PDAStackFrame frame, String value) throws DebugException {
+		thread.stepUntil(value);
+	}
+}
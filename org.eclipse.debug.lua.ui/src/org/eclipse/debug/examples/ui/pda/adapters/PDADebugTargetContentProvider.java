@@ -12,6 +12,8 @@
 package org.eclipse.debug.examples.ui.pda.adapters;
 
 import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
 import org.eclipse.debug.examples.core.pda.model.PDADebugTarget;
 import org.eclipse.debug.examples.core.pda.model.PDAThread;
 import org.eclipse.debug.internal.ui.model.elements.ElementContentProvider;
@@ -30,7 +32,7 @@ public class PDADebugTargetContentProvider extends ElementContentProvider {
 		PDAThread thread = ((PDADebugTarget) element).getThread();
 		if (thread != null) {
 			if (thread.hasStackFrames()) {
-				return thread.getStackFrames().length;
+				return thread.getStackFrames(toProgressMonitor(monitor)).length;
 			}
 		}
 		return 0;
@@ -54,12 +56,28 @@ public class PDADebugTargetContentProvider extends ElementContentProvider {
 		if (context.getId().equals(IDebugUIConstants.ID_DEBUG_VIEW)) {
 			PDAThread thread = ((PDADebugTarget) parent).getThread();
 			if (thread != null) {
-				return getElements(thread.getStackFrames(), index, length);
+				return getElements(thread.getStackFrames(toProgressMonitor(monitor)), index, length);
 			}
 		}
 		return EMPTY;
 	}
 
+	/**
+	 * Returns a progress monitor that is cancelled when the given viewer
+	 * update is, so requests for an update the viewer no longer wants are
+	 * abandoned.
+	 * 
+	 * @param update viewer update
+	 * @return progress monitor tracking the update
+	 */
+	private IProgressMonitor toProgressMonitor(final IViewerUpdate update) {
+		return new NullProgressMonitor() {
+			public boolean isCanceled() {
+				return super.isCanceled() || update.isCanceled();
+			}
+		};
+	}
+
 	/* (non-Javadoc)
 	 * @see org.eclipse.debug.internal.ui.model.elements.ElementContentProvider#supportsContextId(java.lang.String)
 	 */
@@ -13,6 +13,10 @@
 package org.eclipse.debug.examples.ui.pda.views;
 
 import org.eclipse.core.runtime.IAdaptable;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.debug.core.DebugException;
 import org.eclipse.debug.core.model.IDebugElement;
 import org.eclipse.debug.core.model.IDebugTarget;
@@ -40,6 +44,57 @@ import org.eclipse.ui.IWorkbenchPart;
 public class DataStackView extends AbstractDebugView implements ISelectionListener {
     
     private PDADebugTarget fTarget;
+    
+    // data stack of fTarget, fetched in the background by fUpdateJob
+    private Object[] fDataStack = new Object[0];
+    private DataStackJob fUpdateJob;
+    
+	/**
+	 * Fetches the data stack of a target without blocking the UI thread,
+	 * then shows it if the target is still the one selected.
+	 */
+	class DataStackJob extends Job {
+		
+		private PDADebugTarget fJobTarget;
+		
+		public DataStackJob(PDADebugTarget target) {
+			super("Lua Data Stack");
+			setSystem(true);
+			fJobTarget = target;
+		}
+
+		/* (non-Javadoc)
+		 * @see org.eclipse.core.runtime.jobs.Job#run(org.eclipse.core.runtime.IProgressMonitor)
+		 */
+		protected IStatus run(IProgressMonitor monitor) {
+			final Object[] dataStack;
+			try {
+				dataStack = fJobTarget.getDataStack(monitor);
+			} catch (DebugException e) {
+				return Status.OK_STATUS;
+			}
+			if (monitor.isCanceled()) {
+				return Status.CANCEL_STATUS;
+			}
+			Viewer viewer = getViewer();
+			if (viewer == null || viewer.getControl().isDisposed()) {
+				return Status.OK_STATUS;
+			}
+			viewer.getControl().getDisplay().asyncExec(new Runnable() {
+				public void run() {
+					Viewer viewer = getViewer();
+					if (viewer == null || viewer.getControl().isDisposed() || fTarget != fJobTarget) {
+						return;
+					}
+					fDataStack = dataStack;
+					viewer.setInput(fJobTarget);
+					viewer.refresh();
+				}
+			});
+			return Status.OK_STATUS;
+		}
+		
+	}
 	
 	class StackViewContentProvider implements ITreeContentProvider {
 		
@@ -48,13 +103,10 @@ public class DataStackView extends AbstractDebugView implements ISelectionListen
 		 */
 		public Object[] getChildren(Object parentElement) {
 			if (parentElement instanceof PDADebugTarget) {
-				try {
-					Object[] retObjArr = ((PDADebugTarget)parentElement).getDataStack();
-					// so that the stack value is reset on each display
-					NumberingLabelProvider.index = retObjArr.length; 
-					return retObjArr;
-				} catch (DebugException e) {
-				}
+				Object[] retObjArr = fDataStack;
+				// so that the stack value is reset on each display
+				NumberingLabelProvider.index = retObjArr.length; 
+				return retObjArr;
 			}
 			return new Object[0];
 		}
@@ -140,6 +192,9 @@ public class DataStackView extends AbstractDebugView implements ISelectionListen
 	 * @see org.eclipse.ui.IWorkbenchPart#dispose()
 	 */
 	public void dispose() {
+		if (fUpdateJob != null) {
+			fUpdateJob.cancel();
+		}
 		getSite().getWorkbenchWindow().getSelectionService().removeSelectionListener(IDebugUIConstants.ID_DEBUG_VIEW, this);
 		super.dispose();
 	}
@@ -151,7 +206,8 @@ public class DataStackView extends AbstractDebugView implements ISelectionListen
 	}
     
     /**
-     * Updates the view for the selected target (if suspended)
+     * Updates the view for the selected target (if suspended). The data
+     * stack is fetched in the background and shown when it arrives.
      */
     private synchronized void update() {
 		IAdaptable adaptable = DebugUITools.getDebugContext();
@@ -164,11 +220,17 @@ public class DataStackView extends AbstractDebugView implements ISelectionListen
 				}
 			}
 		}        
-		Object input = null;
+		if (fUpdateJob != null) {
+			fUpdateJob.cancel();
+			fUpdateJob = null;
+		}
 		if (fTarget != null && fTarget.isSuspended()) {
-		    input = fTarget;
+			fUpdateJob = new DataStackJob(fTarget);
+			fUpdateJob.schedule();
+		} else {
+			fDataStack = new Object[0];
+			getViewer().setInput(null);
+			getViewer().refresh();
 		}
-		getViewer().setInput(input);
-		getViewer().refresh();
     }
 }